@@ -0,0 +1,106 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+
+package com.ibm.pi.beacon;
+
+import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.Identifier;
+
+import java.util.Collection;
+
+/**
+ * This class decides whether a ranging cycle is worth a beacon notification message.  A device that
+ * sits still next to the same beacon reports nothing new, so a cycle is only sent when:
+ *
+ * <ul>
+ *     <li>the nearest beacon changed</li>
+ *     <li>the proximity class (immediate, near, far) of the nearest beacon changed</li>
+ *     <li>the RSSI of the nearest beacon moved further than the hysteresis band from the last one sent</li>
+ *     <li>nothing was sent for a heartbeat interval, so the server knows the device is still there</li>
+ * </ul>
+ *
+ * Disabled by default, every cycle is sent.
+ */
+class PIBeaconChangeDetector {
+    static final int DEFAULT_RSSI_HYSTERESIS = 8; /* dB */
+    static final long DEFAULT_HEARTBEAT_INTERVAL_IN_MILLISECONDS = 5 * 60 * 1000; /* milliseconds */
+
+    private boolean mEnabled = false;
+    private int mRssiHysteresis = DEFAULT_RSSI_HYSTERESIS;
+    private long mHeartbeatInterval = DEFAULT_HEARTBEAT_INTERVAL_IN_MILLISECONDS;
+
+    // what the last message sent said about the nearest beacon
+    private Identifier mLastId1;
+    private Identifier mLastId2;
+    private Identifier mLastId3;
+    private String mLastProximity;
+    private int mLastRssi;
+    private long mLastSentAt = -1;
+
+    /**
+     * @param enabled false to send every cycle.
+     * @param rssiHysteresis RSSI change in dB that triggers a send.
+     * @param heartbeatInterval longest time in ms without a send while beacons are in range.
+     */
+    void configure(boolean enabled, int rssiHysteresis, long heartbeatInterval) {
+        mEnabled = enabled;
+        mRssiHysteresis = rssiHysteresis;
+        mHeartbeatInterval = heartbeatInterval;
+        // start over, the next cycle is sent
+        mLastSentAt = -1;
+    }
+
+    /**
+     * Checks a cycle against the last one sent, and remembers it if it is to be sent.
+     *
+     * @param beacons beacons ranged in the cycle, not empty.
+     * @param now time of the cycle.
+     * @return true if the cycle should be sent.
+     */
+    boolean shouldSend(Collection<Beacon> beacons, long now) {
+        if (!mEnabled) {
+            return true;
+        }
+        Beacon nearest = null;
+        for (Beacon beacon : beacons) {
+            if (nearest == null || beacon.getDistance() < nearest.getDistance()) {
+                nearest = beacon;
+            }
+        }
+        String proximity = PIBeaconData.getProximityFromBeacon(nearest);
+        int rssi = nearest.getRssi();
+
+        boolean changed = mLastSentAt < 0
+                || now - mLastSentAt >= mHeartbeatInterval
+                || !equal(mLastId1, nearest.getId1()) || !equal(mLastId2, nearest.getId2()) || !equal(mLastId3, nearest.getId3())
+                || !proximity.equals(mLastProximity)
+                || Math.abs(rssi - mLastRssi) > mRssiHysteresis;
+        if (changed) {
+            mLastId1 = nearest.getId1();
+            mLastId2 = nearest.getId2();
+            mLastId3 = nearest.getId3();
+            mLastProximity = proximity;
+            mLastRssi = rssi;
+            mLastSentAt = now;
+        }
+        return changed;
+    }
+
+    private static boolean equal(Identifier lhs, Identifier rhs) {
+        return lhs == null ? rhs == null : lhs.equals(rhs);
+    }
+}
@@ -221,7 +221,7 @@ public class PIBeaconData {
      * @param beacon AltBeacon beacon
      * @return string representing the range of a beacon (immediate, near, far)
      */
-    private String getProximityFromBeacon(Beacon beacon) {
+    static String getProximityFromBeacon(Beacon beacon) {
         String proximity;
         double distance = beacon.getDistance();
         if (distance <= 0.5) {
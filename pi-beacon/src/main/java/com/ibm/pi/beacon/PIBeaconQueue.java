@@ -0,0 +1,425 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+
+package com.ibm.pi.beacon;
+
+import com.ibm.json.java.JSONArray;
+import com.ibm.json.java.JSONObject;
+import com.ibm.pi.core.PILogger;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * This class keeps the sightings of beacon notification messages on disk until the connector has
+ * accepted them, so sightings made without a network are sent once it comes back.
+ *
+ * Sightings are appended to segment files, one record per bnm element.  A cursor file remembers how
+ * far the queue has been sent, and segments are deleted once everything in them was sent.  A record
+ * torn by a crash is detected by its checksum and cut off the next time the queue is opened.
+ *
+ * The queue is bounded: past its size budget the oldest segments are deleted, and sightings older
+ * than the maximum age are dropped instead of sent.
+ *
+ * Not thread safe, the service only touches it from its queue thread.
+ */
+class PIBeaconQueue {
+    private static final String TAG = PIBeaconQueue.class.getSimpleName();
+
+    static final long DEFAULT_MAX_SIZE_IN_BYTES = 1024 * 1024; /* bytes */
+    static final long DEFAULT_MAX_AGE_IN_MILLISECONDS = 24 * 60 * 60 * 1000; /* milliseconds */
+
+    private static final long SEGMENT_SIZE_IN_BYTES = 64 * 1024; /* bytes */
+    private static final String SEGMENT_SUFFIX = ".seg";
+    private static final String CURSOR_FILE = "cursor";
+    private static final String TEMP_SUFFIX = ".tmp";
+    // length, timestamp and checksum
+    private static final int RECORD_HEADER_SIZE = 4 + 8 + 8;
+    // anything bigger than this is a corrupt length field
+    private static final int MAX_RECORD_SIZE = 64 * 1024;
+
+    private final File mDirectory;
+    private final long mMaxSize;
+    private final long mMaxAge;
+
+    // segment sequence numbers, oldest first
+    private long[] mSegments = new long[0];
+    private long mCursorSegment;
+    private long mCursorOffset;
+
+    /**
+     * A run of sightings read from the queue, removed once {@link #commit(Batch)} is called.
+     */
+    static class Batch {
+        final JSONArray elements = new JSONArray();
+        long endSegment;
+        long endOffset;
+
+        boolean isEmpty() {
+            return elements.isEmpty();
+        }
+    }
+
+    PIBeaconQueue(File directory, long maxSizeInBytes, long maxAgeInMilliseconds) {
+        mDirectory = directory;
+        mMaxSize = maxSizeInBytes;
+        mMaxAge = maxAgeInMilliseconds;
+        open();
+    }
+
+    /**
+     * Appends the elements of a bnm array.
+     *
+     * @param elements beacon sightings as built for the bnm array.
+     * @return size of the appended sightings in bytes.
+     */
+    long append(JSONArray elements) {
+        long bytes = 0;
+        if (elements.isEmpty()) {
+            return bytes;
+        }
+        long now = System.currentTimeMillis();
+        try {
+            long tail = mSegments.length > 0 ? mSegments[mSegments.length - 1] : -1;
+            if (tail < 0 || segmentFile(tail).length() >= SEGMENT_SIZE_IN_BYTES) {
+                tail = tail < 0 ? Math.max(0, mCursorSegment) : tail + 1;
+                addSegment(tail);
+            }
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                    new FileOutputStream(segmentFile(tail), true)));
+            try {
+                for (Object element : elements) {
+                    byte[] record = ((JSONObject) element).serialize().getBytes("UTF-8");
+                    CRC32 crc = new CRC32();
+                    crc.update(record);
+                    out.writeInt(record.length);
+                    out.writeLong(now);
+                    out.writeLong(crc.getValue());
+                    out.write(record);
+                    bytes += record.length;
+                }
+            } finally {
+                out.close();
+            }
+        } catch (IOException e) {
+            PILogger.e(TAG, "could not queue sightings: {}", e);
+        }
+        trimToSize();
+        return bytes;
+    }
+
+    /**
+     * Reads the oldest sightings that have not been sent yet.
+     *
+     * @param maxCount maximum number of sightings in the batch.
+     * @param maxBytes maximum size of the sightings in the batch, at least one is returned whatever its size.
+     * @return the batch, empty if there is nothing left to send.
+     */
+    Batch peek(int maxCount, long maxBytes) {
+        Batch batch = new Batch();
+        batch.endSegment = mCursorSegment;
+        batch.endOffset = mCursorOffset;
+        long bytes = 0;
+        long oldest = System.currentTimeMillis() - mMaxAge;
+        for (long segment : mSegments) {
+            if (segment < mCursorSegment) {
+                continue;
+            }
+            long offset = segment == mCursorSegment ? mCursorOffset : 0;
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(new FileInputStream(segmentFile(segment))));
+                skipFully(in, offset);
+                while (batch.elements.size() < maxCount) {
+                    Record record = readRecord(in);
+                    if (record == null) {
+                        break;
+                    }
+                    if (!batch.isEmpty() && bytes + record.body.length > maxBytes) {
+                        return batch;
+                    }
+                    offset += RECORD_HEADER_SIZE + record.body.length;
+                    batch.endSegment = segment;
+                    batch.endOffset = offset;
+                    if (record.timestamp < oldest) {
+                        // too old to be of use to anyone, it goes with the batch
+                        continue;
+                    }
+                    batch.elements.add(JSONObject.parse(new String(record.body, "UTF-8")));
+                    bytes += record.body.length;
+                }
+            } catch (IOException e) {
+                // a corrupt record can't be skipped over, give up on the rest of the segment
+                PILogger.e(TAG, "dropping unreadable sightings from segment {}: {}", segment, e);
+                batch.endSegment = segment;
+                batch.endOffset = segmentFile(segment).length();
+            } finally {
+                closeQuietly(in);
+            }
+            if (batch.elements.size() >= maxCount) {
+                break;
+            }
+        }
+        return batch;
+    }
+
+    /**
+     * Removes a batch, and everything before it, from the queue.
+     *
+     * @param batch a batch returned by {@link #peek(int, long)}.
+     */
+    void commit(Batch batch) {
+        if (batch.endSegment < mCursorSegment
+                || (batch.endSegment == mCursorSegment && batch.endOffset <= mCursorOffset)) {
+            return;
+        }
+        setCursor(batch.endSegment, batch.endOffset);
+        compact();
+    }
+
+    /**
+     *
+     * @return true if there are sightings that were not sent yet.
+     */
+    boolean hasPending() {
+        for (long segment : mSegments) {
+            if (segment > mCursorSegment || (segment == mCursorSegment && segmentFile(segment).length() > mCursorOffset)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     *
+     * @return bytes used on disk by the queue.
+     */
+    long getSize() {
+        long size = 0;
+        for (long segment : mSegments) {
+            size += segmentFile(segment).length();
+        }
+        return size;
+    }
+
+    private void open() {
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            PILogger.e(TAG, "could not create queue directory {}", mDirectory);
+        }
+        String[] names = mDirectory.list();
+        long[] segments = new long[names != null ? names.length : 0];
+        int count = 0;
+        if (names != null) {
+            for (String name : names) {
+                if (name.endsWith(SEGMENT_SUFFIX)) {
+                    try {
+                        segments[count++] = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+                    } catch (NumberFormatException e) {
+                        new File(mDirectory, name).delete();
+                    }
+                }
+            }
+        }
+        mSegments = Arrays.copyOf(segments, count);
+        Arrays.sort(mSegments);
+        readCursor();
+        if (mSegments.length > 0) {
+            repairTail(mSegments[mSegments.length - 1]);
+        }
+        compact();
+        trimToSize();
+    }
+
+    // cuts off a record a crash left half written, so appends after it can be read again
+    private void repairTail(long segment) {
+        File file = segmentFile(segment);
+        long valid = 0;
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            Record record;
+            while ((record = readRecord(in)) != null) {
+                valid += RECORD_HEADER_SIZE + record.body.length;
+            }
+        } catch (IOException e) {
+            // everything up to here was readable
+        } finally {
+            closeQuietly(in);
+        }
+        if (valid < file.length()) {
+            PILogger.e(TAG, "dropping {} bytes of torn records from {}", file.length() - valid, file);
+            RandomAccessFile raf = null;
+            try {
+                raf = new RandomAccessFile(file, "rw");
+                raf.setLength(valid);
+            } catch (IOException e) {
+                PILogger.e(TAG, "could not repair {}: {}", file, e);
+            } finally {
+                closeQuietly(raf);
+            }
+        }
+    }
+
+    // deletes the segments that have been sent in full or have aged out as a whole
+    private void compact() {
+        long oldest = System.currentTimeMillis() - mMaxAge;
+        int first = 0;
+        while (first < mSegments.length) {
+            long segment = mSegments[first];
+            File file = segmentFile(segment);
+            boolean isTail = first == mSegments.length - 1;
+            boolean sent = segment < mCursorSegment
+                    || (segment == mCursorSegment && mCursorOffset >= file.length() && !isTail);
+            boolean expired = file.lastModified() < oldest;
+            if (!sent && !expired) {
+                break;
+            }
+            file.delete();
+            first++;
+        }
+        if (first > 0) {
+            mSegments = Arrays.copyOfRange(mSegments, first, mSegments.length);
+            if (mSegments.length == 0 || mSegments[0] > mCursorSegment) {
+                setCursor(mSegments.length > 0 ? mSegments[0] : mCursorSegment + 1, 0);
+            }
+        }
+    }
+
+    // drops the oldest segments once the queue is over its size budget, the newest sightings matter most
+    private void trimToSize() {
+        long size = getSize();
+        while (size > mMaxSize && mSegments.length > 1) {
+            File file = segmentFile(mSegments[0]);
+            PILogger.e(TAG, "queue over {} bytes, dropping {}", mMaxSize, file);
+            size -= file.length();
+            file.delete();
+            mSegments = Arrays.copyOfRange(mSegments, 1, mSegments.length);
+            if (mSegments[0] > mCursorSegment) {
+                setCursor(mSegments[0], 0);
+            }
+        }
+    }
+
+    private void addSegment(long segment) {
+        mSegments = Arrays.copyOf(mSegments, mSegments.length + 1);
+        mSegments[mSegments.length - 1] = segment;
+    }
+
+    private void readCursor() {
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new FileInputStream(new File(mDirectory, CURSOR_FILE)));
+            mCursorSegment = in.readLong();
+            mCursorOffset = in.readLong();
+        } catch (IOException e) {
+            // no cursor yet, start at the oldest segment
+            mCursorSegment = mSegments.length > 0 ? mSegments[0] : 0;
+            mCursorOffset = 0;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    // written to a temp file and renamed, so a crash leaves either the old or the new cursor
+    private void setCursor(long segment, long offset) {
+        mCursorSegment = segment;
+        mCursorOffset = offset;
+        File temp = new File(mDirectory, CURSOR_FILE + TEMP_SUFFIX);
+        DataOutputStream out = null;
+        try {
+            FileOutputStream file = new FileOutputStream(temp);
+            out = new DataOutputStream(file);
+            out.writeLong(segment);
+            out.writeLong(offset);
+            out.flush();
+            file.getFD().sync();
+        } catch (IOException e) {
+            PILogger.e(TAG, "could not save queue cursor: {}", e);
+            return;
+        } finally {
+            closeQuietly(out);
+        }
+        if (!temp.renameTo(new File(mDirectory, CURSOR_FILE))) {
+            PILogger.e(TAG, "could not save queue cursor");
+        }
+    }
+
+    private File segmentFile(long segment) {
+        return new File(mDirectory, String.format(Locale.US, "%019d%s", segment, SEGMENT_SUFFIX));
+    }
+
+    // null at the end of the segment
+    private static Record readRecord(DataInputStream in) throws IOException {
+        int length;
+        try {
+            length = in.readInt();
+        } catch (EOFException e) {
+            return null;
+        }
+        if (length < 0 || length > MAX_RECORD_SIZE) {
+            throw new IOException("corrupt record length " + length);
+        }
+        Record record = new Record();
+        record.timestamp = in.readLong();
+        long checksum = in.readLong();
+        record.body = new byte[length];
+        in.readFully(record.body);
+        CRC32 crc = new CRC32();
+        crc.update(record.body);
+        if (crc.getValue() != checksum) {
+            throw new IOException("corrupt record");
+        }
+        return record;
+    }
+
+    private static void skipFully(DataInputStream in, long bytes) throws IOException {
+        while (bytes > 0) {
+            long skipped = in.skip(bytes);
+            if (skipped <= 0) {
+                throw new EOFException();
+            }
+            bytes -= skipped;
+        }
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+
+    private static class Record {
+        long timestamp;
+        byte[] body;
+    }
+}
@@ -0,0 +1,157 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+
+package com.ibm.pi.beacon;
+
+import org.altbeacon.beacon.Beacon;
+
+import java.util.Collection;
+
+/**
+ * This class picks the beacons of a ranging cycle that go into the beacon notification message.
+ * Top-N selections keep a bounded heap whose root is the worst beacon kept so far, so a cycle costs
+ * O(beacons * log N) with no sorting and no copying of the ranged collection.  The heap array is
+ * reused from cycle to cycle.
+ *
+ * Selected beacons are not in any particular order.
+ */
+class PIBeaconSelector {
+    private PIBeaconSensor.PayloadMode mMode = PIBeaconSensor.PayloadMode.NEAREST;
+    private int mCount = 1;
+    private int mRssiThreshold;
+
+    private Beacon[] mSelected = new Beacon[1];
+    private int mSize = 0;
+
+    /**
+     * @param mode how beacons are picked.
+     * @param parameter number of beacons for the top-N modes, RSSI threshold in dBm for
+     * {@link PIBeaconSensor.PayloadMode#ALL_ABOVE_RSSI}, ignored for {@link PIBeaconSensor.PayloadMode#NEAREST}.
+     */
+    void configure(PIBeaconSensor.PayloadMode mode, int parameter) {
+        mMode = mode;
+        switch (mode) {
+            case NEAREST:
+                mCount = 1;
+                break;
+            case TOP_N_BY_DISTANCE:
+            case TOP_N_BY_RSSI:
+                mCount = Math.max(1, parameter);
+                break;
+            case ALL_ABOVE_RSSI:
+                mRssiThreshold = parameter;
+                break;
+        }
+        if (mMode != PIBeaconSensor.PayloadMode.ALL_ABOVE_RSSI && mSelected.length < mCount) {
+            mSelected = new Beacon[mCount];
+        }
+        clear();
+    }
+
+    /**
+     * Selects the beacons of a cycle, replacing the previous selection.
+     *
+     * @param beacons beacons ranged in the cycle.
+     * @return number of beacons selected, read them with {@link #get(int)}.
+     */
+    int select(Collection<Beacon> beacons) {
+        clear();
+        if (mMode == PIBeaconSensor.PayloadMode.ALL_ABOVE_RSSI) {
+            for (Beacon beacon : beacons) {
+                if (beacon.getRssi() >= mRssiThreshold) {
+                    append(beacon);
+                }
+            }
+            return mSize;
+        }
+        for (Beacon beacon : beacons) {
+            if (mSize < mCount) {
+                mSelected[mSize] = beacon;
+                siftUp(mSize++);
+            } else if (isWorse(mSelected[0], beacon)) {
+                mSelected[0] = beacon;
+                siftDown(0);
+            }
+        }
+        return mSize;
+    }
+
+    /**
+     * @param index index of the beacon, below the count returned by {@link #select(Collection)}.
+     * @return a selected beacon.
+     */
+    Beacon get(int index) {
+        return mSelected[index];
+    }
+
+    // the ranged beacons are not held on to past the cycle
+    private void clear() {
+        for (int i = 0; i < mSize; i++) {
+            mSelected[i] = null;
+        }
+        mSize = 0;
+    }
+
+    private void append(Beacon beacon) {
+        if (mSize == mSelected.length) {
+            Beacon[] grown = new Beacon[mSelected.length * 2];
+            System.arraycopy(mSelected, 0, grown, 0, mSize);
+            mSelected = grown;
+        }
+        mSelected[mSize++] = beacon;
+    }
+
+    // true if lhs is a worse pick than rhs
+    private boolean isWorse(Beacon lhs, Beacon rhs) {
+        if (mMode == PIBeaconSensor.PayloadMode.TOP_N_BY_RSSI) {
+            return lhs.getRssi() < rhs.getRssi();
+        }
+        return lhs.getDistance() > rhs.getDistance();
+    }
+
+    private void siftUp(int index) {
+        Beacon beacon = mSelected[index];
+        while (index > 0) {
+            int parent = (index - 1) / 2;
+            if (!isWorse(beacon, mSelected[parent])) {
+                break;
+            }
+            mSelected[index] = mSelected[parent];
+            index = parent;
+        }
+        mSelected[index] = beacon;
+    }
+
+    private void siftDown(int index) {
+        Beacon beacon = mSelected[index];
+        while (true) {
+            int child = 2 * index + 1;
+            if (child >= mSize) {
+                break;
+            }
+            if (child + 1 < mSize && isWorse(mSelected[child + 1], mSelected[child])) {
+                child++;
+            }
+            if (!isWorse(mSelected[child], beacon)) {
+                break;
+            }
+            mSelected[index] = mSelected[child];
+            index = child;
+        }
+        mSelected[index] = beacon;
+    }
+}
@@ -56,6 +56,14 @@ public class PIBeaconSensor {
     protected static final String SENSOR_STATE_KEY = "com.ibm.pisdk.sensor_state";
     protected static final String UUID_KEY = "com.ibm.pisdk.uuid_key";
     protected static final String START_IN_BACKGROUND_KEY = "com.ibm.pisdk.start_in_background";
+    protected static final String BATCH_MAX_COUNT_KEY = "com.ibm.pisdk.batch_max_count";
+    protected static final String BATCH_MAX_BYTES_KEY = "com.ibm.pisdk.batch_max_bytes";
+    protected static final String BATCH_MAX_LATENCY_KEY = "com.ibm.pisdk.batch_max_latency";
+    protected static final String PAYLOAD_MODE_KEY = "com.ibm.pisdk.payload_mode";
+    protected static final String PAYLOAD_MODE_PARAMETER_KEY = "com.ibm.pisdk.payload_mode_parameter";
+    protected static final String CHANGE_DETECTION_KEY = "com.ibm.pisdk.change_detection";
+    protected static final String RSSI_HYSTERESIS_KEY = "com.ibm.pisdk.rssi_hysteresis";
+    protected static final String HEARTBEAT_INTERVAL_KEY = "com.ibm.pisdk.heartbeat_interval";
 
     public static final String INTENT_RECEIVER_BEACON_COLLECTION = "intent_receiver_beacon_collection";
     public static final String INTENT_RECEIVER_REGION_ENTER = "intent_receiver_region_enter";
@@ -91,6 +99,28 @@ public class PIBeaconSensor {
 
     private BeaconsInRangeListener mBeaconsInRangeListener;
 
+    /**
+     * Which of the beacons in range are reported in beacon notification messages.
+     */
+    public enum PayloadMode {
+        /**
+         * only the nearest beacon
+         */
+        NEAREST,
+        /**
+         * the N nearest beacons
+         */
+        TOP_N_BY_DISTANCE,
+        /**
+         * the N beacons with the strongest signal
+         */
+        TOP_N_BY_RSSI,
+        /**
+         * every beacon with an RSSI at or above a threshold
+         */
+        ALL_ABOVE_RSSI
+    }
+
     public void setBeaconsInRangeListener(BeaconsInRangeListener listener) {
         mBeaconsInRangeListener = listener;
     }
@@ -176,7 +206,7 @@ public class PIBeaconSensor {
             }
 
         } catch (Exception e){
-            PILogger.e(TAG, "Failed to create PIBeaconSensorService: " + e.getMessage());
+            PILogger.e(TAG, "Failed to create PIBeaconSensorService: {}", e.getMessage());
         }
 
         if (STARTED.equals(mState)) {
@@ -211,6 +241,22 @@ public class PIBeaconSensor {
         extras.putLong(SEND_INTERVAL_KEY, mPrefs.getLong(SEND_INTERVAL_KEY, 5000l));
         extras.putLong(BACKGROUND_BETWEEN_SCAN_PERIOD_KEY, mPrefs.getLong(BACKGROUND_BETWEEN_SCAN_PERIOD_KEY, 60000l));
         extras.putLong(BACKGROUND_SCAN_PERIOD_KEY, mPrefs.getLong(BACKGROUND_SCAN_PERIOD_KEY, 1100l));
+        if (mPrefs.contains(BATCH_MAX_COUNT_KEY)) {
+            extras.putInt(BATCH_MAX_COUNT_KEY, mPrefs.getInt(BATCH_MAX_COUNT_KEY, 1));
+            extras.putLong(BATCH_MAX_BYTES_KEY, mPrefs.getLong(BATCH_MAX_BYTES_KEY, 0));
+            extras.putLong(BATCH_MAX_LATENCY_KEY, mPrefs.getLong(BATCH_MAX_LATENCY_KEY, 0));
+        }
+        if (mPrefs.contains(PAYLOAD_MODE_KEY)) {
+            extras.putString(PAYLOAD_MODE_KEY, mPrefs.getString(PAYLOAD_MODE_KEY, PayloadMode.NEAREST.name()));
+            extras.putInt(PAYLOAD_MODE_PARAMETER_KEY, mPrefs.getInt(PAYLOAD_MODE_PARAMETER_KEY, 0));
+        }
+        if (mPrefs.contains(CHANGE_DETECTION_KEY)) {
+            extras.putBoolean(CHANGE_DETECTION_KEY, mPrefs.getBoolean(CHANGE_DETECTION_KEY, false));
+            extras.putInt(RSSI_HYSTERESIS_KEY, mPrefs.getInt(RSSI_HYSTERESIS_KEY,
+                    PIBeaconChangeDetector.DEFAULT_RSSI_HYSTERESIS));
+            extras.putLong(HEARTBEAT_INTERVAL_KEY, mPrefs.getLong(HEARTBEAT_INTERVAL_KEY,
+                    PIBeaconChangeDetector.DEFAULT_HEARTBEAT_INTERVAL_IN_MILLISECONDS));
+        }
         if (mPrefs.contains(BEACON_LAYOUT_KEY)) {
             extras.putString(BEACON_LAYOUT_KEY, mPrefs.getString(BEACON_LAYOUT_KEY, ""));
         }
@@ -276,6 +322,73 @@ public class PIBeaconSensor {
         mContext.startService(intent);
     }
 
+    /**
+     * Collects the sightings of several send intervals into one beacon notification message, trading
+     * freshness for fewer requests and radio wake-ups.  The batch is sent as soon as any of the limits
+     * is reached.  By default every send interval is sent on its own, the same as setBatching(1, 0, 0).
+     *
+     * @param maxCount number of sightings that triggers a send.
+     * @param maxBytes size of the sightings in bytes that triggers a send, 0 for no limit.
+     * @param maxLatency longest time in ms a sighting waits before it is sent, 0 for no limit.
+     */
+    public void setBatching(int maxCount, long maxBytes, long maxLatency) {
+        mPrefs.edit()
+                .putInt(BATCH_MAX_COUNT_KEY, maxCount)
+                .putLong(BATCH_MAX_BYTES_KEY, maxBytes)
+                .putLong(BATCH_MAX_LATENCY_KEY, maxLatency)
+                .apply();
+
+        Intent intent = new Intent(mContext, PIBeaconSensorService.class);
+        intent.putExtra(BATCH_MAX_COUNT_KEY, maxCount);
+        intent.putExtra(BATCH_MAX_BYTES_KEY, maxBytes);
+        intent.putExtra(BATCH_MAX_LATENCY_KEY, maxLatency);
+        mContext.startService(intent);
+    }
+
+    /**
+     * Sets which of the beacons in range are reported, so the server can triangulate from more than
+     * the nearest one.  Defaults to {@link PayloadMode#NEAREST}.
+     *
+     * @param mode how beacons are picked.
+     * @param parameter number of beacons for the top-N modes, RSSI threshold in dBm, e.g. -80, for
+     *                  {@link PayloadMode#ALL_ABOVE_RSSI}, ignored for {@link PayloadMode#NEAREST}.
+     */
+    public void setPayloadMode(PayloadMode mode, int parameter) {
+        mPrefs.edit()
+                .putString(PAYLOAD_MODE_KEY, mode.name())
+                .putInt(PAYLOAD_MODE_PARAMETER_KEY, parameter)
+                .apply();
+
+        Intent intent = new Intent(mContext, PIBeaconSensorService.class);
+        intent.putExtra(PAYLOAD_MODE_KEY, mode.name());
+        intent.putExtra(PAYLOAD_MODE_PARAMETER_KEY, parameter);
+        mContext.startService(intent);
+    }
+
+    /**
+     * Only reports a send interval when something changed: the nearest beacon, its proximity
+     * (immediate, near, far), or its RSSI by more than the hysteresis band since the last report.  A
+     * heartbeat is still sent at a longer interval while beacons are in range.  Off by default, every
+     * send interval is reported.
+     *
+     * @param enable enable or disable change detection.
+     * @param rssiHysteresis RSSI change in dB that counts as a change, e.g. 8.
+     * @param heartbeatInterval longest time in ms between reports while beacons are in range.
+     */
+    public void setChangeDetection(boolean enable, int rssiHysteresis, long heartbeatInterval) {
+        mPrefs.edit()
+                .putBoolean(CHANGE_DETECTION_KEY, enable)
+                .putInt(RSSI_HYSTERESIS_KEY, rssiHysteresis)
+                .putLong(HEARTBEAT_INTERVAL_KEY, heartbeatInterval)
+                .apply();
+
+        Intent intent = new Intent(mContext, PIBeaconSensorService.class);
+        intent.putExtra(CHANGE_DETECTION_KEY, enable);
+        intent.putExtra(RSSI_HYSTERESIS_KEY, rssiHysteresis);
+        intent.putExtra(HEARTBEAT_INTERVAL_KEY, heartbeatInterval);
+        mContext.startService(intent);
+    }
+
     /**
      * Adds a new beacon advertisement layout.  By default, the AltBeacon library will only detect
      * beacons meeting the AltBeacon specification.  Please see AltBeacon's BeaconParser#setBeaconLayout
@@ -330,7 +443,7 @@ public class PIBeaconSensor {
                 }
                 // incorrect action received
                 else {
-                    PILogger.e(TAG, "incorrect action received, action received: " + intent.getAction());
+                    PILogger.e(TAG, "incorrect action received, action received: {}", intent.getAction());
                 }
         }
     };
@@ -17,9 +17,13 @@
 package com.ibm.pi.beacon;
 
 import android.app.Service;
+import android.content.BroadcastReceiver;
 import android.content.Context;
 import android.content.Intent;
+import android.content.IntentFilter;
 import android.content.SharedPreferences;
+import android.net.ConnectivityManager;
+import android.net.NetworkInfo;
 import android.os.Bundle;
 import android.os.IBinder;
 import android.provider.Settings;
@@ -31,6 +35,8 @@ import com.ibm.pi.core.Constants;
 import com.ibm.pi.core.PIAPIAdapter;
 import com.ibm.pi.core.PIAPICompletionHandler;
 import com.ibm.pi.core.PIAPIResult;
+import com.ibm.pi.core.PICallbackExecutors;
+import com.ibm.pi.core.PICircuitBreaker;
 import com.ibm.pi.core.PILogger;
 
 import org.altbeacon.beacon.Beacon;
@@ -42,13 +48,28 @@ import org.altbeacon.beacon.RangeNotifier;
 import org.altbeacon.beacon.Region;
 import org.altbeacon.beacon.powersave.BackgroundPowerSaver;
 
+import java.io.File;
 import java.net.HttpURLConnection;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 
 public class PIBeaconSensorService extends Service implements BeaconConsumer {
     private static final String TAG = PIBeaconSensorService.class.getSimpleName();
 
+    private static final String QUEUE_DIRECTORY = "pi-bnm-queue";
+    // sightings replayed per bnm post while draining the queue
+    private static final int MAX_REPLAY_BATCH_SIZE = 100;
+    private static final long MAX_REPLAY_BATCH_BYTES = 64 * 1024; /* bytes */
+    // a failed post is retried after this, doubling on every failure in a row
+    private static final long INITIAL_RETRY_DELAY = 5000; /* milliseconds */
+    private static final long MAX_RETRY_DELAY = 5 * 60 * 1000; /* milliseconds */
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
     private Context mContext;
     private SharedPreferences mPrefs;
     private BackgroundPowerSaver mBackgroundPowerSaver;
@@ -57,11 +78,31 @@ public class PIBeaconSensorService extends Service implements BeaconConsumer {
     private RegionManager mRegionManager;
 
     private volatile long mSendInterval = 5000l;
+    // sightings are sent once any of these is reached, by default every send interval goes out on its own
+    private volatile int mBatchMaxCount = 1;
+    private volatile long mBatchMaxBytes = 0;
+    private volatile long mBatchMaxLatency = 0;
     private volatile long mBackgroundScanPeriod = 1100l;
     private volatile long mBackgroundBetweenScanPeriod = 60000l;
     private long mLastSendTime = 0;
     private long mCurrentTime = 0;
     private String mDeviceDescriptor;
+    // picks the beacons reported each cycle, only used on the main thread
+    private final PIBeaconSelector mBeaconSelector = new PIBeaconSelector();
+    // skips cycles that report nothing new, only used on the main thread
+    private final PIBeaconChangeDetector mChangeDetector = new PIBeaconChangeDetector();
+
+    // sightings wait on disk until the connector accepted them, all queue work happens on this thread
+    private final ScheduledExecutorService mQueueExecutor = Executors.newSingleThreadScheduledExecutor();
+    private PIBeaconQueue mQueue;
+    private boolean mDraining = false;
+    // the batch being collected
+    private int mBatchCount = 0;
+    private long mBatchBytes = 0;
+    private ScheduledFuture<?> mBatchTimeout;
+    // the drain scheduled after a failed post
+    private ScheduledFuture<?> mRetryDrain;
+    private long mRetryDelay = INITIAL_RETRY_DELAY;
 
     @Override
     public IBinder onBind(Intent intent) {
@@ -70,9 +111,7 @@ public class PIBeaconSensorService extends Service implements BeaconConsumer {
 
     @Override
     public int onStartCommand(Intent intent, int flags, int startId) {
-        PILogger.d(TAG, "intent: " + intent);
-        PILogger.d(TAG, "flags: " + flags);
-        PILogger.d(TAG, "startId: " + startId);
+        PILogger.d(TAG, "intent: {}, flags: {}, startId: {}", intent, flags, startId);
 
         if (mBackgroundPowerSaver == null) {
             // set up for background ranging and monitoring
@@ -104,9 +143,20 @@ public class PIBeaconSensorService extends Service implements BeaconConsumer {
         mPrefs = this.getSharedPreferences(Constants.PI_SHARED_PREFS, Context.MODE_PRIVATE);
 
         setupDescriptor();
-        PILogger.enableDebugMode(true);
+        registerReceiver(mConnectivityReceiver, new IntentFilter(ConnectivityManager.CONNECTIVITY_ACTION));
     }
 
+    // replays the sightings queued while offline as soon as the network is back
+    private BroadcastReceiver mConnectivityReceiver = new BroadcastReceiver() {
+        @Override
+        public void onReceive(Context context, Intent intent) {
+            if (isConnected()) {
+                PILogger.d(TAG, "network is back, draining queued sightings");
+                scheduleDrain();
+            }
+        }
+    };
+
     private SharedPreferences.OnSharedPreferenceChangeListener sharedPreferenceChangeListener = new
             SharedPreferences.OnSharedPreferenceChangeListener() {
                 @Override
@@ -137,24 +187,54 @@ public class PIBeaconSensorService extends Service implements BeaconConsumer {
         if (extras != null) {
             if (extras.containsKey(PIBeaconSensor.ADAPTER_KEY)) {
                 mPiApiAdapter = (PIAPIAdapter) extras.get(PIBeaconSensor.ADAPTER_KEY);
+                // the service has no UI, don't hop to the main thread just to log a response
+                mPiApiAdapter.setCallbackExecutor(PICallbackExecutors.inline());
+                // get the handshakes out of the way before the first beacon notification
+                mPiApiAdapter.warmUpConnector();
+                // sightings left over from the last run
+                scheduleDrain();
             }
             if (extras.containsKey(PIBeaconSensor.SEND_INTERVAL_KEY)) {
-                PILogger.d(TAG, "updating send interval to: " + mSendInterval);
+                PILogger.d(TAG, "updating send interval to: {}", mSendInterval);
                 mSendInterval = extras.getLong(PIBeaconSensor.SEND_INTERVAL_KEY);
             }
+            if (extras.containsKey(PIBeaconSensor.BATCH_MAX_COUNT_KEY)) {
+                mBatchMaxCount = Math.max(1, extras.getInt(PIBeaconSensor.BATCH_MAX_COUNT_KEY));
+                mBatchMaxBytes = extras.getLong(PIBeaconSensor.BATCH_MAX_BYTES_KEY, 0);
+                mBatchMaxLatency = extras.getLong(PIBeaconSensor.BATCH_MAX_LATENCY_KEY, 0);
+                PILogger.d(TAG, "updating batching to maxCount: {}, maxBytes: {}, maxLatency: {}",
+                        mBatchMaxCount, mBatchMaxBytes, mBatchMaxLatency);
+            }
+            if (extras.containsKey(PIBeaconSensor.PAYLOAD_MODE_KEY)) {
+                PIBeaconSensor.PayloadMode mode = PIBeaconSensor.PayloadMode.valueOf(
+                        extras.getString(PIBeaconSensor.PAYLOAD_MODE_KEY));
+                int parameter = extras.getInt(PIBeaconSensor.PAYLOAD_MODE_PARAMETER_KEY);
+                PILogger.d(TAG, "updating payload mode to: {} ({})", mode, parameter);
+                mBeaconSelector.configure(mode, parameter);
+            }
+            if (extras.containsKey(PIBeaconSensor.CHANGE_DETECTION_KEY)) {
+                boolean enable = extras.getBoolean(PIBeaconSensor.CHANGE_DETECTION_KEY);
+                int rssiHysteresis = extras.getInt(PIBeaconSensor.RSSI_HYSTERESIS_KEY,
+                        PIBeaconChangeDetector.DEFAULT_RSSI_HYSTERESIS);
+                long heartbeatInterval = extras.getLong(PIBeaconSensor.HEARTBEAT_INTERVAL_KEY,
+                        PIBeaconChangeDetector.DEFAULT_HEARTBEAT_INTERVAL_IN_MILLISECONDS);
+                PILogger.d(TAG, "updating change detection to: {}, rssiHysteresis: {}, heartbeatInterval: {}",
+                        enable, rssiHysteresis, heartbeatInterval);
+                mChangeDetector.configure(enable, rssiHysteresis, heartbeatInterval);
+            }
             if (extras.containsKey(PIBeaconSensor.BEACON_LAYOUT_KEY)) {
                 String beaconLayout = intent.getStringExtra(PIBeaconSensor.BEACON_LAYOUT_KEY);
-                PILogger.d(TAG, "adding beacon layout: " + beaconLayout);
+                PILogger.d(TAG, "adding beacon layout: {}", beaconLayout);
                 mBeaconManager.getBeaconParsers().add(new BeaconParser()
                         .setBeaconLayout(beaconLayout));
             }
             if (extras.containsKey(PIBeaconSensor.BACKGROUND_SCAN_PERIOD_KEY)) {
-                PILogger.d(TAG, "updating background scan period to: " + mBackgroundScanPeriod);
+                PILogger.d(TAG, "updating background scan period to: {}", mBackgroundScanPeriod);
                 mBackgroundScanPeriod = extras.getLong(PIBeaconSensor.BACKGROUND_SCAN_PERIOD_KEY);
                 mBeaconManager.setBackgroundScanPeriod(mBackgroundScanPeriod);
             }
             if (extras.containsKey(PIBeaconSensor.BACKGROUND_BETWEEN_SCAN_PERIOD_KEY)) {
-                PILogger.d(TAG, "updating background between scan period to: " + mBackgroundBetweenScanPeriod);
+                PILogger.d(TAG, "updating background between scan period to: {}", mBackgroundBetweenScanPeriod);
                 mBackgroundBetweenScanPeriod = extras.getLong(PIBeaconSensor.BACKGROUND_BETWEEN_SCAN_PERIOD_KEY);
                 mBeaconManager.setBackgroundBetweenScanPeriod(mBackgroundBetweenScanPeriod);
             }
@@ -182,7 +262,7 @@ public class PIBeaconSensorService extends Service implements BeaconConsumer {
         mBeaconManager.setMonitorNotifier(new MonitorNotifier() {
             @Override
             public void didEnterRegion(Region region) {
-                PILogger.d(TAG, "entered region: " + region);
+                PILogger.d(TAG, "entered region: {}", region);
                 mRegionManager.handleEnterRegion(region);
 
                 // send enter region event to listener callback
@@ -194,7 +274,7 @@ public class PIBeaconSensorService extends Service implements BeaconConsumer {
 
             @Override
             public void didExitRegion(Region region) {
-                PILogger.d(TAG, "exited region: " + region);
+                PILogger.d(TAG, "exited region: {}", region);
                 mRegionManager.handleExitRegion(region);
 
                 // send exit region event to listener callback
@@ -235,14 +315,20 @@ public class PIBeaconSensorService extends Service implements BeaconConsumer {
                     if (result.getResponseCode() == 200) {
                         ArrayList<String> uuids = (ArrayList<String>) result.getResult();
                         if (uuids.size() > 0) {
-                            String uuid = (String) uuids.get(0);
-                            mRegionManager.add(uuid);
+                            final String uuid = (String) uuids.get(0);
+                            // region bookkeeping happens on the main thread, along with the beacon callbacks
+                            PICallbackExecutors.mainThread().execute(new Runnable() {
+                                @Override
+                                public void run() {
+                                    mRegionManager.add(uuid);
+                                }
+                            });
                             mPrefs.edit().putString(PIBeaconSensor.UUID_KEY, uuid).apply();
                         } else {
                             PILogger.e(TAG, "Call to Management server returned an empty array of proximity UUIDs");
                         }
                     } else {
-                        PILogger.e(TAG, result.toString());
+                        PILogger.e(TAG, "{}", result);
                     }
                 }
             });
@@ -250,23 +336,150 @@ public class PIBeaconSensorService extends Service implements BeaconConsumer {
     }
 
     private void sendBeaconNotification(Collection<Beacon> beacons) {
-        PILogger.d(TAG, "sending beacon notification message");
+        if (mChangeDetector.shouldSend(beacons, mCurrentTime)) {
+            enqueueBeaconNotification(beacons);
+        } else {
+            PILogger.d(TAG, "nothing changed, skipping beacon notification message");
+        }
 
-        JSONObject payload = buildBeaconPayload(beacons);
-        mPiApiAdapter.sendBeaconNotificationMessage(payload, new PIAPICompletionHandler() {
+        // send beacons in range event to listener callback
+        Intent intent = new Intent(PIBeaconSensor.INTENT_RECEIVER_BEACON_COLLECTION);
+        intent.putParcelableArrayListExtra(PIBeaconSensor.INTENT_EXTRA_BEACONS_IN_RANGE, new ArrayList<Beacon>(beacons));
+
+        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+    }
+
+    private void enqueueBeaconNotification(Collection<Beacon> beacons) {
+        final JSONObject payload = buildBeaconPayload(beacons);
+        runOnQueueThread(new Runnable() {
             @Override
-            public void onComplete(PIAPIResult result) {
-                if (result.getResponseCode() >= HttpURLConnection.HTTP_BAD_REQUEST) {
-                    PILogger.e(TAG, result.toString());
+            public void run() {
+                JSONArray sightings = (JSONArray) payload.get("bnm");
+                mBatchBytes += getQueue().append(sightings);
+                mBatchCount += sightings.size();
+                if (mBatchCount >= mBatchMaxCount || (mBatchMaxBytes > 0 && mBatchBytes >= mBatchMaxBytes)) {
+                    drainQueue();
+                } else if (mBatchTimeout == null && mBatchMaxLatency > 0) {
+                    // the oldest sighting of the batch must not wait longer than this
+                    mBatchTimeout = mQueueExecutor.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            mBatchTimeout = null;
+                            drainQueue();
+                        }
+                    }, mBatchMaxLatency, TimeUnit.MILLISECONDS);
                 }
             }
         });
+    }
 
-        // send beacons in range event to listener callback
-        Intent intent = new Intent(PIBeaconSensor.INTENT_RECEIVER_BEACON_COLLECTION);
-        intent.putParcelableArrayListExtra(PIBeaconSensor.INTENT_EXTRA_BEACONS_IN_RANGE, new ArrayList<Beacon>(beacons));
+    private void scheduleDrain() {
+        runOnQueueThread(new Runnable() {
+            @Override
+            public void run() {
+                drainQueue();
+            }
+        });
+    }
 
-        LocalBroadcastManager.getInstance(this).sendBroadcast(intent);
+    // sends the oldest queued sightings as one bnm post, and keeps going until the queue is empty or a post fails
+    private void drainQueue() {
+        if (mDraining || mPiApiAdapter == null || !isConnected()) {
+            return;
+        }
+        PICircuitBreaker connectorCircuit = mPiApiAdapter.getConnectorCircuitBreaker();
+        if (connectorCircuit.getState() == PICircuitBreaker.State.OPEN) {
+            // the connector is failing, hold off until the circuit lets a probe through
+            PILogger.d(TAG, "connector circuit open, keeping sightings queued for another {}ms",
+                    connectorCircuit.getRemainingOpenTime());
+            scheduleRetry(connectorCircuit.getRemainingOpenTime());
+            return;
+        }
+        final PIBeaconQueue.Batch batch = getQueue().peek(Math.max(MAX_REPLAY_BATCH_SIZE, mBatchMaxCount),
+                Math.max(MAX_REPLAY_BATCH_BYTES, mBatchMaxBytes));
+        if (batch.isEmpty()) {
+            // whatever was left had aged out
+            getQueue().commit(batch);
+            return;
+        }
+
+        PILogger.d(TAG, "sending beacon notification message with {} sightings", batch.elements.size());
+        mDraining = true;
+        // everything queued goes out now, the next sighting starts a new batch
+        mBatchCount = 0;
+        mBatchBytes = 0;
+        if (mBatchTimeout != null) {
+            mBatchTimeout.cancel(false);
+            mBatchTimeout = null;
+        }
+        JSONObject payload = new JSONObject();
+        payload.put("bnm", batch.elements);
+        mPiApiAdapter.sendBeaconNotificationMessage(payload, new PIAPICompletionHandler() {
+            @Override
+            public void onComplete(final PIAPIResult result) {
+                runOnQueueThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        mDraining = false;
+                        int responseCode = result.getResponseCode();
+                        if (responseCode >= HttpURLConnection.HTTP_OK && responseCode < HttpURLConnection.HTTP_MULT_CHOICE) {
+                            mRetryDelay = INITIAL_RETRY_DELAY;
+                            getQueue().commit(batch);
+                            drainQueue();
+                        } else if (responseCode >= HttpURLConnection.HTTP_BAD_REQUEST
+                                && responseCode < HttpURLConnection.HTTP_INTERNAL_ERROR
+                                && responseCode != HttpURLConnection.HTTP_CLIENT_TIMEOUT
+                                && responseCode != HTTP_TOO_MANY_REQUESTS) {
+                            // the connector will never take these, don't let them block the queue
+                            PILogger.e(TAG, "connector rejected {} sightings, dropping them: {}", batch.elements.size(), result);
+                            getQueue().commit(batch);
+                            drainQueue();
+                        } else {
+                            PILogger.e(TAG, "could not send sightings, retrying in {}ms: {}", mRetryDelay, result);
+                            scheduleRetry(mRetryDelay);
+                            mRetryDelay = Math.min(mRetryDelay * 2, MAX_RETRY_DELAY);
+                        }
+                    }
+                });
+            }
+        });
+    }
+
+    // drains again after the delay, unless a retry is already scheduled.  Only called on the queue thread.
+    private void scheduleRetry(long delay) {
+        if (mRetryDrain != null) {
+            return;
+        }
+        mRetryDrain = mQueueExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                mRetryDrain = null;
+                drainQueue();
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void runOnQueueThread(Runnable runnable) {
+        try {
+            mQueueExecutor.execute(runnable);
+        } catch (RejectedExecutionException e) {
+            // the service is shutting down, whatever is queued is on disk already
+            PILogger.d(TAG, "service stopped, not touching the queue");
+        }
+    }
+
+    private PIBeaconQueue getQueue() {
+        if (mQueue == null) {
+            mQueue = new PIBeaconQueue(new File(getFilesDir(), QUEUE_DIRECTORY),
+                    PIBeaconQueue.DEFAULT_MAX_SIZE_IN_BYTES, PIBeaconQueue.DEFAULT_MAX_AGE_IN_MILLISECONDS);
+        }
+        return mQueue;
+    }
+
+    private boolean isConnected() {
+        ConnectivityManager connectivityManager = (ConnectivityManager) getSystemService(Context.CONNECTIVITY_SERVICE);
+        NetworkInfo networkInfo = connectivityManager != null ? connectivityManager.getActiveNetworkInfo() : null;
+        return networkInfo != null && networkInfo.isConnected();
     }
 
     private JSONObject buildBeaconPayload(Collection<Beacon> beacons) {
@@ -274,19 +487,15 @@ public class PIBeaconSensorService extends Service implements BeaconConsumer {
         JSONObject payload = new JSONObject();
         JSONArray beaconArray = new JSONArray();
 
-        // build payload with nearest beacon only
-        Beacon nearestBeacon = beacons.iterator().next();
-        for (Beacon b : beacons) {
-            if (b.getDistance() < nearestBeacon.getDistance()) {
-                nearestBeacon = b;
-            }
+        // build payload with the beacons picked by the payload mode
+        int selected = mBeaconSelector.select(beacons);
+        for (int i = 0; i < selected; i++) {
+            PIBeaconData data = new PIBeaconData(mBeaconSelector.get(i));
+            data.setDetectedTime(detectedTime);
+            data.setDeviceDescriptor(mDeviceDescriptor);
+            beaconArray.add(data.getBeaconAsJson());
         }
 
-        PIBeaconData data = new PIBeaconData(nearestBeacon);
-        data.setDetectedTime(detectedTime);
-        data.setDeviceDescriptor(mDeviceDescriptor);
-        beaconArray.add(data.getBeaconAsJson());
-
         payload.put("bnm", beaconArray);
 
         return payload;
@@ -295,6 +504,23 @@ public class PIBeaconSensorService extends Service implements BeaconConsumer {
     @Override
     public void onDestroy() {
         mBeaconManager.unbind(this);
+        unregisterReceiver(mConnectivityReceiver);
+        // queued sightings are on disk, they are sent by the next run of the service
+        runOnQueueThread(new Runnable() {
+            @Override
+            public void run() {
+                // scheduled drains would otherwise still run after the shutdown
+                if (mRetryDrain != null) {
+                    mRetryDrain.cancel(false);
+                    mRetryDrain = null;
+                }
+                if (mBatchTimeout != null) {
+                    mBatchTimeout.cancel(false);
+                    mBatchTimeout = null;
+                }
+            }
+        });
+        mQueueExecutor.shutdown();
         super.onDestroy();
     }
 }
@@ -48,26 +48,26 @@ class RegionManager {
     private final int maxRegions = 19;
 
     public RegionManager(BeaconManager manager) {
-        PILogger.d(TAG, "initializing region manager with maxRegions: " + maxRegions);
+        PILogger.d(TAG, "initializing region manager with maxRegions: {}", maxRegions);
         mBeaconManager = manager;
     }
 
     public void add(String uuid) {
-        PILogger.d(TAG, "adding uuid region: " + uuid);
+        PILogger.d(TAG, "adding uuid region: {}", uuid);
         Region uuidRegion = new Region(uuid, Identifier.parse(uuid), null, null);
         handleAddUuidRegion(uuidRegion);
     }
 
     // creates a beacon region based off of beacon object
     public void add(Beacon beacon) {
-        PILogger.d(TAG, "adding beacon region for beacon: " + beacon.toString());
+        PILogger.d(TAG, "adding beacon region for beacon: {}", beacon);
         String uniqueId = beacon.getId2().toString() + beacon.getId3().toString();
         Region beaconRegion = new Region(uniqueId, beacon.getId1(), beacon.getId2(), beacon.getId3());
         handleAddBeaconRegion(beaconRegion);
     }
 
     public void remove(Region region) {
-        PILogger.d(TAG, "removing region: " + region.toString());
+        PILogger.d(TAG, "removing region: {}", region);
         if (region.getId1() != null && region.getId2() != null && region.getId3() != null) {
             // remove beacon region
             try {
@@ -82,7 +82,7 @@ class RegionManager {
     }
 
     public void removeUuidRegion(Region region) {
-        PILogger.d(TAG, "removing region: " + region.toString());
+        PILogger.d(TAG, "removing region: {}", region);
         if (region.getId1() != null && region.getId2() == null && region.getId3() == null) {
             try {
                 mBeaconManager.stopMonitoringBeaconsInRegion(region);
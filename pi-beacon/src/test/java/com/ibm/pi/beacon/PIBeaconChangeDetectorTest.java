@@ -0,0 +1,115 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.beacon;
+
+import org.altbeacon.beacon.Beacon;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks which ranging cycles PIBeaconChangeDetector lets through.
+ */
+public class PIBeaconChangeDetectorTest {
+    private static final long HEARTBEAT_INTERVAL = 60000; /* milliseconds */
+    private static final long START = 1000000;
+
+    private final PIBeaconChangeDetector mDetector = new PIBeaconChangeDetector();
+
+    @Before
+    public void setUp() throws Exception {
+        mDetector.configure(true, PIBeaconChangeDetector.DEFAULT_RSSI_HYSTERESIS, HEARTBEAT_INTERVAL);
+    }
+
+    @Test
+    public void disabledSendsEveryCycle() throws Exception {
+        mDetector.configure(false, PIBeaconChangeDetector.DEFAULT_RSSI_HYSTERESIS, HEARTBEAT_INTERVAL);
+        assertTrue(mDetector.shouldSend(cycle(new TestBeacon(1, 2.0, -60)), START));
+        assertTrue(mDetector.shouldSend(cycle(new TestBeacon(1, 2.0, -60)), START + 1));
+    }
+
+    @Test
+    public void unchangedCycleIsSkipped() throws Exception {
+        assertTrue(mDetector.shouldSend(cycle(new TestBeacon(1, 2.0, -60)), START));
+        assertFalse(mDetector.shouldSend(cycle(new TestBeacon(1, 2.0, -60)), START + 1000));
+        // beacons other than the nearest don't matter
+        assertFalse(mDetector.shouldSend(cycle(new TestBeacon(1, 2.0, -60), new TestBeacon(2, 6.0, -75)), START + 2000));
+    }
+
+    @Test
+    public void rssiInsideHysteresisIsSkipped() throws Exception {
+        assertTrue(mDetector.shouldSend(cycle(new TestBeacon(1, 2.0, -60)), START));
+        assertFalse(mDetector.shouldSend(cycle(new TestBeacon(1, 2.0, -68)), START + 1000));
+        assertFalse(mDetector.shouldSend(cycle(new TestBeacon(1, 2.0, -52)), START + 2000));
+        assertTrue(mDetector.shouldSend(cycle(new TestBeacon(1, 2.0, -69)), START + 3000));
+    }
+
+    @Test
+    public void slowDriftIsMeasuredFromTheLastSend() throws Exception {
+        assertTrue(mDetector.shouldSend(cycle(new TestBeacon(1, 2.0, -60)), START));
+        assertFalse(mDetector.shouldSend(cycle(new TestBeacon(1, 2.0, -65)), START + 1000));
+        assertFalse(mDetector.shouldSend(cycle(new TestBeacon(1, 2.0, -68)), START + 2000));
+        assertTrue(mDetector.shouldSend(cycle(new TestBeacon(1, 2.0, -71)), START + 3000));
+        // and the band moves with the send
+        assertFalse(mDetector.shouldSend(cycle(new TestBeacon(1, 2.0, -65)), START + 4000));
+    }
+
+    @Test
+    public void newNearestBeaconIsSent() throws Exception {
+        assertTrue(mDetector.shouldSend(cycle(new TestBeacon(1, 2.0, -60), new TestBeacon(2, 3.0, -62)), START));
+        assertTrue(mDetector.shouldSend(cycle(new TestBeacon(1, 3.0, -60), new TestBeacon(2, 2.0, -62)), START + 1000));
+    }
+
+    @Test
+    public void proximityChangeIsSent() throws Exception {
+        assertTrue(mDetector.shouldSend(cycle(new TestBeacon(1, 0.4, -60)), START));
+        // immediate to near, with the RSSI barely moving
+        assertTrue(mDetector.shouldSend(cycle(new TestBeacon(1, 0.6, -61)), START + 1000));
+        assertFalse(mDetector.shouldSend(cycle(new TestBeacon(1, 9.0, -61)), START + 2000));
+        assertTrue(mDetector.shouldSend(cycle(new TestBeacon(1, 11.0, -61)), START + 3000));
+    }
+
+    @Test
+    public void heartbeatIsSentWhenNothingChanges() throws Exception {
+        assertTrue(mDetector.shouldSend(cycle(new TestBeacon(1, 2.0, -60)), START));
+        assertFalse(mDetector.shouldSend(cycle(new TestBeacon(1, 2.0, -60)), START + HEARTBEAT_INTERVAL - 1));
+        assertTrue(mDetector.shouldSend(cycle(new TestBeacon(1, 2.0, -60)), START + HEARTBEAT_INTERVAL));
+        // the next heartbeat counts from the last send
+        assertFalse(mDetector.shouldSend(cycle(new TestBeacon(1, 2.0, -60)), START + 2 * HEARTBEAT_INTERVAL - 1));
+        assertTrue(mDetector.shouldSend(cycle(new TestBeacon(1, 2.0, -60)), START + 2 * HEARTBEAT_INTERVAL));
+    }
+
+    @Test
+    public void configureStartsOver() throws Exception {
+        assertTrue(mDetector.shouldSend(cycle(new TestBeacon(1, 2.0, -60)), START));
+        mDetector.configure(true, PIBeaconChangeDetector.DEFAULT_RSSI_HYSTERESIS, HEARTBEAT_INTERVAL);
+        assertTrue(mDetector.shouldSend(cycle(new TestBeacon(1, 2.0, -60)), START + 1000));
+    }
+
+    private static Collection<Beacon> cycle(Beacon... beacons) {
+        List<Beacon> cycle = new ArrayList<Beacon>();
+        for (Beacon beacon : beacons) {
+            cycle.add(beacon);
+        }
+        return cycle;
+    }
+}
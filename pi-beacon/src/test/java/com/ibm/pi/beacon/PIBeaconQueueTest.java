@@ -0,0 +1,176 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.beacon;
+
+import com.ibm.json.java.JSONArray;
+import com.ibm.json.java.JSONObject;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks that PIBeaconQueue hands out every sighting until it is committed, across reopens and
+ * crashes.
+ */
+public class PIBeaconQueueTest {
+    private File mDirectory;
+
+    @Before
+    public void setUp() throws Exception {
+        mDirectory = File.createTempFile("pi-bnm-queue", "");
+        assertTrue(mDirectory.delete() && mDirectory.mkdir());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        File[] files = mDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                file.delete();
+            }
+        }
+        mDirectory.delete();
+    }
+
+    @Test
+    public void batchStaysQueuedUntilCommitted() throws Exception {
+        PIBeaconQueue queue = open();
+        queue.append(sightings(0, 3));
+
+        assertMinors(queue.peek(10, Long.MAX_VALUE), 0, 3);
+        // peeking again without a commit hands out the same sightings
+        PIBeaconQueue.Batch batch = queue.peek(10, Long.MAX_VALUE);
+        assertMinors(batch, 0, 3);
+
+        queue.commit(batch);
+        assertFalse(queue.hasPending());
+        assertTrue(queue.peek(10, Long.MAX_VALUE).isEmpty());
+    }
+
+    @Test
+    public void batchIsCutAtCountAndSize() throws Exception {
+        PIBeaconQueue queue = open();
+        queue.append(sightings(0, 5));
+
+        PIBeaconQueue.Batch batch = queue.peek(2, Long.MAX_VALUE);
+        assertMinors(batch, 0, 2);
+        queue.commit(batch);
+        // one sighting goes out whatever its size
+        batch = queue.peek(10, 1);
+        assertMinors(batch, 2, 1);
+        queue.commit(batch);
+        assertMinors(queue.peek(10, Long.MAX_VALUE), 3, 2);
+    }
+
+    @Test
+    public void committedCursorSurvivesReopen() throws Exception {
+        PIBeaconQueue queue = open();
+        queue.append(sightings(0, 5));
+        queue.commit(queue.peek(2, Long.MAX_VALUE));
+        // a crash while saving the next cursor leaves its temp file behind
+        write(new File(mDirectory, "cursor.tmp"), new byte[] { 1, 2, 3 });
+
+        assertMinors(open().peek(10, Long.MAX_VALUE), 2, 3);
+    }
+
+    @Test
+    public void uncommittedBatchIsSentAgainAfterCrash() throws Exception {
+        PIBeaconQueue queue = open();
+        queue.append(sightings(0, 5));
+        queue.commit(queue.peek(1, Long.MAX_VALUE));
+        // sent but never acknowledged
+        queue.peek(2, Long.MAX_VALUE);
+
+        assertMinors(open().peek(10, Long.MAX_VALUE), 1, 4);
+    }
+
+    @Test
+    public void tornRecordIsCutOffOnReopen() throws Exception {
+        PIBeaconQueue queue = open();
+        queue.append(sightings(0, 2));
+        File segment = segment();
+        long valid = segment.length();
+        // the header of a record whose body never made it to disk
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(segment, true));
+        try {
+            out.writeInt(100);
+            out.writeLong(System.currentTimeMillis());
+        } finally {
+            out.close();
+        }
+
+        queue = open();
+        assertEquals(valid, segment.length());
+        assertMinors(queue.peek(10, Long.MAX_VALUE), 0, 2);
+        // sightings appended after the repair can be read
+        queue.append(sightings(2, 1));
+        assertMinors(queue.peek(10, Long.MAX_VALUE), 0, 3);
+    }
+
+    private PIBeaconQueue open() {
+        return new PIBeaconQueue(mDirectory, PIBeaconQueue.DEFAULT_MAX_SIZE_IN_BYTES,
+                PIBeaconQueue.DEFAULT_MAX_AGE_IN_MILLISECONDS);
+    }
+
+    private File segment() {
+        File[] segments = mDirectory.listFiles();
+        File found = null;
+        for (File file : segments) {
+            if (file.getName().endsWith(".seg")) {
+                assertNull("expected a single segment", found);
+                found = file;
+            }
+        }
+        assertNotNull(found);
+        return found;
+    }
+
+    private static JSONArray sightings(int firstMinor, int count) {
+        JSONArray sightings = new JSONArray();
+        for (int i = 0; i < count; i++) {
+            JSONObject sighting = new JSONObject();
+            sighting.put("major", "1");
+            sighting.put("minor", Integer.toString(firstMinor + i));
+            sightings.add(sighting);
+        }
+        return sightings;
+    }
+
+    private static void assertMinors(PIBeaconQueue.Batch batch, int firstMinor, int count) {
+        assertEquals(count, batch.elements.size());
+        for (int i = 0; i < count; i++) {
+            assertEquals(Integer.toString(firstMinor + i), ((JSONObject) batch.elements.get(i)).get("minor"));
+        }
+    }
+
+    private static void write(File file, byte[] bytes) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes);
+        } finally {
+            out.close();
+        }
+    }
+}
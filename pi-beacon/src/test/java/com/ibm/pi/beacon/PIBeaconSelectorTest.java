@@ -0,0 +1,146 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.beacon;
+
+import org.altbeacon.beacon.Beacon;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the beacons PIBeaconSelector picks in every payload mode.
+ */
+public class PIBeaconSelectorTest {
+    private static final int ROUNDS = 200;
+
+    private static final Comparator<Beacon> BY_DISTANCE = new Comparator<Beacon>() {
+        @Override
+        public int compare(Beacon lhs, Beacon rhs) {
+            return Double.compare(lhs.getDistance(), rhs.getDistance());
+        }
+    };
+
+    private static final Comparator<Beacon> BY_RSSI = new Comparator<Beacon>() {
+        @Override
+        public int compare(Beacon lhs, Beacon rhs) {
+            return rhs.getRssi() - lhs.getRssi();
+        }
+    };
+
+    private final PIBeaconSelector mSelector = new PIBeaconSelector();
+    private final Random mRandom = new Random(42);
+
+    @Test
+    public void nearestIsSelectedByDefault() throws Exception {
+        List<Beacon> beacons = new ArrayList<Beacon>();
+        beacons.add(new TestBeacon(1, 4.0, -80));
+        beacons.add(new TestBeacon(2, 0.4, -90));
+        beacons.add(new TestBeacon(3, 2.5, -60));
+
+        assertEquals(1, mSelector.select(beacons));
+        assertSame(beacons.get(1), mSelector.get(0));
+    }
+
+    @Test
+    public void topNByDistanceKeepsTheNearest() throws Exception {
+        mSelector.configure(PIBeaconSensor.PayloadMode.TOP_N_BY_DISTANCE, 5);
+        for (int round = 0; round < ROUNDS; round++) {
+            List<Beacon> beacons = randomBeacons(mRandom.nextInt(20) + 1);
+            assertSelected(beacons, BY_DISTANCE, 5);
+        }
+    }
+
+    @Test
+    public void topNByRssiKeepsTheStrongest() throws Exception {
+        mSelector.configure(PIBeaconSensor.PayloadMode.TOP_N_BY_RSSI, 3);
+        for (int round = 0; round < ROUNDS; round++) {
+            List<Beacon> beacons = randomBeacons(mRandom.nextInt(20) + 1);
+            assertSelected(beacons, BY_RSSI, 3);
+        }
+    }
+
+    @Test
+    public void allAboveRssiKeepsEveryBeaconOverTheThreshold() throws Exception {
+        mSelector.configure(PIBeaconSensor.PayloadMode.ALL_ABOVE_RSSI, -70);
+        List<Beacon> beacons = randomBeacons(50);
+        Set<Beacon> expected = new HashSet<Beacon>();
+        for (Beacon beacon : beacons) {
+            if (beacon.getRssi() >= -70) {
+                expected.add(beacon);
+            }
+        }
+
+        assertEquals(expected, selected(mSelector.select(beacons)));
+    }
+
+    @Test
+    public void selectReplacesThePreviousCycle() throws Exception {
+        mSelector.configure(PIBeaconSensor.PayloadMode.TOP_N_BY_DISTANCE, 3);
+        mSelector.select(randomBeacons(10));
+        List<Beacon> beacons = new ArrayList<Beacon>();
+        beacons.add(new TestBeacon(1, 8.0, -80));
+        beacons.add(new TestBeacon(2, 9.0, -85));
+
+        // fewer beacons than N, all of them and nothing left from the last cycle
+        assertEquals(new HashSet<Beacon>(beacons), selected(mSelector.select(beacons)));
+    }
+
+    // the selection must hold the same beacons as the head of a full sort
+    private void assertSelected(List<Beacon> beacons, Comparator<Beacon> order, int count) {
+        List<Beacon> sorted = new ArrayList<Beacon>(beacons);
+        Collections.sort(sorted, order);
+        Set<Beacon> expected = new HashSet<Beacon>(sorted.subList(0, Math.min(count, sorted.size())));
+
+        assertEquals(expected, selected(mSelector.select(beacons)));
+    }
+
+    private Set<Beacon> selected(int count) {
+        Set<Beacon> selected = new HashSet<Beacon>();
+        for (int i = 0; i < count; i++) {
+            selected.add(mSelector.get(i));
+        }
+        return selected;
+    }
+
+    // distances and RSSIs are distinct, so the expected selection is unambiguous
+    private List<Beacon> randomBeacons(int count) {
+        List<Beacon> beacons = new ArrayList<Beacon>();
+        List<Integer> distances = shuffledRanks(count);
+        List<Integer> rssis = shuffledRanks(count);
+        for (int i = 0; i < count; i++) {
+            beacons.add(new TestBeacon(i, 0.1 + distances.get(i) * 0.5, -40 - rssis.get(i)));
+        }
+        return beacons;
+    }
+
+    private List<Integer> shuffledRanks(int count) {
+        List<Integer> ranks = new ArrayList<Integer>();
+        for (int i = 0; i < count; i++) {
+            ranks.add(i);
+        }
+        Collections.shuffle(ranks, mRandom);
+        return ranks;
+    }
+}
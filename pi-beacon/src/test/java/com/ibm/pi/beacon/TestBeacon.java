@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.beacon;
+
+import org.altbeacon.beacon.Beacon;
+import org.altbeacon.beacon.Identifier;
+
+/**
+ * A beacon with a fixed distance and RSSI, for tests that don't range.  Equal only to itself.
+ */
+class TestBeacon extends Beacon {
+    private final Identifier mId1;
+    private final Identifier mId2;
+    private final Identifier mId3;
+    private final double mDistance;
+    private final int mRssi;
+
+    TestBeacon(int minor, double distance, int rssi) {
+        mId1 = Identifier.parse("a4950001-c5b1-4b44-b512-1370f02d74de");
+        mId2 = Identifier.parse("1");
+        mId3 = Identifier.parse(Integer.toString(minor));
+        mDistance = distance;
+        mRssi = rssi;
+    }
+
+    @Override
+    public Identifier getId1() {
+        return mId1;
+    }
+
+    @Override
+    public Identifier getId2() {
+        return mId2;
+    }
+
+    @Override
+    public Identifier getId3() {
+        return mId3;
+    }
+
+    @Override
+    public double getDistance() {
+        return mDistance;
+    }
+
+    @Override
+    public int getRssi() {
+        return mRssi;
+    }
+
+    // Beacon compares identifiers, tests tell beacons with the same ids apart
+    @Override
+    public boolean equals(Object that) {
+        return this == that;
+    }
+
+    @Override
+    public int hashCode() {
+        return System.identityHashCode(this);
+    }
+
+    @Override
+    public String toString() {
+        return "minor " + mId3 + " at " + mDistance + "m, " + mRssi + "dBm";
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+
+package com.ibm.pi.core;
+
+import android.test.AndroidTestCase;
+
+import com.ibm.json.java.JSONArray;
+import com.ibm.json.java.JSONObject;
+import com.ibm.pi.core.doctypes.PIDevice;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Compares reading a large devices document with PIDocumentReader against parsing it whole with
+ * JSON4J, the way list documents used to be read.  Peak heap and time are measured on the device, the
+ * numbers are printed to the test output.
+ */
+public class PIDocumentReaderBenchmark extends AndroidTestCase {
+    private static final int DEVICES = 5000;
+    private static final int RUNS = 3;
+    private static final long SAMPLE_INTERVAL_IN_MILLISECONDS = 1;
+
+    private byte[] mDocument;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mDocument = buildDocument(DEVICES).getBytes("UTF-8");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mDocument = null;
+        super.tearDown();
+    }
+
+    public void testStreamingAgainstTree() throws Exception {
+        // warm up both paths so neither pays for class loading
+        assertEquals(DEVICES, stream().size());
+        assertEquals(DEVICES, tree().size());
+
+        Measurement streamed = new Measurement();
+        Measurement parsed = new Measurement();
+        for (int i = 0; i < RUNS; i++) {
+            streamed.add(measure(new Reading() {
+                @Override
+                public List<PIDevice> read() throws Exception {
+                    return stream();
+                }
+            }));
+            parsed.add(measure(new Reading() {
+                @Override
+                public List<PIDevice> read() throws Exception {
+                    return tree();
+                }
+            }));
+        }
+
+        System.out.println(String.format("%d devices, %d KB document: streaming %dms peak %d KB, " +
+                        "JSON4J tree %dms peak %d KB",
+                DEVICES, mDocument.length / 1024, streamed.getTime(), streamed.getPeakHeap() / 1024,
+                parsed.getTime(), parsed.getPeakHeap() / 1024));
+    }
+
+    // the body read off the connection, as the adapter does for list documents
+    private List<PIDevice> stream() throws Exception {
+        return PIDocumentReader.readArray(new InputStreamReader(new ByteArrayInputStream(mDocument), "UTF-8"), "rows",
+                new PIDocumentReader.ElementFactory<PIDevice>() {
+                    @Override
+                    public PIDevice create(JSONObject device) {
+                        return new PIDevice(device);
+                    }
+                });
+    }
+
+    // the body read into a String and parsed whole
+    private List<PIDevice> tree() throws Exception {
+        JSONObject document = JSONObject.parse(new String(mDocument, "UTF-8"));
+        JSONArray rows = (JSONArray) document.get("rows");
+        ArrayList<PIDevice> devices = new ArrayList<PIDevice>(rows.size());
+        for (Object device : rows) {
+            devices.add(new PIDevice((JSONObject) device));
+        }
+        return devices;
+    }
+
+    private interface Reading {
+        List<PIDevice> read() throws Exception;
+    }
+
+    private static long[] measure(Reading reading) throws Exception {
+        Runtime runtime = Runtime.getRuntime();
+        System.gc();
+        System.runFinalization();
+        System.gc();
+        final long baseline = runtime.totalMemory() - runtime.freeMemory();
+        HeapSampler sampler = new HeapSampler();
+        sampler.start();
+        long start = System.nanoTime();
+        List<PIDevice> devices = reading.read();
+        long time = (System.nanoTime() - start) / 1000000;
+        long peak = sampler.finish();
+        assertEquals(DEVICES, devices.size());
+        return new long[] { time, Math.max(0, peak - baseline) };
+    }
+
+    // polls the used heap while a reading runs, the largest value seen is its peak
+    private static class HeapSampler extends Thread {
+        private volatile boolean mRunning = true;
+        private long mPeak;
+
+        @Override
+        public void run() {
+            Runtime runtime = Runtime.getRuntime();
+            while (mRunning) {
+                mPeak = Math.max(mPeak, runtime.totalMemory() - runtime.freeMemory());
+                try {
+                    Thread.sleep(SAMPLE_INTERVAL_IN_MILLISECONDS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        long finish() throws InterruptedException {
+            Runtime runtime = Runtime.getRuntime();
+            mRunning = false;
+            join();
+            return Math.max(mPeak, runtime.totalMemory() - runtime.freeMemory());
+        }
+    }
+
+    // keeps the best time and peak over the runs
+    private static class Measurement {
+        private long mTime = Long.MAX_VALUE;
+        private long mPeakHeap = Long.MAX_VALUE;
+
+        void add(long[] measurement) {
+            mTime = Math.min(mTime, measurement[0]);
+            mPeakHeap = Math.min(mPeakHeap, measurement[1]);
+        }
+
+        long getTime() {
+            return mTime;
+        }
+
+        long getPeakHeap() {
+            return mPeakHeap;
+        }
+    }
+
+    private static String buildDocument(int devices) {
+        StringBuilder document = new StringBuilder("{\"total_rows\":").append(devices).append(",\"rows\":[");
+        for (int i = 0; i < devices; i++) {
+            if (i > 0) {
+                document.append(',');
+            }
+            document.append("{\"@code\":\"device").append(i)
+                    .append("\",\"name\":\"Device ").append(i)
+                    .append("\",\"descriptor\":\"").append(String.format("%032x", i))
+                    .append("\",\"@descriptorType\":\"MAC\",\"registrationType\":\"Internal\",\"registered\":true")
+                    .append(",\"blacklist\":false,\"autoblacklist\":false")
+                    .append(",\"data\":{\"owner\":\"user").append(i).append("\",\"department\":\"floor ").append(i % 40)
+                    .append("\"},\"unencryptedData\":{\"model\":\"Nexus 5\",\"os\":\"Android 6.0\"}")
+                    .append(",\"@tenant\":\"tenant\",\"@org\":\"org\",\"@createdTime\":1450000000000")
+                    .append(",\"@updatedTime\":1450000000000}");
+        }
+        return document.append("]}").toString();
+    }
+}
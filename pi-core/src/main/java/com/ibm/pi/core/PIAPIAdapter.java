@@ -17,8 +17,7 @@
 package com.ibm.pi.core;
 
 import android.content.Context;
-import android.graphics.BitmapFactory;
-import android.os.AsyncTask;
+import android.graphics.Bitmap;
 import android.util.Base64;
 
 import com.ibm.json.java.JSONArray;
@@ -32,14 +31,36 @@ import com.ibm.pi.core.doctypes.PISite;
 import com.ibm.pi.core.doctypes.PIZone;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InterruptedIOException;
+import java.io.Reader;
 import java.io.Serializable;
+import java.io.StringReader;
+import java.io.UnsupportedEncodingException;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.io.File;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * This class provides an interface with the Presence Insights APIs.
@@ -58,9 +79,24 @@ public class PIAPIAdapter implements Serializable {
 
     private static final String JSON_ROWS = "rows";
     private static final String JSON_FEATURES = "features";
+    private static final String JSON_BNM = "bnm";
 
-    private static final int READ_TIMEOUT_IN_MILLISECONDS = 7000; /* milliseconds */
-    private static final int CONNECTION_TIMEOUT_IN_MILLISECONDS = 7000; /* milliseconds */
+    private static final String DOCUMENT_CACHE_DIRECTORY = "pi-documents";
+    private static final long DEFAULT_DOCUMENT_CACHE_SIZE_IN_BYTES = 2 * 1024 * 1024; /* bytes */
+    private static final long DEFAULT_DOCUMENT_CACHE_TTL_IN_MILLISECONDS = 60 * 60 * 1000; /* milliseconds */
+    private static final long DEFAULT_DOCUMENT_CACHE_MAX_STALE_IN_MILLISECONDS = 7 * 24 * 60 * 60 * 1000L; /* milliseconds */
+    // resources the document cache ttls are configured by, the last one found in the url path wins
+    private static final List<String> CACHEABLE_RESOURCES = Arrays.asList(
+            "orgs", "sites", "floors", "zones", "beacons", "sensors", "devices", "proximityUUID");
+
+    private static final String ENDPOINT_MAP = "map";
+    private static final String ENDPOINT_BNM = "bnm";
+
+    // a request slower than this percentile of its endpoint's latency gets hedged
+    private static final double HEDGE_PERCENTILE = 0.95;
+
+    private static final String ENCODING_GZIP = "gzip";
+    private static final int DEFAULT_COMPRESSION_THRESHOLD_IN_BYTES = 512; /* bytes */
 
     private final String mServerURL;
     private final String mServerURL_v2;
@@ -70,8 +106,29 @@ public class PIAPIAdapter implements Serializable {
 
     private final String mBasicAuth;
 
+    private boolean mCompressUploads = false;
+    private int mCompressionThresholdInBytes = DEFAULT_COMPRESSION_THRESHOLD_IN_BYTES;
+
+    private final File mCacheDirectory;
+    private boolean mDocumentCacheEnabled = false;
+    private long mDocumentCacheSizeInBytes = DEFAULT_DOCUMENT_CACHE_SIZE_IN_BYTES;
+    private long mDocumentCacheMaxStaleInMilliseconds = DEFAULT_DOCUMENT_CACHE_MAX_STALE_IN_MILLISECONDS;
+    private final HashMap<String, Long> mDocumentCacheTtls = new HashMap<String, Long>();
+
+    // the client is not serialized, a deserialized adapter attaches to the default client
+    private transient PIClient mClient;
+    // overrides the client's callback executor for this adapter only
+    private transient volatile Executor mCallbackExecutor;
+    // url -> callers waiting on the config document request in flight for it
+    private transient HashMap<String, InFlightDocument> mInFlightDocuments;
+
+    private PIRetryPolicy mRetryPolicy = new PIRetryPolicy();
+    private PITimeoutPolicy mTimeoutPolicy = new PITimeoutPolicy();
+    private boolean mHedgingEnabled = false;
+
     /**
-     * Constructor
+     * Constructor.  The adapter sends its requests through the default {@link PIClient}, so it shares
+     * its thread pools, connections and caches with every other adapter made this way.
      *
      * @param context Activity context
      * @param username username for tenant
@@ -81,92 +138,435 @@ public class PIAPIAdapter implements Serializable {
      * @param orgCode unique identifier for the organization
      */
     public PIAPIAdapter(Context context, String username, String password, String hostname, String tenantCode, String orgCode) {
+        this(PIClient.getDefault(), context, username, password, hostname, tenantCode, orgCode);
+    }
+
+    PIAPIAdapter(PIClient client, Context context, String username, String password, String hostname, String tenantCode, String orgCode) {
+        mClient = client;
         mBasicAuth = generateBasicAuth(username, password);
         mServerURL = hostname + MANAGEMENT_SERVER_PATH;
         mServerURL_v2 = hostname + MANAGEMENT_SERVER_PATH_v2;
         mConnectorURL = hostname + BEACON_CONNECTOR_PATH;
         mTenantCode = tenantCode;
         mOrgCode = orgCode;
+        mCacheDirectory = context != null ? context.getCacheDir() : null;
+
+        mDocumentCacheTtls.put("orgs", 24 * 60 * 60 * 1000L);
+        mDocumentCacheTtls.put("sites", 24 * 60 * 60 * 1000L);
+        mDocumentCacheTtls.put("floors", 24 * 60 * 60 * 1000L);
+        mDocumentCacheTtls.put("proximityUUID", 24 * 60 * 60 * 1000L);
+        mDocumentCacheTtls.put("devices", 5 * 60 * 1000L);
+    }
+
+    /**
+     *
+     * @return client whose thread pools, transport and caches this adapter uses.
+     */
+    public synchronized PIClient getClient() {
+        if (mClient == null) {
+            mClient = PIClient.getDefault();
+        }
+        return mClient;
+    }
+
+    /**
+     * Replaces the thread pools used to run requests.  Use this to tune the concurrency and queue depth
+     * of each lane.  The pools belong to the adapter's client, so this affects all adapters sharing it.
+     *
+     * @param requestExecutor executor to run requests on.
+     */
+    public void setRequestExecutor(PIRequestExecutor requestExecutor) {
+        getClient().setRequestExecutor(requestExecutor);
+    }
+
+    /**
+     *
+     * @return executor requests are run on.
+     */
+    public PIRequestExecutor getRequestExecutor() {
+        return getClient().getRequestExecutor();
+    }
+
+    /**
+     * Sets the executor this adapter's completion handlers are called on.  Responses are read and parsed
+     * on the request threads either way, only the completion handler runs on this executor.  Other adapters
+     * of the same client keep theirs, use {@link PIClient#setCallbackExecutor(Executor)} to change them all.
+     * This setting is not kept when the adapter is serialized.
+     *
+     * @param callbackExecutor executor to call back on, see {@link PICallbackExecutors}.  null to use the client's.
+     */
+    public void setCallbackExecutor(Executor callbackExecutor) {
+        mCallbackExecutor = callbackExecutor;
+    }
+
+    /**
+     *
+     * @return executor completion handlers are called on, the client's unless set on this adapter.
+     */
+    public Executor getCallbackExecutor() {
+        Executor callbackExecutor = mCallbackExecutor;
+        return callbackExecutor != null ? callbackExecutor : getClient().getCallbackExecutor();
+    }
+
+    /**
+     * Replaces the HTTP stack requests are sent through, for all adapters sharing this adapter's client.
+     *
+     * @param transport transport to send requests with.
+     */
+    public void setTransport(PIHttpTransport transport) {
+        getClient().setTransport(transport);
+    }
+
+    /**
+     *
+     * @return transport requests are sent through.
+     */
+    public PIHttpTransport getTransport() {
+        return getClient().getTransport();
+    }
+
+    /**
+     * Enables gzip compression of beacon notification message bodies.  Off by default since the
+     * connector has to accept gzip request bodies.
+     *
+     * @param enable enable or disable compression.
+     */
+    public void setUploadCompression(boolean enable) {
+        mCompressUploads = enable;
+    }
+
+    /**
+     * Sets the smallest body that gets compressed.  Below this, the gzip header and the CPU time
+     * cost more than they save.
+     *
+     * @param thresholdInBytes minimum body size in bytes.
+     */
+    public void setUploadCompressionThreshold(int thresholdInBytes) {
+        mCompressionThresholdInBytes = thresholdInBytes;
+    }
+
+    /**
+     *
+     * @return byte counters for the requests sent by all adapters sharing this adapter's client.
+     */
+    public PITransferStats getTransferStats() {
+        return getClient().getTransferStats();
+    }
+
+    /**
+     *
+     * @return per endpoint metrics of the requests sent by all adapters sharing this adapter's client.
+     */
+    public PIMetrics getMetrics() {
+        return getClient().getMetrics();
+    }
+
+    /**
+     * Sets how failed idempotent requests are retried.  Use {@link PIRetryPolicy#none()} to disable retries.
+     *
+     * @param retryPolicy policy to retry requests with.
+     */
+    public synchronized void setRetryPolicy(PIRetryPolicy retryPolicy) {
+        mRetryPolicy = retryPolicy;
+    }
+
+    /**
+     *
+     * @return policy failed requests are retried with.
+     */
+    public synchronized PIRetryPolicy getRetryPolicy() {
+        if (mRetryPolicy == null) {
+            mRetryPolicy = new PIRetryPolicy();
+        }
+        return mRetryPolicy;
+    }
+
+    /**
+     * Sets how request timeouts are chosen, e.g. to fix the timeout of an endpoint.
+     *
+     * @param timeoutPolicy policy to time requests out with.
+     */
+    public synchronized void setTimeoutPolicy(PITimeoutPolicy timeoutPolicy) {
+        mTimeoutPolicy = timeoutPolicy;
+    }
+
+    /**
+     *
+     * @return policy request timeouts are chosen with.
+     */
+    public synchronized PITimeoutPolicy getTimeoutPolicy() {
+        if (mTimeoutPolicy == null) {
+            mTimeoutPolicy = new PITimeoutPolicy();
+        }
+        return mTimeoutPolicy;
+    }
+
+    /**
+     * Enables hedging of single document reads like getZone, getBeacon and getDevice.  If one hasn't
+     * answered within the 95th percentile of its endpoint's latency, a duplicate is sent and whichever
+     * answers first is used, the other is aborted.  Disabled by default.
+     *
+     * @param enable true to hedge slow single document reads.
+     */
+    public void setRequestHedging(boolean enable) {
+        mHedgingEnabled = enable;
+    }
+
+    /**
+     * Caps the hedges sent by all adapters sharing this adapter's client to a fraction of the reads that
+     * could be hedged, so hedging can't pile load onto a backend that is slow for everyone.  Defaults to 0.05.
+     *
+     * @param ratio hedges allowed per hedgeable read, e.g. 0.05 allows one hedge for every twenty reads.
+     */
+    public void setHedgeBudget(double ratio) {
+        getClient().setHedgeBudget(ratio);
+    }
+
+    /**
+     * Emits android.os.Trace sections for every request and its connect, first byte, body and parse phases,
+     * so they show up in systrace and Perfetto captures.  Off by default.  The phase timings
+     * are attached to every {@link PIAPIResult} either way.
+     *
+     * @param enable true to emit trace sections.
+     */
+    public static void setTracingEnabled(boolean enable) {
+        PITrace.setEnabled(enable);
+    }
+
+    /**
+     * Limits the rate requests are sent to a group of endpoints at, for all adapters sharing this
+     * adapter's client.  No group is limited by default.
+     *
+     * @param group the endpoints to limit.
+     * @param rateLimiter limiter for the group, null to stop limiting it.
+     */
+    public void setRateLimiter(PIRateLimiter.Group group, PIRateLimiter rateLimiter) {
+        getClient().setRateLimiter(group, rateLimiter);
+    }
+
+    private PIRateLimiter getRateLimiter(URL url) {
+        String path = url.getPath();
+        PIRateLimiter.Group group;
+        if (path.contains(BEACON_CONNECTOR_PATH)) {
+            group = PIRateLimiter.Group.CONNECTOR;
+        } else if (path.contains(MANAGEMENT_SERVER_PATH_v2)) {
+            group = PIRateLimiter.Group.CONFIG_V2;
+        } else if (path.contains(MANAGEMENT_SERVER_PATH)) {
+            group = PIRateLimiter.Group.CONFIG_V1;
+        } else {
+            return null;
+        }
+        return getClient().getRateLimiter(group);
+    }
+
+    private ScheduledExecutorService getTimer() {
+        return getClient().getTimer();
+    }
+
+    /**
+     * The circuit breaker guarding the beacon connector.  While it is open, beacon notification
+     * messages fail right away, so senders should hold off until it closes again.
+     *
+     * @return circuit breaker of the beacon connector host.
+     */
+    public PICircuitBreaker getConnectorCircuitBreaker() {
+        try {
+            return getCircuitBreaker(new URL(mConnectorURL).getHost());
+        } catch (MalformedURLException e) {
+            e.printStackTrace();
+            return getCircuitBreaker("");
+        }
+    }
+
+    private PICircuitBreaker getCircuitBreaker(String host) {
+        return getClient().getCircuitBreaker(host);
+    }
+
+    /**
+     * Forgets the validators and parsed doctypes of all previously fetched config documents, so the
+     * next calls download them in full.  The validators are shared by all adapters of the client.
+     */
+    public void clearCache() {
+        getConditionalCache().clear();
+        PIDiskCache diskCache = getDiskCache();
+        if (diskCache != null) {
+            diskCache.clear();
+        }
+    }
+
+    /**
+     * Enables the on disk cache of config documents.  Documents are served straight from disk while
+     * they are younger than their ttl.  After that, they are still served right away while a fresh copy
+     * is fetched in the background, until they are older than the ttl plus the max stale time.  When
+     * the server can't be reached, the cached copy is served regardless of its age.
+     *
+     * Results served from the cache are marked with {@link PIAPIResult#getCacheStatus()}.
+     *
+     * @param enable enable or disable the document cache.
+     */
+    public void setDocumentCacheEnabled(boolean enable) {
+        mDocumentCacheEnabled = enable;
+    }
+
+    /**
+     * Sets the size budget of the document cache.  Must be called before the cache is first used.
+     *
+     * @param maxSizeInBytes maximum size of the cache on disk in bytes.
+     */
+    public void setDocumentCacheSize(long maxSizeInBytes) {
+        mDocumentCacheSizeInBytes = maxSizeInBytes;
+    }
+
+    /**
+     * Sets how long documents of a kind are served from the document cache without checking with
+     * the server.  Defaults to a day for orgs, sites, floors and proximity UUIDs, five minutes for
+     * devices and an hour for everything else.
+     *
+     * @param resource one of orgs, sites, floors, zones, beacons, sensors, devices or proximityUUID.
+     * @param ttlInMilliseconds time to live in ms.
+     */
+    public void setDocumentCacheTtl(String resource, long ttlInMilliseconds) {
+        mDocumentCacheTtls.put(resource, ttlInMilliseconds);
+    }
+
+    /**
+     * Sets how long past its ttl a document is still served while it is being revalidated.
+     *
+     * @param maxStaleInMilliseconds max stale time in ms.
+     */
+    public void setDocumentCacheMaxStale(long maxStaleInMilliseconds) {
+        mDocumentCacheMaxStaleInMilliseconds = maxStaleInMilliseconds;
+    }
+
+    private PIDiskCache getDiskCache() {
+        if (!mDocumentCacheEnabled || mCacheDirectory == null) {
+            return null;
+        }
+        return getClient().getDiskCache(new File(mCacheDirectory, DOCUMENT_CACHE_DIRECTORY), mDocumentCacheSizeInBytes);
+    }
+
+    private long getDocumentCacheTtl(URL url) {
+        Long ttl = mDocumentCacheTtls.get(getEndpoint(url));
+        return ttl != null ? ttl : DEFAULT_DOCUMENT_CACHE_TTL_IN_MILLISECONDS;
+    }
+
+    // the kind of resource a url is for, what timeouts and cache ttls are configured by
+    private static String getEndpoint(URL url) {
+        String path = url.getPath();
+        if (path.contains(BEACON_CONNECTOR_PATH)) {
+            return ENDPOINT_BNM;
+        }
+        if (path.endsWith("/" + ENDPOINT_MAP)) {
+            return ENDPOINT_MAP;
+        }
+        String resource = null;
+        for (String segment : path.split("/")) {
+            if (CACHEABLE_RESOURCES.contains(segment)) {
+                resource = segment;
+            }
+        }
+        return resource;
+    }
+
+    private PIConditionalCache getConditionalCache() {
+        return getClient().getConditionalCache();
+    }
+
+    /**
+     * Opens a connection to the beacon connector in the background, so the first beacon notification
+     * message doesn't pay for the TCP and TLS handshakes.  The connection is opened by posting a beacon
+     * notification message without any sightings, the only request the connector serves.
+     */
+    public void warmUpConnector() {
+        try {
+            final URL url = new URL(String.format("%s/tenants/%s/orgs/%s", mConnectorURL, mTenantCode, mOrgCode));
+            JSONObject payload = new JSONObject();
+            payload.put(JSON_BNM, new JSONArray());
+            final byte[] body = payload.toString().getBytes("UTF-8");
+            getRequestExecutor().getLane(PIRequestExecutor.Lane.UPLOAD, PIRequestExecutor.Priority.BACKGROUND).execute(new Runnable() {
+                @Override
+                public void run() {
+                    getTransport().warmUp(buildRequest(url, "POST", body));
+                }
+            });
+        } catch (MalformedURLException e) {
+            PILogger.e(TAG, "malformed connector url, skipping connector warm up: {}", mConnectorURL);
+        } catch (UnsupportedEncodingException e) {
+            PILogger.e(TAG, "UTF-8 is not supported, skipping connector warm up");
+        } catch (RejectedExecutionException e) {
+            PILogger.e(TAG, "upload lane is full, skipping connector warm up");
+        }
     }
 
     /**
      * Retrieves all the orgs of a tenant.  The tenant supplied in the PIAPIAdapter constructor.
      *
      * @param completionHandler callback for APIs asynchronous calls. Result returns as ArrayList&lt;{@link PIOrg PIOrg}&gt;.
+     * @return a future for the request, to cancel it or give it a deadline.
      */
-    public void getOrgs(final PIAPICompletionHandler completionHandler) {
+    public PIAPIFuture getOrgs(final PIAPICompletionHandler completionHandler) {
+        PIAPIFuture future = new PIAPIFuture(completionHandler, getCallbackExecutor(), getTimer());
         String orgs = String.format("%s/tenants/%s/orgs", mServerURL, mTenantCode);
         try {
             URL url = new URL(orgs);
-            GET(url, new PIAPICompletionHandler() {
+            GET_DOCUMENT(url, new ListParser<PIOrg>(JSON_ROWS, new PIDocumentReader.ElementFactory<PIOrg>() {
                 @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        JSONObject orgObj = result.getResultAsJson();
-                        JSONArray orgsArray = (JSONArray)orgObj.get(JSON_ROWS);
-                        ArrayList<PIOrg> orgs = new ArrayList<PIOrg>();
-                        for (Object org : orgsArray) {
-                            orgs.add(new PIOrg((JSONObject) org));
-                        }
-                        result.setResult(orgs);
-                    }
-                    completionHandler.onComplete(result);
+                public PIOrg create(JSONObject org) {
+                    return new PIOrg(org);
                 }
-            });
+            }), future);
         } catch (MalformedURLException e) {
             e.printStackTrace();
+            future.complete(malformedURL(e));
         }
+        return future;
     }
 
     /**
      * Retrieves an org within a tenant.
      *
      * @param completionHandler callback for APIs asynchronous calls. Result returns as {@link PIOrg PIOrg}.
+     * @return a future for the request, to cancel it or give it a deadline.
      */
-    public void getOrg(final PIAPICompletionHandler completionHandler) {
+    public PIAPIFuture getOrg(final PIAPICompletionHandler completionHandler) {
+        PIAPIFuture future = new PIAPIFuture(completionHandler, getCallbackExecutor(), getTimer());
         String org = String.format("%s/tenants/%s/orgs/%s", mServerURL, mTenantCode, mOrgCode);
         try {
             URL url = new URL(org);
-            GET(url, new PIAPICompletionHandler() {
+            GET_DOCUMENT(url, new DocumentParser() {
                 @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        result.setResult(new PIOrg(result.getResultAsJson()));
-                    }
-                    completionHandler.onComplete(result);
+                public Object parse(PIAPIResult result) {
+                    return new PIOrg(result.getResultAsJson());
                 }
-            });
+            }, future);
         } catch (MalformedURLException e) {
             e.printStackTrace();
+            future.complete(malformedURL(e));
         }
+        return future;
     }
 
     /**
      * Retrieves all the sites of an organization.
      * @param completionHandler callback for APIs asynchronous calls. Result returns as ArrayList&lt;{@link PISite PISite}&gt;.
+     * @return a future for the request, to cancel it or give it a deadline.
      */
-    public void getSites(final PIAPICompletionHandler completionHandler) {
+    public PIAPIFuture getSites(final PIAPICompletionHandler completionHandler) {
+        PIAPIFuture future = new PIAPIFuture(completionHandler, getCallbackExecutor(), getTimer());
         String sites = String.format("%s/tenants/%s/orgs/%s/sites", mServerURL, mTenantCode, mOrgCode);
         try {
             URL url = new URL(sites);
-            GET(url, new PIAPICompletionHandler() {
+            GET_DOCUMENT(url, new ListParser<PISite>(JSON_ROWS, new PIDocumentReader.ElementFactory<PISite>() {
                 @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        JSONObject siteObj = result.getResultAsJson();
-                        JSONArray sitesArray = (JSONArray)siteObj.get(JSON_ROWS);
-                        ArrayList<PISite> sites = new ArrayList<PISite>();
-                        for (Object site : sitesArray) {
-                            sites.add(new PISite((JSONObject) site));
-                        }
-                        result.setResult(sites);
-                    }
-                    completionHandler.onComplete(result);
+                public PISite create(JSONObject site) {
+                    return new PISite(site);
                 }
-            });
+            }), future);
         } catch (MalformedURLException e) {
             e.printStackTrace();
+            future.complete(malformedURL(e));
         }
+        return future;
     }
 
     /**
@@ -174,23 +574,24 @@ public class PIAPIAdapter implements Serializable {
      *
      * @param siteCode unique identifier for the site.
      * @param completionHandler callback for APIs asynchronous calls. Result returns as {@link PISite PISite}.
+     * @return a future for the request, to cancel it or give it a deadline.
      */
-    public void getSite(String siteCode, final PIAPICompletionHandler completionHandler) {
+    public PIAPIFuture getSite(String siteCode, final PIAPICompletionHandler completionHandler) {
+        PIAPIFuture future = new PIAPIFuture(completionHandler, getCallbackExecutor(), getTimer());
         String site = String.format("%s/tenants/%s/orgs/%s/sites/%s", mServerURL, mTenantCode, mOrgCode, siteCode);
         try {
             URL url = new URL(site);
-            GET(url, new PIAPICompletionHandler() {
+            GET_DOCUMENT(url, new DocumentParser() {
                 @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        result.setResult(new PISite(result.getResultAsJson()));
-                    }
-                    completionHandler.onComplete(result);
+                public Object parse(PIAPIResult result) {
+                    return new PISite(result.getResultAsJson());
                 }
-            });
+            }, future);
         } catch (MalformedURLException e) {
             e.printStackTrace();
+            future.complete(malformedURL(e));
         }
+        return future;
     }
 
     /**
@@ -198,29 +599,24 @@ public class PIAPIAdapter implements Serializable {
      *
      * @param siteCode unique identifier for the site.
      * @param completionHandler callback for APIs asynchronous calls. Result returns as ArrayList&lt;{@link PIFloor PIFloor}&gt;.
+     * @return a future for the request, to cancel it or give it a deadline.
      */
-    public void getFloors(String siteCode, final PIAPICompletionHandler completionHandler) {
+    public PIAPIFuture getFloors(String siteCode, final PIAPICompletionHandler completionHandler) {
+        PIAPIFuture future = new PIAPIFuture(completionHandler, getCallbackExecutor(), getTimer());
         String floors = String.format("%s/tenants/%s/orgs/%s/sites/%s/floors", mServerURL_v2, mTenantCode, mOrgCode, siteCode);
         try {
             URL url = new URL(floors);
-            GET(url, new PIAPICompletionHandler() {
+            GET_DOCUMENT(url, new ListParser<PIFloor>(JSON_FEATURES, new PIDocumentReader.ElementFactory<PIFloor>() {
                 @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        JSONObject floorObj = result.getResultAsJson();
-                        JSONArray floorsArray = (JSONArray)floorObj.get(JSON_FEATURES);
-                        ArrayList<PIFloor> floors = new ArrayList<PIFloor>();
-                        for (Object floor : floorsArray) {
-                            floors.add(new PIFloor((JSONObject) floor));
-                        }
-                        result.setResult(floors);
-                    }
-                    completionHandler.onComplete(result);
+                public PIFloor create(JSONObject floor) {
+                    return new PIFloor(floor);
                 }
-            });
+            }), future);
         } catch (MalformedURLException e) {
             e.printStackTrace();
+            future.complete(malformedURL(e));
         }
+        return future;
     }
 
     /**
@@ -229,52 +625,101 @@ public class PIAPIAdapter implements Serializable {
      * @param siteCode unique identifier for the site.
      * @param floorCode unique identifier for the floor.
      * @param completionHandler callback for APIs asynchronous calls. Result returns as {@link PIFloor PIFloor}.
+     * @return a future for the request, to cancel it or give it a deadline.
      */
-    public void getFloor(String siteCode, String floorCode, final PIAPICompletionHandler completionHandler) {
+    public PIAPIFuture getFloor(String siteCode, String floorCode, final PIAPICompletionHandler completionHandler) {
+        PIAPIFuture future = new PIAPIFuture(completionHandler, getCallbackExecutor(), getTimer());
         String floor = String.format("%s/tenants/%s/orgs/%s/sites/%s/floors/%s", mServerURL_v2, mTenantCode, mOrgCode, siteCode, floorCode);
         try {
             URL url = new URL(floor);
-            GET(url, new PIAPICompletionHandler() {
+            GET_DOCUMENT(url, new DocumentParser() {
                 @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        result.setResult(new PIFloor(result.getResultAsJson()));
-                    }
-                    completionHandler.onComplete(result);
+                public Object parse(PIAPIResult result) {
+                    return new PIFloor(result.getResultAsJson());
                 }
-            });
+            }, future);
         } catch (MalformedURLException e) {
             e.printStackTrace();
+            future.complete(malformedURL(e));
         }
+        return future;
     }
 
     /**
      * Retrieves all devices of an organization.
      *
      * @param completionHandler callback for APIs asynchronous calls. Result returns as ArrayList&lt;{@link PIDevice PIDevice}&gt;.
+     * @return a future for the request, to cancel it or give it a deadline.
      */
-    public void getDevices(final PIAPICompletionHandler completionHandler) {
+    public PIAPIFuture getDevices(final PIAPICompletionHandler completionHandler) {
+        PIAPIFuture future = new PIAPIFuture(completionHandler, getCallbackExecutor(), getTimer());
         String devices = String.format("%s/tenants/%s/orgs/%s/devices", mServerURL, mTenantCode, mOrgCode);
         try {
             URL url = new URL(devices);
-            GET(url, new PIAPICompletionHandler() {
+            GET_DOCUMENT(url, new ListParser<PIDevice>(JSON_ROWS, new PIDocumentReader.ElementFactory<PIDevice>() {
                 @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        JSONObject deviceObj = result.getResultAsJson();
-                        JSONArray devicesArray = (JSONArray)deviceObj.get(JSON_ROWS);
-                        ArrayList<PIDevice> devices = new ArrayList<PIDevice>();
-                        for (Object org : devicesArray) {
-                            devices.add(new PIDevice((JSONObject) org));
-                        }
-                        result.setResult(devices);
-                    }
-                    completionHandler.onComplete(result);
+                public PIDevice create(JSONObject org) {
+                    return new PIDevice(org);
                 }
-            });
+            }), future);
         } catch (MalformedURLException e) {
             e.printStackTrace();
+            future.complete(malformedURL(e));
         }
+        return future;
+    }
+
+    /**
+     * Walks all devices of an organization a page at a time.  Use this instead of
+     * {@link #getDevices(PIAPICompletionHandler)} for large organizations: only the page being
+     * consumed and the page being prefetched are held in memory.
+     *
+     * The iterator fetches pages as it goes and blocks while doing so, so iterate off the main thread.
+     *
+     * @param pageSize number of devices fetched per request.
+     * @return a lazy iterator over the devices of the organization.
+     */
+    public PIPagedIterator<PIDevice> iterateDevices(int pageSize) {
+        final ListParser<PIDevice> parser = new ListParser<PIDevice>(JSON_ROWS, new PIDocumentReader.ElementFactory<PIDevice>() {
+            @Override
+            public PIDevice create(JSONObject device) {
+                return new PIDevice(device);
+            }
+        });
+        return new PIPagedIterator<PIDevice>(new PIPagedIterator.PageLoader<PIDevice>() {
+            @Override
+            public PIAPIFuture loadPage(int page, int pageSize) {
+                // completes on the request thread, the iterator waits on it
+                final PIAPIFuture future = new PIAPIFuture(null);
+                String devices = String.format("%s/tenants/%s/orgs/%s/devices?pageSize=%d&page=%d",
+                        mServerURL, mTenantCode, mOrgCode, pageSize, page);
+                try {
+                    URL url = new URL(devices);
+                    ApiTask pageTask = new ApiTask();
+                    pageTask.streamParser = parser;
+                    execute(pageTask, PIRequestExecutor.Lane.CONFIG, PIRequestExecutor.Priority.BACKGROUND, url,
+                            future.child(new PIAPICompletionHandler() {
+                                @Override
+                                public void onComplete(PIAPIResult result) {
+                                    if (result.getResponseCode() == HttpURLConnection.HTTP_OK && !result.isParsed()
+                                            && result.getException() == null) {
+                                        try {
+                                            result.setResult(parser.parse(result));
+                                            result.setParsed(true);
+                                        } catch (IOException e) {
+                                            result.setException(e);
+                                        }
+                                    }
+                                    future.complete(result);
+                                }
+                            }), "GET", null);
+                } catch (MalformedURLException e) {
+                    e.printStackTrace();
+                    future.complete(malformedURL(e));
+                }
+                return future;
+            }
+        }, pageSize);
     }
 
     /**
@@ -282,23 +727,24 @@ public class PIAPIAdapter implements Serializable {
      *
      * @param deviceCode unique identifier for the device.
      * @param completionHandler callback for APIs asynchronous calls. Result returns as {@link PIDevice PIDevice}.
+     * @return a future for the request, to cancel it or give it a deadline.
      */
-    public void getDevice(String deviceCode, final PIAPICompletionHandler completionHandler) {
+    public PIAPIFuture getDevice(String deviceCode, final PIAPICompletionHandler completionHandler) {
+        PIAPIFuture future = new PIAPIFuture(completionHandler, getCallbackExecutor(), getTimer());
         String device = String.format("%s/tenants/%s/orgs/%s/devices/%s", mServerURL, mTenantCode, mOrgCode, deviceCode);
         try {
             URL url = new URL(device);
-            GET(url, new PIAPICompletionHandler() {
+            GET_DOCUMENT(url, new DocumentParser() {
                 @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        result.setResult(new PIDevice(result.getResultAsJson()));
-                    }
-                    completionHandler.onComplete(result);
+                public Object parse(PIAPIResult result) {
+                    return new PIDevice(result.getResultAsJson());
                 }
-            });
+            }, future);
         } catch (MalformedURLException e) {
             e.printStackTrace();
+            future.complete(malformedURL(e));
         }
+        return future;
     }
 
     /**
@@ -306,16 +752,18 @@ public class PIAPIAdapter implements Serializable {
      *
      * @param deviceDescriptor unique identifier for the device.
      * @param completionHandler callback for APIs asynchronous calls. Result returns as {@link PIDevice PIDevice}.
+     * @return a future for the request, to cancel it or give it a deadline.
      *
      * @deprecated use {@link #getDevice(String, PIAPICompletionHandler)}. When you register a device,
      * the method will return a PIDevice object that contains the device documents code.
      */
     @Deprecated
-    public void getDeviceByDescriptor(String deviceDescriptor, final PIAPICompletionHandler completionHandler) {
+    public PIAPIFuture getDeviceByDescriptor(String deviceDescriptor, final PIAPICompletionHandler completionHandler) {
+        final PIAPIFuture future = new PIAPIFuture(completionHandler, getCallbackExecutor(), getTimer());
         String device = String.format("%s/tenants/%s/orgs/%s/devices?rawDescriptor=%s", mServerURL, mTenantCode, mOrgCode, deviceDescriptor);
         try {
             URL url = new URL(device);
-            GET(url, new PIAPICompletionHandler() {
+            GET(url, PIRequestExecutor.Priority.INTERACTIVE, future.child(new PIAPICompletionHandler() {
                 @Override
                 public void onComplete(PIAPIResult result) {
                     if (result.getResponseCode() == 200) {
@@ -324,12 +772,14 @@ public class PIAPIAdapter implements Serializable {
                             result.setResult(new PIDevice((JSONObject) matchingDevices.get(0)));
                         }
                     }
-                    completionHandler.onComplete(result);
+                    future.complete(result);
                 }
-            });
+            }));
         } catch (MalformedURLException e) {
             e.printStackTrace();
+            future.complete(malformedURL(e));
         }
+        return future;
     }
 
     /**
@@ -338,29 +788,24 @@ public class PIAPIAdapter implements Serializable {
      * @param siteCode unique identifier for the site.
      * @param floorCode unique identifier for the floor.
      * @param completionHandler callback for APIs asynchronous calls. Result returns as ArrayList&lt;{@link PIZone PIZone}&gt;.
+     * @return a future for the request, to cancel it or give it a deadline.
      */
-    public void getZones(String siteCode, String floorCode, final PIAPICompletionHandler completionHandler) {
+    public PIAPIFuture getZones(String siteCode, String floorCode, final PIAPICompletionHandler completionHandler) {
+        PIAPIFuture future = new PIAPIFuture(completionHandler, getCallbackExecutor(), getTimer());
         String zones = String.format("%s/tenants/%s/orgs/%s/sites/%s/floors/%s/zones", mServerURL_v2, mTenantCode, mOrgCode, siteCode, floorCode);
         try {
             URL url = new URL(zones);
-            GET(url, new PIAPICompletionHandler() {
+            GET_DOCUMENT(url, new ListParser<PIZone>(JSON_FEATURES, new PIDocumentReader.ElementFactory<PIZone>() {
                 @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        JSONObject zoneObj = result.getResultAsJson();
-                        JSONArray zonesArray = (JSONArray)zoneObj.get(JSON_FEATURES);
-                        ArrayList<PIZone> zones = new ArrayList<PIZone>();
-                        for (Object zone : zonesArray) {
-                            zones.add(new PIZone((JSONObject) zone));
-                        }
-                        result.setResult(zones);
-                    }
-                    completionHandler.onComplete(result);
+                public PIZone create(JSONObject zone) {
+                    return new PIZone(zone);
                 }
-            });
+            }), future);
         } catch (MalformedURLException e) {
             e.printStackTrace();
+            future.complete(malformedURL(e));
         }
+        return future;
     }
 
     /**
@@ -370,23 +815,24 @@ public class PIAPIAdapter implements Serializable {
      * @param floorCode unique identifier for the floor.
      * @param zoneCode unique identifier for the zone.
      * @param completionHandler callback for APIs asynchronous calls. Result returns as {@link PIZone PIZone}.
+     * @return a future for the request, to cancel it or give it a deadline.
      */
-    public void getZone(String siteCode, String floorCode, String zoneCode, final PIAPICompletionHandler completionHandler) {
+    public PIAPIFuture getZone(String siteCode, String floorCode, String zoneCode, final PIAPICompletionHandler completionHandler) {
+        PIAPIFuture future = new PIAPIFuture(completionHandler, getCallbackExecutor(), getTimer());
         String zone = String.format("%s/tenants/%s/orgs/%s/sites/%s/floors/%s/zones/%s", mServerURL_v2, mTenantCode, mOrgCode, siteCode, floorCode, zoneCode);
         try {
             URL url = new URL(zone);
-            GET(url, new PIAPICompletionHandler() {
+            GET_DOCUMENT(url, new DocumentParser() {
                 @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        result.setResult(new PIZone(result.getResultAsJson()));
-                    }
-                    completionHandler.onComplete(result);
+                public Object parse(PIAPIResult result) {
+                    return new PIZone(result.getResultAsJson());
                 }
-            });
+            }, future);
         } catch (MalformedURLException e) {
             e.printStackTrace();
+            future.complete(malformedURL(e));
         }
+        return future;
     }
 
     /**
@@ -395,29 +841,24 @@ public class PIAPIAdapter implements Serializable {
      * @param siteCode unique identifier for the site.
      * @param floorCode unique identifier for the floor.
      * @param completionHandler callback for APIs asynchronous calls. Result returns as ArrayList&lt;{@link PIBeacon PIBeacon}&gt;.
+     * @return a future for the request, to cancel it or give it a deadline.
      */
-    public void getBeacons(String siteCode, String floorCode, final PIAPICompletionHandler completionHandler) {
+    public PIAPIFuture getBeacons(String siteCode, String floorCode, final PIAPICompletionHandler completionHandler) {
+        PIAPIFuture future = new PIAPIFuture(completionHandler, getCallbackExecutor(), getTimer());
         String beacons = String.format("%s/tenants/%s/orgs/%s/sites/%s/floors/%s/beacons", mServerURL_v2, mTenantCode, mOrgCode, siteCode, floorCode);
         try {
             URL url = new URL(beacons);
-            GET(url, new PIAPICompletionHandler() {
+            GET_DOCUMENT(url, new ListParser<PIBeacon>(JSON_FEATURES, new PIDocumentReader.ElementFactory<PIBeacon>() {
                 @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        JSONObject beaconObj = result.getResultAsJson();
-                        JSONArray beaconsArray = (JSONArray)beaconObj.get(JSON_FEATURES);
-                        ArrayList<PIBeacon> beacons = new ArrayList<PIBeacon>();
-                        for (Object beacon : beaconsArray) {
-                            beacons.add(new PIBeacon((JSONObject) beacon));
-                        }
-                        result.setResult(beacons);
-                    }
-                    completionHandler.onComplete(result);
+                public PIBeacon create(JSONObject beacon) {
+                    return new PIBeacon(beacon);
                 }
-            });
+            }), future);
         } catch (MalformedURLException e) {
             e.printStackTrace();
+            future.complete(malformedURL(e));
         }
+        return future;
     }
 
     /**
@@ -427,23 +868,24 @@ public class PIAPIAdapter implements Serializable {
      * @param floorCode unique identifier for the floor.
      * @param beaconCode unique identifier for the beacon.
      * @param completionHandler callback for APIs asynchronous calls. Result returns as {@link PIBeacon PIBeacon}.
+     * @return a future for the request, to cancel it or give it a deadline.
      */
-    public void getBeacon(String siteCode, String floorCode, String beaconCode, final PIAPICompletionHandler completionHandler) {
+    public PIAPIFuture getBeacon(String siteCode, String floorCode, String beaconCode, final PIAPICompletionHandler completionHandler) {
+        PIAPIFuture future = new PIAPIFuture(completionHandler, getCallbackExecutor(), getTimer());
         String beacon = String.format("%s/tenants/%s/orgs/%s/sites/%s/floors/%s/beacons/%s", mServerURL_v2, mTenantCode, mOrgCode, siteCode, floorCode, beaconCode);
         try {
             URL url = new URL(beacon);
-            GET(url, new PIAPICompletionHandler() {
+            GET_DOCUMENT(url, new DocumentParser() {
                 @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        result.setResult(new PIBeacon(result.getResultAsJson()));
-                    }
-                    completionHandler.onComplete(result);
+                public Object parse(PIAPIResult result) {
+                    return new PIBeacon(result.getResultAsJson());
                 }
-            });
+            }, future);
         } catch (MalformedURLException e) {
             e.printStackTrace();
+            future.complete(malformedURL(e));
         }
+        return future;
     }
 
     /**
@@ -452,29 +894,24 @@ public class PIAPIAdapter implements Serializable {
      * @param siteCode unique identifier for the site.
      * @param floorCode unique identifier for the floor.
      * @param completionHandler callback for APIs asynchronous calls.  Result returns as ArrayList&lt;{@link PISensor PISensor}&gt;.
+     * @return a future for the request, to cancel it or give it a deadline.
      */
-    public void getSensors(String siteCode, String floorCode, final PIAPICompletionHandler completionHandler) {
+    public PIAPIFuture getSensors(String siteCode, String floorCode, final PIAPICompletionHandler completionHandler) {
+        PIAPIFuture future = new PIAPIFuture(completionHandler, getCallbackExecutor(), getTimer());
         String sensors = String.format("%s/tenants/%s/orgs/%s/sites/%s/floors/%s/sensors", mServerURL_v2, mTenantCode, mOrgCode, siteCode, floorCode);
         try {
             URL url = new URL(sensors);
-            GET(url, new PIAPICompletionHandler() {
+            GET_DOCUMENT(url, new ListParser<PISensor>(JSON_FEATURES, new PIDocumentReader.ElementFactory<PISensor>() {
                 @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        JSONObject sensorObj = result.getResultAsJson();
-                        JSONArray sensorsArray = (JSONArray)sensorObj.get(JSON_FEATURES);
-                        ArrayList<PISensor> sensors = new ArrayList<PISensor>();
-                        for (Object sensor : sensorsArray) {
-                            sensors.add(new PISensor((JSONObject) sensor));
-                        }
-                        result.setResult(sensors);
-                    }
-                    completionHandler.onComplete(result);
+                public PISensor create(JSONObject sensor) {
+                    return new PISensor(sensor);
                 }
-            });
+            }), future);
         } catch (MalformedURLException e) {
             e.printStackTrace();
+            future.complete(malformedURL(e));
         }
+        return future;
     }
 
     /**
@@ -484,73 +921,140 @@ public class PIAPIAdapter implements Serializable {
      * @param floorCode unique identifier for the floor.
      * @param sensorCode unique identifier for the sensor.
      * @param completionHandler callback for APIs asynchronous calls. Result returns as {@link PISensor PISensor}.
+     * @return a future for the request, to cancel it or give it a deadline.
      */
-    public void getSensor(String siteCode, String floorCode, String sensorCode, final PIAPICompletionHandler completionHandler) {
+    public PIAPIFuture getSensor(String siteCode, String floorCode, String sensorCode, final PIAPICompletionHandler completionHandler) {
+        PIAPIFuture future = new PIAPIFuture(completionHandler, getCallbackExecutor(), getTimer());
         String sensor = String.format("%s/tenants/%s/orgs/%s/sites/%s/floors/%s/sensors/%s", mServerURL_v2, mTenantCode, mOrgCode, siteCode, floorCode, sensorCode);
         try {
             URL url = new URL(sensor);
-            GET(url, new PIAPICompletionHandler() {
+            GET_DOCUMENT(url, new DocumentParser() {
                 @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        result.setResult(new PISensor(result.getResultAsJson()));
-                    }
-                    completionHandler.onComplete(result);
+                public Object parse(PIAPIResult result) {
+                    return new PISensor(result.getResultAsJson());
                 }
-            });
+            }, future);
         } catch (MalformedURLException e) {
             e.printStackTrace();
+            future.complete(malformedURL(e));
         }
+        return future;
     }
 
     /**
-     * Retrieves the map image of a floor.  Returned as a Bitmap.
+     * Retrieves the org with all of its sites, floors, zones, beacons and sensors.  Independent
+     * requests run concurrently, at most four at a time.
      *
-     * @param siteCode unique identifier for the site.
-     * @param floorCode unique identifier for the floor.
-     * @param completionHandler callback for APIs asynchronous calls. Result returns as {@link android.graphics.Bitmap Bitmap}.
+     * @param listener callback for the progress and the result of the load.
+     * @return a future for the load, its result is the {@link PITopology PITopology}.
      */
-    public void getFloorMap(String siteCode, String floorCode, PIAPICompletionHandler completionHandler) {
+    public PIAPIFuture loadTopology(PITopologyListener listener) {
+        return loadTopology(PITopologyLoader.DEFAULT_MAX_CONCURRENCY, listener);
+    }
+
+    /**
+     * Retrieves the org with all of its sites, floors, zones, beacons and sensors.
+     *
+     * @param maxConcurrency maximum number of requests the load has out at the same time.
+     * @param listener callback for the progress and the result of the load.
+     * @return a future for the load, its result is the {@link PITopology PITopology}.
+     */
+    public PIAPIFuture loadTopology(int maxConcurrency, PITopologyListener listener) {
+        return new PITopologyLoader(this, listener, maxConcurrency).start();
+    }
+
+    /**
+     * Retrieves the map image of a floor.  Returned as a Bitmap.
+     *
+     * @param siteCode unique identifier for the site.
+     * @param floorCode unique identifier for the floor.
+     * @param completionHandler callback for APIs asynchronous calls. Result returns as {@link android.graphics.Bitmap Bitmap}.
+     * @return a future for the request, to cancel it or give it a deadline.
+     */
+    public PIAPIFuture getFloorMap(String siteCode, String floorCode, PIAPICompletionHandler completionHandler) {
+        return getFloorMap(siteCode, floorCode, 0, 0, completionHandler);
+    }
+
+    /**
+     * Retrieves the map image of a floor, downsampled to about the size it will be displayed at.
+     * The returned bitmap is no smaller than the target size, unless the map itself is smaller.
+     *
+     * Maps are cached in memory.  Once a bitmap is no longer displayed, hand it back with
+     * {@link #releaseFloorMap(Bitmap)} so its memory can be reused.
+     *
+     * @param siteCode unique identifier for the site.
+     * @param floorCode unique identifier for the floor.
+     * @param targetWidth width in pixels the map will be displayed at.
+     * @param targetHeight height in pixels the map will be displayed at.
+     * @param completionHandler callback for APIs asynchronous calls. Result returns as {@link android.graphics.Bitmap Bitmap}.
+     * @return a future for the request, to cancel it or give it a deadline.
+     */
+    public PIAPIFuture getFloorMap(String siteCode, String floorCode, int targetWidth, int targetHeight, PIAPICompletionHandler completionHandler) {
+        PIAPIFuture future = new PIAPIFuture(completionHandler, getCallbackExecutor(), getTimer());
         String map = String.format("%s/tenants/%s/orgs/%s/sites/%s/floors/%s/map", mServerURL, mTenantCode, mOrgCode, siteCode, floorCode);
         try {
             URL url = new URL(map);
-            GET_IMAGE(url, completionHandler);
+            GET_IMAGE(url, targetWidth, targetHeight, future);
         } catch (MalformedURLException e) {
             e.printStackTrace();
+            future.complete(malformedURL(e));
         }
+        return future;
+    }
+
+    /**
+     * Hands a floor map bitmap back once it is no longer displayed, so the memory can be reused to
+     * decode the next map.  Release every bitmap getFloorMap returned once, even if the same bitmap was
+     * returned more than once, its memory is only reused after all of them are released.  Don't use the
+     * bitmap after releasing it.
+     *
+     * @param bitmap bitmap returned by getFloorMap.
+     */
+    public void releaseFloorMap(Bitmap bitmap) {
+        getBitmapCache().release(bitmap);
+    }
+
+    /**
+     * Sets the memory budget of the floor map cache, shared by all adapters sharing this adapter's
+     * client.  Defaults to an eighth of the app's heap.
+     *
+     * @param maxSizeInBytes maximum size of the cached bitmaps in bytes.
+     */
+    public void setFloorMapCacheSize(int maxSizeInBytes) {
+        getClient().setFloorMapCacheSize(maxSizeInBytes);
+    }
+
+    private PIBitmapCache getBitmapCache() {
+        return getClient().getBitmapCache();
     }
 
     /**
      * Retrieves a list of proximity UUIDs from an organization.  Used for monitoring and ranging beacons in PIBeaconSensor.
      *
      * @param completionHandler callback for APIs asynchronous calls. Result returns as {@link ArrayList ArrayList}.
+     * @return a future for the request, to cancel it or give it a deadline.
      */
-    public void getProximityUUIDs(final PIAPICompletionHandler completionHandler) {
+    public PIAPIFuture getProximityUUIDs(final PIAPICompletionHandler completionHandler) {
+        PIAPIFuture future = new PIAPIFuture(completionHandler, getCallbackExecutor(), getTimer());
         String proximityUUIDs = String.format("%s/tenants/%s/orgs/%s/views/proximityUUID", mServerURL, mTenantCode, mOrgCode);
         try {
             URL url = new URL(proximityUUIDs);
-            GET(url, new PIAPICompletionHandler() {
+            GET_DOCUMENT(url, new DocumentParser() {
                 @Override
-                public void onComplete(PIAPIResult result) {
-                    if (result.getResponseCode() == 200) {
-                        try {
-                            ArrayList<String> uuids = new ArrayList<String>();
-                            JSONArray uuidArray = JSONArray.parse(result.getResultAsString());
-                            for (Object uuid : uuidArray) {
-                                uuids.add((String) uuid);
-                            }
-                            result.setResult(uuids);
-                        } catch (IOException e) {
-                            result.setException(e);
-                            e.printStackTrace();
-                        }
+                public Object parse(PIAPIResult result) throws IOException {
+                    ArrayList<String> uuids = new ArrayList<String>();
+                    JSONArray uuidArray = JSONArray.parse(result.getResultAsString());
+                    for (Object uuid : uuidArray) {
+                        uuids.add((String) uuid);
                     }
-                    completionHandler.onComplete(result);
+                    return uuids;
                 }
-            });
+            }, future);
         } catch (MalformedURLException e) {
             e.printStackTrace();
+            future.complete(malformedURL(e));
         }
+        return future;
     }
 
     /**
@@ -559,9 +1063,10 @@ public class PIAPIAdapter implements Serializable {
      *
      * @param device object with all the necessary information to register the device.
      * @param completionHandler callback for APIs asynchronous calls.
+     * @return a future for the request, to cancel it or give it a deadline.
      */
-    public void registerDevice(final PIDeviceInfo device, final PIAPICompletionHandler completionHandler) {
-        handleDevice(device, completionHandler);
+    public PIAPIFuture registerDevice(final PIDeviceInfo device, final PIAPICompletionHandler completionHandler) {
+        return handleDevice(device, completionHandler);
     }
 
     /**
@@ -569,9 +1074,10 @@ public class PIAPIAdapter implements Serializable {
      *
      * @param device object with all the necessary information to update the device.
      * @param completionHandler callback for APIs asynchronous calls.
+     * @return a future for the request, to cancel it or give it a deadline.
      */
-    public void updateDevice(final PIDeviceInfo device, final PIAPICompletionHandler completionHandler) {
-        handleDevice(device, completionHandler);
+    public PIAPIFuture updateDevice(final PIDeviceInfo device, final PIAPICompletionHandler completionHandler) {
+        return handleDevice(device, completionHandler);
     }
 
     /**
@@ -579,24 +1085,26 @@ public class PIAPIAdapter implements Serializable {
      *
      * @param device object with all the necessary information to unregister the device.
      * @param completionHandler callback for APIs asynchronous calls.
+     * @return a future for the request, to cancel it or give it a deadline.
      */
-    public void unregisterDevice(final PIDeviceInfo device, final PIAPICompletionHandler completionHandler) {
+    public PIAPIFuture unregisterDevice(final PIDeviceInfo device, final PIAPICompletionHandler completionHandler) {
         device.setRegistered(false);
-        handleDevice(device, completionHandler);
+        return handleDevice(device, completionHandler);
     }
 
-    private void handleDevice(final PIDeviceInfo device, final PIAPICompletionHandler completionHandler) {
+    private PIAPIFuture handleDevice(final PIDeviceInfo device, final PIAPICompletionHandler completionHandler) {
+        final PIAPIFuture future = new PIAPIFuture(completionHandler, getCallbackExecutor(), getTimer());
         final String postDevice = String.format("%s/tenants/%s/orgs/%s/devices", mServerURL, mTenantCode, mOrgCode);
         try {
             URL url = new URL(postDevice);
-            POST(url, device.toJSON(), new PIAPICompletionHandler() {
+            POST(url, device.toJSON(), future.child(new PIAPICompletionHandler() {
                 @Override
                 public void onComplete(PIAPIResult postResult) {
                     if (postResult.getResponseCode() == HttpURLConnection.HTTP_CONFLICT) {
                         // call GET
                         try {
                             final URL deviceLocation = new URL(postResult.getHeader().get("Location").get(0));
-                            GET(deviceLocation, new PIAPICompletionHandler() {
+                            GET(deviceLocation, PIRequestExecutor.Priority.BACKGROUND, future.child(new PIAPICompletionHandler() {
                                 @Override
                                 public void onComplete(PIAPIResult getResult) {
                                     if (getResult.getResponseCode() == HttpURLConnection.HTTP_OK) {
@@ -609,34 +1117,37 @@ public class PIAPIAdapter implements Serializable {
                                             e.printStackTrace();
                                         }
                                         // call PUT
-                                        PUT(deviceLocation, payload, new PIAPICompletionHandler() {
+                                        PUT(deviceLocation, payload, future.child(new PIAPICompletionHandler() {
                                             @Override
                                             public void onComplete(PIAPIResult putResult) {
                                                 if (isSuccessfulResponse(putResult.getResponseCode())) {
                                                     putResult.setResult(new PIDevice(putResult.getResultAsJson()));
                                                 }
-                                                completionHandler.onComplete(putResult);
+                                                future.complete(putResult);
                                             }
-                                        });
+                                        }));
                                     } else {
-                                        completionHandler.onComplete(getResult);
+                                        future.complete(getResult);
                                     }
                                 }
-                            });
+                            }));
                         } catch (MalformedURLException e) {
                             e.printStackTrace();
+                            future.complete(malformedURL(e));
                         }
                     } else {
                         if (isSuccessfulResponse(postResult.getResponseCode())) {
                             postResult.setResult(new PIDevice(postResult.getResultAsJson()));
                         }
-                        completionHandler.onComplete(postResult);
+                        future.complete(postResult);
                     }
                 }
-            });
+            }));
         } catch (MalformedURLException e) {
             e.printStackTrace();
+            future.complete(malformedURL(e));
         }
+        return future;
     }
 
     /**
@@ -644,15 +1155,19 @@ public class PIAPIAdapter implements Serializable {
      *
      * @param payload a combination of PIBeaconData and the device descriptor
      * @param completionHandler callback for APIs asynchronous calls.
+     * @return a future for the request, to cancel it or give it a deadline.
      */
-    public void sendBeaconNotificationMessage(JSONObject payload, PIAPICompletionHandler completionHandler) {
+    public PIAPIFuture sendBeaconNotificationMessage(JSONObject payload, PIAPICompletionHandler completionHandler) {
+        PIAPIFuture future = new PIAPIFuture(completionHandler, getCallbackExecutor(), getTimer());
         String bnm = String.format("%s/tenants/%s/orgs/%s", mConnectorURL, mTenantCode, mOrgCode);
         try {
             URL url = new URL(bnm);
-            POST(url, payload, completionHandler);
+            POST_UPLOAD(url, payload, future);
         } catch (MalformedURLException e) {
             e.printStackTrace();
+            future.complete(malformedURL(e));
         }
+        return future;
     }
 
     /*
@@ -669,119 +1184,884 @@ public class PIAPIAdapter implements Serializable {
         return result;
     }
 
-    private void GET(URL url, PIAPICompletionHandler completionHandler) {
-        new ApiTask().execute(url, completionHandler, "GET");
+    private PIAPIResult malformedURL(MalformedURLException e) {
+        PIAPIResult result = new PIAPIResult();
+        result.setException(e);
+        return cannotReachServer(result);
+    }
+
+    private void GET(URL url, PIRequestExecutor.Priority priority, PIAPIFuture future) {
+        execute(new ApiTask(), PIRequestExecutor.Lane.CONFIG, priority, url, future, "GET", null);
+    }
+    /**
+     * Builds the doctypes of a config document from a successful result.
+     */
+    private interface DocumentParser {
+        Object parse(PIAPIResult result) throws IOException;
+    }
+
+    /**
+     * Streams the doctypes out of a list document one element at a time, without building the
+     * document as a String or a JSON tree first.  The doctypes are still returned as one list.
+     */
+    private static class ListParser<T> implements DocumentParser {
+        private final String mArrayKey;
+        private final PIDocumentReader.ElementFactory<T> mFactory;
+
+        ListParser(String arrayKey, PIDocumentReader.ElementFactory<T> factory) {
+            mArrayKey = arrayKey;
+            mFactory = factory;
+        }
+
+        @Override
+        public Object parse(PIAPIResult result) throws IOException {
+            return parse(new StringReader(result.getResultAsString()));
+        }
+
+        Object parse(Reader in) throws IOException {
+            return PIDocumentReader.readArray(in, mArrayKey, mFactory);
+        }
+    }
+
+    // GET of a config document, served from the caches when possible. A 304 hands back the doctypes
+    // parsed last time. Calls for a url that is already being fetched wait for that request instead
+    // of sending their own.
+    private void GET_DOCUMENT(final URL url, final DocumentParser parser, PIAPIFuture future) {
+        final String key = url.toString();
+        final PIAPIFuture request = new PIAPIFuture(new PIAPICompletionHandler() {
+            @Override
+            public void onComplete(PIAPIResult result) {
+                InFlightDocument inFlight;
+                synchronized (PIAPIAdapter.this) {
+                    inFlight = mInFlightDocuments.remove(key);
+                }
+                // the entry is gone, so nothing but this completes the callers waiting on it
+                try {
+                    if (result.getResponseCode() == HttpURLConnection.HTTP_OK && !inFlight.request.getCancellationSignal().isCanceled()) {
+                        // doctypes reused from memory are already cached, anything parsed on this call isn't
+                        boolean parsedNow = !result.isParsed() || result.getCacheStatus() == PIAPIResult.CacheStatus.MISS;
+                        try {
+                            if (!result.isParsed() && result.getResult() instanceof String) {
+                                long parseStart = System.currentTimeMillis();
+                                boolean traced = PITrace.begin("pi parse");
+                                try {
+                                    result.setResult(parser.parse(result));
+                                } finally {
+                                    PITrace.end(traced);
+                                }
+                                result.setParsed(true);
+                                if (result.getTiming() != null) {
+                                    result.getTiming().setParse(System.currentTimeMillis() - parseStart);
+                                    result.getTiming().finish();
+                                }
+                            }
+                            if (parsedNow && result.isParsed()) {
+                                getConditionalCache().put(key, getHeaderValue(result.getHeader(), "ETag"),
+                                        getHeaderValue(result.getHeader(), "Last-Modified"), result.getResult());
+                            }
+                        } catch (IOException e) {
+                            result.setException(e);
+                            e.printStackTrace();
+                        } catch (RuntimeException e) {
+                            // e.g. a doctype cast failing on a document of unexpected shape
+                            result.setException(e);
+                            PILogger.e(TAG, "could not parse {}: {}", key, e);
+                        }
+                    }
+                } finally {
+                    ArrayList<PIAPIFuture> waiting = inFlight.waiting;
+                    for (int i = 0; i < waiting.size(); i++) {
+                        waiting.get(i).complete(i == 0 ? result : result.copy());
+                    }
+                }
+            }
+        });
+        InFlightDocument inFlight;
+        synchronized (this) {
+            if (mInFlightDocuments == null) {
+                mInFlightDocuments = new HashMap<String, InFlightDocument>();
+            }
+            inFlight = mInFlightDocuments.get(key);
+            if (inFlight != null) {
+                PILogger.d(TAG, "joining request in flight: GET {}", key);
+                inFlight.waiting.add(future);
+                getTransferStats().recordCoalesced();
+            } else {
+                inFlight = new InFlightDocument(request);
+                inFlight.waiting.add(future);
+                mInFlightDocuments.put(key, inFlight);
+            }
+        }
+        abortWhenAbandoned(key, inFlight, future);
+        if (inFlight.request != request) {
+            return;
+        }
+
+        ApiTask getDocumentTask = new ApiTask();
+        getDocumentTask.isConditional = true;
+        if (parser instanceof ListParser) {
+            getDocumentTask.streamParser = (ListParser<?>) parser;
+        } else {
+            // single documents are small, a duplicate costs little next to a slow screen
+            getDocumentTask.hedge = mHedgingEnabled;
+        }
+        execute(getDocumentTask, PIRequestExecutor.Lane.CONFIG, PIRequestExecutor.Priority.INTERACTIVE, url, request, "GET", null);
+    }
+
+    // a shared document request is only aborted once every caller waiting on it is done with it
+    private void abortWhenAbandoned(final String key, final InFlightDocument inFlight, PIAPIFuture future) {
+        future.getCancellationSignal().addOnCancelListener(new Runnable() {
+            @Override
+            public void run() {
+                synchronized (PIAPIAdapter.this) {
+                    if (mInFlightDocuments.get(key) != inFlight) {
+                        return;
+                    }
+                    for (PIAPIFuture waiting : inFlight.waiting) {
+                        if (!waiting.isDone()) {
+                            return;
+                        }
+                    }
+                }
+                PILogger.d(TAG, "nobody is waiting on GET {}, aborting it", key);
+                inFlight.request.getCancellationSignal().cancel();
+            }
+        });
+    }
+
+    private static class InFlightDocument {
+        final PIAPIFuture request;
+        final ArrayList<PIAPIFuture> waiting = new ArrayList<PIAPIFuture>();
+
+        InFlightDocument(PIAPIFuture request) {
+            this.request = request;
+        }
     }
-    private void GET_IMAGE(URL url, PIAPICompletionHandler completionHandler) {
+    private void GET_IMAGE(URL url, int targetWidth, int targetHeight, PIAPIFuture future) {
+        Bitmap cached = getBitmapCache().get(PIBitmapCache.key(url.toString(), targetWidth, targetHeight));
+        if (cached != null) {
+            PIAPIResult result = new PIAPIResult(cached, HttpURLConnection.HTTP_OK);
+            result.setCacheStatus(PIAPIResult.CacheStatus.HIT);
+            future.complete(result);
+            return;
+        }
         ApiTask getImageTask = new ApiTask();
         getImageTask.isImageApiCall = true;
-        getImageTask.execute(url, completionHandler, "GET");
+        getImageTask.targetWidth = targetWidth;
+        getImageTask.targetHeight = targetHeight;
+        execute(getImageTask, PIRequestExecutor.Lane.IMAGE, PIRequestExecutor.Priority.INTERACTIVE, url, future, "GET", null);
+    }
+    private void POST(URL url, JSONObject payload, PIAPIFuture future) {
+        execute(new ApiTask(), PIRequestExecutor.Lane.CONFIG, PIRequestExecutor.Priority.BACKGROUND, url, future, "POST", payload);
     }
-    private void POST(URL url, JSONObject payload, PIAPICompletionHandler completionHandler) {
-        new ApiTask().execute(url, completionHandler, "POST", payload);
+    private void POST_UPLOAD(URL url, JSONObject payload, PIAPIFuture future) {
+        ApiTask uploadTask = new ApiTask();
+        uploadTask.compressPayload = mCompressUploads;
+        execute(uploadTask, PIRequestExecutor.Lane.UPLOAD, PIRequestExecutor.Priority.TELEMETRY, url, future, "POST", payload);
     }
-    private void PUT(URL url, JSONObject payload, PIAPICompletionHandler completionHandler) {
-        new ApiTask().execute(url, completionHandler, "PUT", payload);
+    private void PUT(URL url, JSONObject payload, PIAPIFuture future) {
+        execute(new ApiTask(), PIRequestExecutor.Lane.CONFIG, PIRequestExecutor.Priority.BACKGROUND, url, future, "PUT", payload);
+    }
+
+    private void execute(ApiTask task, PIRequestExecutor.Lane lane, PIRequestExecutor.Priority priority, URL url,
+                         PIAPIFuture future, String requestMethod, JSONObject payload) {
+        task.cancellationSignal = future.getCancellationSignal();
+        PIRateLimiter rateLimiter = getRateLimiter(url);
+        if (rateLimiter != null) {
+            rateLimiter.submit(new RateLimitedRequest(task, lane, priority, url, future, requestMethod, payload),
+                    getTransferStats());
+        } else {
+            submit(task, lane, priority, url, future, requestMethod, payload);
+        }
+    }
+
+    private void submit(ApiTask task, PIRequestExecutor.Lane lane, PIRequestExecutor.Priority priority, URL url,
+                        PIAPIFuture future, String requestMethod, JSONObject payload) {
+        try {
+            task.lane = lane;
+            task.priority = priority;
+            task.url = url;
+            task.future = future;
+            task.requestMethod = requestMethod;
+            task.payload = payload;
+            task.submittedAt = System.currentTimeMillis();
+            getRequestExecutor().getLane(lane, priority).execute(task);
+        } catch (RejectedExecutionException e) {
+            PILogger.e(TAG, "request rejected, {} lane is full: {} {}", lane, requestMethod, url);
+            PIAPIResult result = new PIAPIResult();
+            result.setException(e);
+            result.setResponseCode(0);
+            result.setResult("Too many pending requests.");
+            future.complete(result);
+        }
+    }
+
+    private class RateLimitedRequest implements PIRateLimiter.Request {
+        private final ApiTask task;
+        private final PIRequestExecutor.Lane lane;
+        private final PIRequestExecutor.Priority priority;
+        private final URL url;
+        private final PIAPIFuture future;
+        private final String requestMethod;
+        private final JSONObject payload;
+
+        RateLimitedRequest(ApiTask task, PIRequestExecutor.Lane lane, PIRequestExecutor.Priority priority, URL url,
+                           PIAPIFuture future, String requestMethod, JSONObject payload) {
+            this.task = task;
+            this.lane = lane;
+            this.priority = priority;
+            this.url = url;
+            this.future = future;
+            this.requestMethod = requestMethod;
+            this.payload = payload;
+        }
+
+        // requests with a body are never merged, the older body would never reach the server
+        @Override
+        public String getKey() {
+            return "GET".equals(requestMethod) || "HEAD".equals(requestMethod) ? requestMethod + " " + url : null;
+        }
+
+        @Override
+        public boolean isAbandoned() {
+            return future.isDone() || future.getCancellationSignal().isCanceled();
+        }
+
+        @Override
+        public void send() {
+            submit(task, lane, priority, url, future, requestMethod, payload);
+        }
+
+        @Override
+        public void drop() {
+            PILogger.e(TAG, "request dropped by rate limiter: {} {}", requestMethod, url);
+            PIAPIResult result = new PIAPIResult();
+            result.setResponseCode(0);
+            result.setResult("Rate limited.");
+            future.complete(result);
+        }
+
+        @Override
+        public void absorb(PIRateLimiter.Request older) {
+            final PIAPIFuture olderFuture = ((RateLimitedRequest) older).future;
+            future.addCompletionHandler(new PIAPICompletionHandler() {
+                @Override
+                public void onComplete(PIAPIResult result) {
+                    olderFuture.complete(result.copy());
+                }
+            });
+        }
+    }
+
+    private PIHttpRequest buildRequest(URL url, String requestMethod, byte[] body) {
+        PIHttpRequest request = new PIHttpRequest(url, requestMethod);
+        int timeout = getTimeoutPolicy().getTimeout(getEndpoint(url), getClient().getLatencies());
+        request.setReadTimeout(timeout);
+        request.setConnectTimeout(timeout);
+        request.setHeader("Content-Type", "application/json");
+        request.setHeader("Accept", "application/json");
+        request.setHeader("Accept-Encoding", ENCODING_GZIP);
+        request.setHeader("Authorization", mBasicAuth);
+        request.setBody(body);
+        return request;
+    }
+
+    private static byte[] gzip(byte[] body) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream(body.length / 2);
+        GZIPOutputStream out = new GZIPOutputStream(compressed);
+        try {
+            out.write(body);
+        } finally {
+            out.close();
+        }
+        return compressed.toByteArray();
+    }
+
+    private static String getHeaderValue(Map<String, List<String>> headers, String name) {
+        if (headers == null) {
+            return null;
+        }
+        // header names are case insensitive, the map's keys are not
+        for (Map.Entry<String, List<String>> header : headers.entrySet()) {
+            if (name.equalsIgnoreCase(header.getKey()) && header.getValue() != null && !header.getValue().isEmpty()) {
+                return header.getValue().get(0);
+            }
+        }
+        return null;
     }
 
     private boolean isSuccessfulResponse (int responseCode) {
         return responseCode >= HttpURLConnection.HTTP_OK && responseCode < HttpURLConnection.HTTP_BAD_REQUEST;
     }
 
-    private class ApiTask extends AsyncTask<Object, Void, PIAPIResult> {
+    // a request, run on its lane's executor.  Results go to the future, which hands them to the
+    // callback executor, so nothing here depends on the thread the request was made on
+    private class ApiTask implements Runnable {
         protected boolean isImageApiCall = false;
+        protected boolean compressPayload = false;
+        protected boolean isConditional = false;
+        protected int targetWidth = 0;
+        protected int targetHeight = 0;
+        protected ListParser<?> streamParser = null;
+        protected PICancellationSignal cancellationSignal = null;
+        protected boolean hedge = false;
+        private PIRequestExecutor.Lane lane;
+        private PIRequestExecutor.Priority priority;
         private URL url;
-        private PIAPICompletionHandler completionHandler;
+        private PIAPIFuture future;
         private JSONObject payload = null;
         private String requestMethod;
-        private int responseCode = 0;
-        private HttpURLConnection connection = null;
-        private PIAPIResult result = new PIAPIResult();
+        private String endpointTemplate;
+        private long submittedAt;
+        private PIRequestTiming timing;
+        // attempts sent so far
+        private int attempt = 0;
 
         @Override
-        protected PIAPIResult doInBackground(Object... params) {
-            url = (URL) params[0];
-            completionHandler = (PIAPICompletionHandler) params[1];
-            requestMethod = (String) params[2];
-            if (params.length > 3) {
-                payload = (JSONObject) params[3];
+        public void run() {
+            PIAPIResult result = send();
+            if (result == null) {
+                // a retry is scheduled, the task runs again once it is due
+                return;
+            }
+            // parsing and chained requests run here too, the future hops to the callback executor after
+            future.complete(result);
+        }
+
+        // runs an attempt of the request on the calling thread
+        // returns null if it failed and a retry has been scheduled
+        private PIAPIResult send() {
+            if (timing == null) {
+                startTiming();
             }
 
-            PILogger.d(TAG, requestMethod + " " + url.toString());
+            PIAPIResult result;
+            boolean traced = PITrace.begin("pi", requestMethod, endpointTemplate);
             try {
-                connection = (HttpURLConnection) url.openConnection();
-                connection.setReadTimeout(READ_TIMEOUT_IN_MILLISECONDS);
-                connection.setConnectTimeout(CONNECTION_TIMEOUT_IN_MILLISECONDS);
-                connection.setRequestProperty("Content-Type", "application/json");
-                connection.setRequestProperty("Accept", "application/json");
-                connection.setRequestProperty("Authorization", mBasicAuth);
-                connection.setRequestMethod(requestMethod);
-
-                if ("GET".equals(requestMethod)) {
-                    connection.setDoInput(true);
-                } else {
-                    connection.setDoOutput(true);
+                result = isConditional ? fetchDocument() : fetch(null, null, true);
+            } finally {
+                PITrace.end(traced);
+            }
+            if (result == null) {
+                return null;
+            }
+            if (result.getTiming() == null) {
+                result.setTiming(timing);
+            }
+            result.getTiming().finish();
+            return result;
+        }
+
+        private void startTiming() {
+            endpointTemplate = PIMetrics.template(url);
+            timing = new PIRequestTiming(submittedAt, System.currentTimeMillis());
+        }
+
+        // config documents are served from the caches whenever they allow it
+        private PIAPIResult fetchDocument() {
+            String key = url.toString();
+            PIConditionalCache.CachedDocument parsed = getConditionalCache().get(key);
+            PIDiskCache diskCache = getDiskCache();
+            PIDiskCache.Document stored = diskCache != null ? diskCache.get(key) : null;
+
+            if (stored != null) {
+                long ttl = getDocumentCacheTtl(url);
+                if (stored.getAge() < ttl) {
+                    return fromDisk(stored, parsed, PIAPIResult.CacheStatus.HIT);
+                }
+                if (stored.getAge() < ttl + mDocumentCacheMaxStaleInMilliseconds) {
+                    // serve what we have right away, later calls will see the revalidated copy
+                    revalidateInBackground(stored);
+                    return fromDisk(stored, parsed, PIAPIResult.CacheStatus.STALE);
                 }
-                connection.connect();
+            }
 
-                // send payload
-                if (payload != null) {
-                    OutputStreamWriter out = new OutputStreamWriter(connection.getOutputStream());
-                    out.write(payload.toString());
-                    out.close();
+            // validators of the doctypes in memory win, they save us the parsing
+            String etag = parsed != null ? parsed.etag : (stored != null ? stored.etag : null);
+            String lastModified = parsed != null ? parsed.lastModified : (stored != null ? stored.lastModified : null);
+            PIAPIResult result = fetch(etag, lastModified, true);
+            if (result == null) {
+                return null;
+            }
+            int responseCode = result.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED && (parsed != null || stored != null)) {
+                // nothing changed, reuse what we had
+                result.setResponseCode(HttpURLConnection.HTTP_OK);
+                result.setCacheStatus(PIAPIResult.CacheStatus.HIT);
+                if (parsed != null) {
+                    result.setResult(parsed.getParsed());
+                    result.setParsed(true);
+                } else {
+                    result.setResult(stored.body);
                 }
+                if (stored != null && isSameVersion(stored, etag, lastModified)) {
+                    diskCache.touch(key);
+                }
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                result.setCacheStatus(PIAPIResult.CacheStatus.MISS);
+                storeDocument(result);
+            } else if (responseCode == 0 && stored != null) {
+                // can't reach the server, stale data beats no data
+                PILogger.d(TAG, "serving stale copy of {}", key);
+                result = fromDisk(stored, parsed, PIAPIResult.CacheStatus.STALE);
+            } else {
+                result.setCacheStatus(PIAPIResult.CacheStatus.MISS);
+            }
+            return result;
+        }
 
-                responseCode = connection.getResponseCode();
-            } catch (IOException e) {
+        private PIAPIResult fromDisk(PIDiskCache.Document stored, PIConditionalCache.CachedDocument parsed,
+                                     PIAPIResult.CacheStatus cacheStatus) {
+            PIAPIResult result = new PIAPIResult();
+            result.setResponseCode(HttpURLConnection.HTTP_OK);
+            result.setCacheStatus(cacheStatus);
+            Map<String, List<String>> header = new HashMap<String, List<String>>();
+            if (stored.etag != null) {
+                header.put("ETag", Collections.singletonList(stored.etag));
+            }
+            if (stored.lastModified != null) {
+                header.put("Last-Modified", Collections.singletonList(stored.lastModified));
+            }
+            result.setHeader(header);
+            if (parsed != null && isSameVersion(stored, parsed.etag, parsed.lastModified)) {
+                result.setResult(parsed.getParsed());
+                result.setParsed(true);
+            } else {
+                result.setResult(stored.body);
+            }
+            return result;
+        }
+
+        // sent as a request of its own, the caller already has its result and may cancel its future
+        private void revalidateInBackground(final PIDiskCache.Document stored) {
+            final ApiTask revalidation = new ApiTask();
+            revalidation.lane = PIRequestExecutor.Lane.CONFIG;
+            revalidation.priority = PIRequestExecutor.Priority.BACKGROUND;
+            revalidation.url = url;
+            revalidation.requestMethod = "GET";
+            revalidation.submittedAt = System.currentTimeMillis();
+            try {
+                getRequestExecutor().getLane(revalidation.lane, revalidation.priority).execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        revalidation.startTiming();
+                        // not retried or hedged, a failed revalidation leaves the stale copy for the next call to try again
+                        PIAPIResult result = revalidation.fetch(stored.etag, stored.lastModified, false);
+                        if (result.getResponseCode() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                            getDiskCache().touch(stored.url);
+                        } else if (result.getResponseCode() == HttpURLConnection.HTTP_OK) {
+                            revalidation.storeDocument(result);
+                        }
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                PILogger.e(TAG, "config lane is full, not revalidating {}", stored.url);
+            }
+        }
+
+        private void storeDocument(PIAPIResult result) {
+            PIDiskCache diskCache = getDiskCache();
+            if (diskCache != null && result.getResult() instanceof String) {
+                diskCache.put(url.toString(), getHeaderValue(result.getHeader(), "ETag"),
+                        getHeaderValue(result.getHeader(), "Last-Modified"), result.getResultAsString());
+            }
+        }
+
+        private boolean isSameVersion(PIDiskCache.Document stored, String etag, String lastModified) {
+            return equal(stored.etag, etag) && equal(stored.lastModified, lastModified);
+        }
+
+        private boolean equal(String lhs, String rhs) {
+            return lhs == null ? rhs == null : lhs.equals(rhs);
+        }
+
+        // sends the request and fails fast while the host's circuit is open.  If the attempt failed and the
+        // retry policy allows another, the retry is scheduled on the timer and null is returned, the lane's
+        // thread is never held for the backoff
+        private PIAPIResult fetch(String etag, String lastModified, boolean retryLater) {
+            if (isCanceled()) {
+                PIAPIResult result = new PIAPIResult();
+                result.setException(new CancellationException("Request canceled"));
+                result.setResponseCode(0);
+                result.setResult("Request canceled.");
+                return result;
+            }
+            PICircuitBreaker circuitBreaker = getCircuitBreaker(url.getHost());
+            if (!circuitBreaker.allowRequest()) {
+                PILogger.d(TAG, "circuit open, not sending {} {}", requestMethod, url);
+                PIAPIResult result = new PIAPIResult();
+                result.setException(new IOException("Circuit open for " + url.getHost()));
+                return cannotReachServer(result);
+            }
+            PIRetryPolicy retryPolicy = getRetryPolicy();
+            PIRetryBudget retryBudget = getClient().getRetryBudget();
+            retryBudget.onRequest(retryPolicy.getBudgetRatio());
+            PIAPIResult result;
+            try {
+                result = fetchHedged(etag, lastModified);
+            } catch (RuntimeException e) {
+                circuitBreaker.onAbandoned();
+                throw e;
+            }
+            if (isCanceled() || Thread.currentThread().isInterrupted()) {
+                // an aborted connection says nothing about the host's health
+                circuitBreaker.onAbandoned();
+                return result;
+            }
+            int responseCode = result.getResponseCode();
+            if (PICircuitBreaker.isFailure(responseCode)) {
+                circuitBreaker.onFailure();
+            } else {
+                circuitBreaker.onSuccess();
+            }
+
+            attempt++;
+            if (!retryLater || lane == null || !PIRetryPolicy.isIdempotent(requestMethod)
+                    || !PIRetryPolicy.isRetryable(responseCode)
+                    || attempt >= retryPolicy.getMaxAttempts() || !retryBudget.tryRetry()) {
+                return result;
+            }
+            long delay = getRetryDelay(retryPolicy, attempt - 1, result);
+            PILogger.d(TAG, "retrying {} {} in {}ms", requestMethod, url, delay);
+            try {
+                getTimer().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        retry();
+                    }
+                }, delay, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                return result;
+            }
+            return null;
+        }
+
+        // puts the task back on its lane once its backoff is over
+        private void retry() {
+            if (isCanceled()) {
+                // canceled or past its deadline while waiting, the future is already done
+                return;
+            }
+            try {
+                getRequestExecutor().getLane(lane, priority).execute(this);
+            } catch (RejectedExecutionException e) {
+                PILogger.e(TAG, "retry rejected, {} lane is full: {} {}", lane, requestMethod, url);
+                PIAPIResult result = new PIAPIResult();
                 result.setException(e);
-                e.printStackTrace();
+                result.setResponseCode(0);
+                result.setResult("Too many pending requests.");
+                result.setTiming(timing);
+                timing.finish();
+                future.complete(result);
             }
+        }
 
-            // build result object
-            if (responseCode != 0) {
-                if (isImageApiCall && isSuccessfulResponse(responseCode)) {
-                    try {
-                        result.setResult(BitmapFactory.decodeStream(connection.getInputStream()));
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                        result.setException(e);
+        // a Retry-After from the server wins over our own backoff, as long as it is within reason
+        private long getRetryDelay(PIRetryPolicy retryPolicy, int retry, PIAPIResult result) {
+            String retryAfter = getHeaderValue(result.getHeader(), "Retry-After");
+            if (retryAfter != null) {
+                try {
+                    long serverDelay = Long.parseLong(retryAfter.trim()) * 1000;
+                    if (serverDelay >= 0 && serverDelay <= retryPolicy.getMaxDelay()) {
+                        return serverDelay;
                     }
-                } else {
-                    StringBuilder sb = new StringBuilder();
-                    BufferedReader br;
-                    String line;
-                    try {
-                        if (isSuccessfulResponse(responseCode)) {
-                            br = new BufferedReader(new InputStreamReader(connection.getInputStream()));
-                        } else {
-                            br = new BufferedReader(new InputStreamReader(connection.getErrorStream()));
-                        }
-                        while ((line = br.readLine()) != null) {
-                            sb.append(line);
-                            sb.append("\n");
+                } catch (NumberFormatException e) {
+                    // an HTTP date, fall back to our own backoff
+                }
+            }
+            return retryPolicy.getDelay(retry);
+        }
+
+        // sends the request, and a duplicate of it if the hedge budget allows and it is slower than usual
+        private PIAPIResult fetchHedged(String etag, String lastModified) {
+            long hedgeDelay = -1;
+            if (hedge && lane != null && getCircuitBreaker(url.getHost()).getState() == PICircuitBreaker.State.CLOSED) {
+                getClient().getHedgeBudget().onRequest();
+                hedgeDelay = getClient().getLatencies().getPercentile(getEndpoint(url), HEDGE_PERCENTILE);
+            }
+            if (hedgeDelay < 0) {
+                return fetchOnce(etag, lastModified, cancellationSignal);
+            }
+
+            final PICancellationSignal primarySignal = new PICancellationSignal();
+            final Hedge hedge = new Hedge(etag, lastModified, primarySignal);
+            Runnable onCancel = new Runnable() {
+                @Override
+                public void run() {
+                    primarySignal.cancel();
+                    hedge.signal.cancel();
+                }
+            };
+            if (cancellationSignal != null) {
+                cancellationSignal.addOnCancelListener(onCancel);
+            }
+            ScheduledFuture<?> hedgeTimer = getTimer().schedule(hedge, hedgeDelay, TimeUnit.MILLISECONDS);
+            try {
+                PIAPIResult result = fetchOnce(etag, lastModified, primarySignal);
+                if (result.getResponseCode() != 0 && hedge.winner.compareAndSet(0, 1)) {
+                    hedge.abandon();
+                    return result;
+                }
+                // the hedge won, or the primary request failed and a hedge in flight may still get through
+                PIAPIResult hedgeResult;
+                try {
+                    hedgeResult = hedge.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    hedge.abandon();
+                    return result;
+                }
+                return hedgeResult != null && (hedge.winner.get() == 2 || hedgeResult.getResponseCode() != 0)
+                        ? hedgeResult : result;
+            } finally {
+                hedgeTimer.cancel(false);
+                if (cancellationSignal != null) {
+                    cancellationSignal.removeOnCancelListener(onCancel);
+                }
+            }
+        }
+
+        // a duplicate of a slow request.  Its timer fires on the shared timer thread, the duplicate itself
+        // is sent from the request's lane like any other request
+        private class Hedge implements Runnable {
+            // 1 once the primary request answers first, 2 once the hedge does
+            final AtomicInteger winner = new AtomicInteger();
+            final PICancellationSignal signal = new PICancellationSignal();
+            private final String etag;
+            private final String lastModified;
+            private final PICancellationSignal primarySignal;
+            // a hedge still queued on the lane is never waited for, the lane's threads may all be
+            // taken by the requests waiting on their hedges
+            private boolean running = false;
+            private boolean abandoned = false;
+            private PIAPIResult result;
+
+            Hedge(String etag, String lastModified, PICancellationSignal primarySignal) {
+                this.etag = etag;
+                this.lastModified = lastModified;
+                this.primarySignal = primarySignal;
+            }
+
+            @Override
+            public void run() {
+                synchronized (this) {
+                    if (abandoned || winner.get() != 0 || !getClient().getHedgeBudget().tryHedge()) {
+                        return;
+                    }
+                }
+                try {
+                    getRequestExecutor().getLane(lane, priority).execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            sendDuplicate();
                         }
-                        br.close();
-                    } catch (IOException e) {
-                        result.setException(e);
-                        e.printStackTrace();
+                    });
+                } catch (RejectedExecutionException e) {
+                    PILogger.d(TAG, "{} lane is full, not hedging {} {}", lane, requestMethod, url);
+                }
+            }
+
+            private void sendDuplicate() {
+                synchronized (this) {
+                    if (abandoned) {
+                        return;
+                    }
+                    running = true;
+                }
+                PILogger.d(TAG, "hedging slow request: {} {}", requestMethod, url);
+                getTransferStats().recordHedged();
+                PIAPIResult hedgeResult = fetchOnce(etag, lastModified, signal);
+                // a hedge that couldn't reach the server leaves the primary request to it
+                if (hedgeResult.getResponseCode() != 0 && winner.compareAndSet(0, 2)) {
+                    getTransferStats().recordHedgeWin();
+                    primarySignal.cancel();
+                }
+                synchronized (this) {
+                    result = hedgeResult;
+                    running = false;
+                    notifyAll();
+                }
+            }
+
+            /**
+             * Waits for the hedge if it is in flight, otherwise makes sure it won't be sent.
+             *
+             * @return result of the hedge, null if it wasn't sent.
+             */
+            synchronized PIAPIResult await() throws InterruptedException {
+                abandoned = true;
+                while (running) {
+                    wait();
+                }
+                return result;
+            }
+
+            // the primary request answered, don't send the hedge and abort it if it is in flight
+            void abandon() {
+                synchronized (this) {
+                    abandoned = true;
+                }
+                signal.cancel();
+            }
+        }
+
+        private PIAPIResult fetchOnce(String etag, String lastModified, PICancellationSignal attemptSignal) {
+            PIAPIResult result = new PIAPIResult();
+            int responseCode = 0;
+
+            PILogger.d(TAG, "{} {}", requestMethod, url);
+            PIHttpResponse response = null;
+            CountingInputStream wireBody = null;
+            CountingInputStream decodedBody = null;
+            boolean gzipped = false;
+            long bytesOut = 0;
+            boolean tracedBody = false;
+            PIRequestTiming attemptTiming = timing.attempt();
+            result.setTiming(attemptTiming);
+            PIMetrics.Endpoint metrics = getMetrics().getEndpoint(endpointTemplate);
+            long startedAt = System.currentTimeMillis();
+            metrics.onStart();
+            try {
+                byte[] body = payload != null ? payload.toString().getBytes("UTF-8") : null;
+                byte[] requestBody = body;
+                if (compressPayload && body != null && body.length >= mCompressionThresholdInBytes) {
+                    byte[] compressed = gzip(body);
+                    // json that doesn't compress well goes as is
+                    if (compressed.length < body.length) {
+                        requestBody = compressed;
                     }
-                    result.setResult(sb.toString());
                 }
-                result.setHeader(connection.getHeaderFields());
+                PIHttpRequest request = buildRequest(url, requestMethod, requestBody);
+                if (requestBody != body) {
+                    request.setHeader("Content-Encoding", ENCODING_GZIP);
+                }
+                if (etag != null) {
+                    request.setHeader("If-None-Match", etag);
+                }
+                if (lastModified != null) {
+                    request.setHeader("If-Modified-Since", lastModified);
+                }
+                request.setCancellationSignal(attemptSignal);
+                request.setTiming(attemptTiming);
+
+                long sentAt = System.currentTimeMillis();
+                response = getTransport().execute(request);
+                responseCode = response.getResponseCode();
+                attemptTiming.markFirstByte();
+                getClient().getLatencies().record(getEndpoint(url), System.currentTimeMillis() - sentAt);
+                if (body != null) {
+                    bytesOut = requestBody.length;
+                    getTransferStats().recordSent(requestBody.length, body.length, requestBody != body);
+                }
+
+                // build result object
+                result.setHeader(response.getHeaders());
                 result.setResponseCode(responseCode);
+                if (isCanceled(attemptSignal)) {
+                    // nobody wants the body, don't read, decode or parse it
+                    throw new InterruptedIOException("Request canceled");
+                }
 
-                PILogger.d(TAG, result.toString());
+                tracedBody = PITrace.begin("pi body");
+                InputStream in = response.getBody();
+                if (in != null) {
+                    wireBody = new CountingInputStream(in);
+                    gzipped = ENCODING_GZIP.equalsIgnoreCase(getHeaderValue(response.getHeaders(), "Content-Encoding"));
+                    try {
+                        decodedBody = new CountingInputStream(gzipped ? new GZIPInputStream(wireBody) : wireBody);
+                    } catch (EOFException e) {
+                        // gzip encoding on an empty body
+                        decodedBody = null;
+                    }
+                }
+                if (isImageApiCall && isSuccessfulResponse(responseCode)) {
+                    // buffer the encoded image, it is read twice to find the sample size
+                    Bitmap bitmap = getBitmapCache().decode(readBytes(decodedBody), targetWidth, targetHeight);
+                    if (bitmap != null) {
+                        getBitmapCache().put(PIBitmapCache.key(url.toString(), targetWidth, targetHeight), bitmap);
+                    }
+                    result.setResult(bitmap);
+                } else if (streamParser != null && responseCode == HttpURLConnection.HTTP_OK
+                        && decodedBody != null && getDiskCache() == null) {
+                    // nothing needs the raw document, parse it as it comes off the wire
+                    result.setResult(streamParser.parse(new InputStreamReader(decodedBody, "UTF-8")));
+                    result.setParsed(true);
+                } else {
+                    result.setResult(readBody(decodedBody));
+                }
+                attemptTiming.markBodyRead();
+            } catch (SocketTimeoutException e) {
+                result.setException(e);
+                String endpoint = getEndpoint(url);
+                PILogger.e(TAG, "timed out: {} {}", requestMethod, url);
+                getTransferStats().recordTimeout(endpoint);
+                metrics.onTimeout();
+                // sampled at the timeout, so an endpoint that keeps timing out gets more time
+                PILatencyWindows latencies = getClient().getLatencies();
+                latencies.record(endpoint, getTimeoutPolicy().getTimeout(endpoint, latencies));
+            } catch (IOException e) {
+                result.setException(e);
+                if (!isCanceled(attemptSignal)) {
+                    e.printStackTrace();
+                }
+            } finally {
+                PITrace.end(tracedBody);
+                if (wireBody != null) {
+                    getTransferStats().recordReceived(wireBody.getCount(),
+                            decodedBody != null ? decodedBody.getCount() : 0, gzipped);
+                }
+                metrics.onEnd(responseCode, System.currentTimeMillis() - startedAt, bytesOut,
+                        wireBody != null ? wireBody.getCount() : 0);
+                // hands the connection back to the pool
+                if (response != null) {
+                    response.close();
+                }
+            }
+
+            if (responseCode != 0) {
+                PILogger.d(TAG, "{}", result);
                 return result;
             } else {
                 cannotReachServer(result);
             }
 
-            PILogger.e(TAG, result.toString());
+            PILogger.e(TAG, "{}", result);
             return result;
         }
 
-        protected void onPostExecute(PIAPIResult result) {
-            completionHandler.onComplete(result);
+        private byte[] readBytes(InputStream body) throws IOException {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            if (body == null) {
+                return bytes.toByteArray();
+            }
+            byte[] buffer = new byte[8192];
+            int read;
+            while ((read = body.read(buffer)) != -1) {
+                bytes.write(buffer, 0, read);
+            }
+            return bytes.toByteArray();
+        }
+
+        private String readBody(InputStream body) throws IOException {
+            StringBuilder sb = new StringBuilder();
+            if (body == null) {
+                return sb.toString();
+            }
+            BufferedReader br = new BufferedReader(new InputStreamReader(body, "UTF-8"));
+            String line;
+            while ((line = br.readLine()) != null) {
+                sb.append(line);
+                sb.append("\n");
+            }
+            return sb.toString();
+        }
+
+        private boolean isCanceled() {
+            return isCanceled(cancellationSignal);
+        }
+
+        private boolean isCanceled(PICancellationSignal signal) {
+            return signal != null && signal.isCanceled();
         }
     }
 }
@@ -0,0 +1,409 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayList;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * This class is a handle on a PIAPIAdapter request.  Every adapter call returns one, next to calling
+ * its completion handler.
+ *
+ * Canceling aborts the connection if the request is in flight, skips parsing and drops the result, so
+ * neither the completion handler nor any continuation is called.  A request can also be given a
+ * deadline, after which it completes with response code 0 and a {@link TimeoutException}.
+ *
+ * Results are delivered on the adapter's callback executor, the main thread unless set otherwise.  Only
+ * block on {@link #get()} from a thread results aren't delivered on.
+ */
+public class PIAPIFuture implements Future<PIAPIResult> {
+    private static final String TAG = PIAPIFuture.class.getSimpleName();
+
+    /**
+     * Builds the next request of a chain from the result of the previous one.
+     */
+    public interface Continuation {
+
+        /**
+         * @param result result of the previous request.
+         * @return the next request, or null to end the chain with the given result.
+         */
+        PIAPIFuture then(PIAPIResult result);
+    }
+
+    private final PIAPICompletionHandler mCompletionHandler;
+    private final Executor mCallbackExecutor;
+    private final ScheduledExecutorService mTimer;
+    private final PICancellationSignal mCancellationSignal = new PICancellationSignal();
+    private final CountDownLatch mDone = new CountDownLatch(1);
+    private final ArrayList<PIAPICompletionHandler> mListeners = new ArrayList<PIAPICompletionHandler>();
+    private PIAPIResult mResult;
+    private boolean mCompleted = false;
+    private boolean mCanceled = false;
+    private ScheduledFuture<?> mDeadline;
+
+    /**
+     * Creates a future that calls back on whichever thread completes it.
+     */
+    PIAPIFuture(PIAPICompletionHandler completionHandler) {
+        this(completionHandler, null);
+    }
+
+    /**
+     * Creates a future that calls back on the given executor.
+     */
+    PIAPIFuture(PIAPICompletionHandler completionHandler, Executor callbackExecutor) {
+        this(completionHandler, callbackExecutor, null);
+    }
+
+    /**
+     * Creates a future that calls back on the given executor and runs its deadline on the given timer.
+     */
+    PIAPIFuture(PIAPICompletionHandler completionHandler, Executor callbackExecutor, ScheduledExecutorService timer) {
+        mCompletionHandler = completionHandler;
+        mCallbackExecutor = callbackExecutor;
+        mTimer = timer;
+    }
+
+    /**
+     * Completes the request, unless it already completed, was canceled or missed its deadline.
+     *
+     * @param result result of the request.
+     * @return true if the result was delivered.
+     */
+    boolean complete(final PIAPIResult result) {
+        final ArrayList<PIAPICompletionHandler> listeners;
+        synchronized (this) {
+            if (mCompleted || mCanceled) {
+                return false;
+            }
+            mCompleted = true;
+            mResult = result;
+            listeners = new ArrayList<PIAPICompletionHandler>(mListeners);
+            mListeners.clear();
+        }
+        clearDeadline();
+        mDone.countDown();
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                if (mCompletionHandler != null) {
+                    mCompletionHandler.onComplete(result);
+                }
+                for (PIAPICompletionHandler listener : listeners) {
+                    listener.onComplete(result);
+                }
+            }
+        });
+        return true;
+    }
+
+    private void deliver(Runnable delivery) {
+        if (mCallbackExecutor != null) {
+            mCallbackExecutor.execute(delivery);
+        } else {
+            delivery.run();
+        }
+    }
+
+    /**
+     *
+     * @return the signal requests made for this future listen to.
+     */
+    PICancellationSignal getCancellationSignal() {
+        return mCancellationSignal;
+    }
+
+    /**
+     * Creates a future for a request made on behalf of this one, canceled along with this one.
+     *
+     * @param completionHandler callback for the result of the request.
+     * @return the future of the request.
+     */
+    PIAPIFuture child(PIAPICompletionHandler completionHandler) {
+        PIAPIFuture child = new PIAPIFuture(completionHandler);
+        cancelWith(child);
+        return child;
+    }
+
+    /**
+     * Cancels another future along with this one, for requests made on behalf of this one.
+     *
+     * @param child future to cancel along with this one.
+     */
+    void cancelWith(final PIAPIFuture child) {
+        mCancellationSignal.addOnCancelListener(new Runnable() {
+            @Override
+            public void run() {
+                child.cancel(true);
+            }
+        });
+    }
+
+    /**
+     * Cancels the request.  The connection is aborted if the request is in flight and neither the
+     * completion handler nor any continuation is called.
+     *
+     * @param mayInterruptIfRunning ignored, an in flight request is always aborted.
+     * @return false if the request already completed.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (mCompleted || mCanceled) {
+                return false;
+            }
+            mCanceled = true;
+            mListeners.clear();
+        }
+        PILogger.d(TAG, "request canceled");
+        clearDeadline();
+        mDone.countDown();
+        mCancellationSignal.cancel();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return mCanceled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return mCompleted || mCanceled;
+    }
+
+    /**
+     * Waits for the result.
+     *
+     * @return result of the request.
+     * @throws CancellationException if the request was canceled.
+     */
+    @Override
+    public PIAPIResult get() throws InterruptedException, ExecutionException {
+        mDone.await();
+        return getResult();
+    }
+
+    /**
+     * Waits for the result.
+     *
+     * @return result of the request.
+     * @throws CancellationException if the request was canceled.
+     * @throws TimeoutException if the result didn't arrive in time.  The request keeps going.
+     */
+    @Override
+    public PIAPIResult get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!mDone.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return getResult();
+    }
+
+    private synchronized PIAPIResult getResult() {
+        if (mCanceled) {
+            throw new CancellationException();
+        }
+        return mResult;
+    }
+
+    /**
+     * Gives the request a deadline.  If it hasn't completed by then it is aborted and completes with
+     * response code 0 and a {@link TimeoutException}.
+     *
+     * @param timeoutInMilliseconds time from now the request has to complete in.
+     * @return this future.
+     */
+    public PIAPIFuture setDeadline(final long timeoutInMilliseconds) {
+        Runnable deadline = new Runnable() {
+            @Override
+            public void run() {
+                PIAPIResult result = new PIAPIResult();
+                result.setResponseCode(0);
+                result.setException(new TimeoutException("Deadline of " + timeoutInMilliseconds + "ms exceeded"));
+                result.setResult("Deadline exceeded.");
+                if (complete(result)) {
+                    PILogger.e(TAG, "request missed its deadline of {}ms", timeoutInMilliseconds);
+                    mCancellationSignal.cancel();
+                }
+            }
+        };
+        synchronized (this) {
+            if (mCompleted || mCanceled) {
+                return this;
+            }
+            if (mDeadline != null) {
+                mDeadline.cancel(false);
+            }
+            mDeadline = getTimer().schedule(deadline, timeoutInMilliseconds, TimeUnit.MILLISECONDS);
+        }
+        return this;
+    }
+
+    /**
+     * Adds a completion handler, called once the request completes.  If it already has, the handler
+     * is called right away.
+     *
+     * @param completionHandler callback for the result.
+     * @return this future.
+     */
+    public PIAPIFuture addCompletionHandler(final PIAPICompletionHandler completionHandler) {
+        final PIAPIResult result;
+        synchronized (this) {
+            if (mCanceled) {
+                return this;
+            }
+            if (!mCompleted) {
+                mListeners.add(completionHandler);
+                return this;
+            }
+            result = mResult;
+        }
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                completionHandler.onComplete(result);
+            }
+        });
+        return this;
+    }
+
+    /**
+     * Chains a request onto this one.  The returned future completes with the result of the request
+     * the continuation makes.  Canceling it cancels whichever request of the chain is running, and it is
+     * canceled if that request is.
+     *
+     * @param continuation builds the next request from the result of this one.
+     * @return a future for the end of the chain.
+     */
+    public PIAPIFuture then(final Continuation continuation) {
+        final PIAPIFuture chained = new PIAPIFuture(null);
+        chained.cancelWith(this);
+        chained.cancelAlongWith(this);
+        addCompletionHandler(new PIAPICompletionHandler() {
+            @Override
+            public void onComplete(PIAPIResult result) {
+                if (chained.isCancelled()) {
+                    return;
+                }
+                PIAPIFuture next = continuation.then(result);
+                if (next == null) {
+                    chained.complete(result);
+                    return;
+                }
+                chained.cancelWith(next);
+                chained.cancelAlongWith(next);
+                next.addCompletionHandler(new PIAPICompletionHandler() {
+                    @Override
+                    public void onComplete(PIAPIResult nextResult) {
+                        chained.complete(nextResult);
+                    }
+                });
+            }
+        });
+        return chained;
+    }
+
+    /**
+     * Combines requests into one that completes once all of them have.  Its result is the
+     * ArrayList&lt;{@link PIAPIResult PIAPIResult}&gt; of the requests, in order, and its response code is
+     * 200 if all of them succeeded, or the response code of the first one that didn't.  Canceling it
+     * cancels all of the requests, and it is canceled if any of them is.
+     *
+     * @param futures requests to combine.
+     * @return a future for all of the requests.
+     */
+    public static PIAPIFuture allOf(final PIAPIFuture... futures) {
+        final PIAPIFuture all = new PIAPIFuture(null);
+        final PIAPIResult[] results = new PIAPIResult[futures.length];
+        final int[] remaining = { futures.length };
+        if (futures.length == 0) {
+            all.complete(combine(results));
+            return all;
+        }
+        for (int i = 0; i < futures.length; i++) {
+            final int index = i;
+            all.cancelWith(futures[i]);
+            all.cancelAlongWith(futures[i]);
+            futures[i].addCompletionHandler(new PIAPICompletionHandler() {
+                @Override
+                public void onComplete(PIAPIResult result) {
+                    boolean done;
+                    synchronized (results) {
+                        results[index] = result;
+                        done = --remaining[0] == 0;
+                    }
+                    if (done) {
+                        all.complete(combine(results));
+                    }
+                }
+            });
+        }
+        return all;
+    }
+
+    private static PIAPIResult combine(PIAPIResult[] results) {
+        ArrayList<PIAPIResult> combined = new ArrayList<PIAPIResult>(results.length);
+        int responseCode = HttpURLConnection.HTTP_OK;
+        for (PIAPIResult result : results) {
+            combined.add(result);
+            int code = result.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_OK
+                    && (code < HttpURLConnection.HTTP_OK || code >= HttpURLConnection.HTTP_BAD_REQUEST)) {
+                responseCode = code;
+            }
+        }
+        return new PIAPIResult(combined, responseCode);
+    }
+
+    // the other way around from cancelWith, for futures waiting on the other one's result
+    private void cancelAlongWith(final PIAPIFuture other) {
+        other.mCancellationSignal.addOnCancelListener(new Runnable() {
+            @Override
+            public void run() {
+                // the signal also fires when a deadline aborts a request, that one still completes
+                if (other.isCancelled()) {
+                    cancel(true);
+                }
+            }
+        });
+    }
+
+    private void clearDeadline() {
+        ScheduledFuture<?> deadline;
+        synchronized (this) {
+            deadline = mDeadline;
+            mDeadline = null;
+        }
+        if (deadline != null) {
+            deadline.cancel(false);
+        }
+    }
+
+    private ScheduledExecutorService getTimer() {
+        return mTimer != null ? mTimer : PIClient.getDefault().getTimer();
+    }
+}
@@ -21,6 +21,7 @@ import com.ibm.json.java.JSONObject;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
@@ -32,6 +33,29 @@ import java.util.Map;
  */
 public class PIAPIResult implements Serializable {
 
+    /**
+     * Where the payload of a result came from.
+     */
+    public enum CacheStatus {
+        /**
+         * the call is not cacheable
+         */
+        NONE,
+        /**
+         * the document was downloaded and parsed
+         */
+        MISS,
+        /**
+         * the payload came from the cache and is known to be current
+         */
+        HIT,
+        /**
+         * the payload came from the cache but may be out of date, either it is being revalidated in the
+         * background or the server could not be reached
+         */
+        STALE
+    }
+
     /**
      * payload returned from API call
      */
@@ -48,6 +72,18 @@ public class PIAPIResult implements Serializable {
      * Exception raised during API call
      */
     private Exception exception;
+    /**
+     * Where the payload came from
+     */
+    private CacheStatus cacheStatus = CacheStatus.NONE;
+    /**
+     * Whether the payload already holds doctypes rather than the raw document
+     */
+    private boolean parsed = false;
+    /**
+     * Where the time of the call went
+     */
+    private PIRequestTiming timing;
 
     /**
      * Default constructor
@@ -159,6 +195,70 @@ public class PIAPIResult implements Serializable {
         this.exception = exception;
     }
 
+    /**
+     *
+     * @return where the payload came from
+     */
+    public CacheStatus getCacheStatus() {
+        return cacheStatus;
+    }
+
+    /**
+     *
+     * @param cacheStatus where the payload came from
+     */
+    public void setCacheStatus(CacheStatus cacheStatus) {
+        this.cacheStatus = cacheStatus;
+    }
+
+    /**
+     *
+     * @return true if the payload was served from the cache
+     */
+    public boolean isFromCache() {
+        return cacheStatus == CacheStatus.HIT || cacheStatus == CacheStatus.STALE;
+    }
+
+    /**
+     *
+     * @return where the time of the call went, null if the call never made it to a request thread
+     */
+    public PIRequestTiming getTiming() {
+        return timing;
+    }
+
+    /**
+     *
+     * @param timing where the time of the call went
+     */
+    void setTiming(PIRequestTiming timing) {
+        this.timing = timing;
+    }
+
+    /**
+     * Copies the result for handing to another caller.  List payloads are copied so callers can't
+     * change each other's results.
+     */
+    @SuppressWarnings("unchecked")
+    PIAPIResult copy() {
+        PIAPIResult copy = new PIAPIResult(
+                result instanceof ArrayList ? new ArrayList<Object>((ArrayList<Object>) result) : result, responseCode);
+        copy.header = header;
+        copy.exception = exception;
+        copy.cacheStatus = cacheStatus;
+        copy.parsed = parsed;
+        copy.timing = timing;
+        return copy;
+    }
+
+    boolean isParsed() {
+        return parsed;
+    }
+
+    void setParsed(boolean parsed) {
+        this.parsed = parsed;
+    }
+
     @Override
     public String toString() {
         String returnString = "";
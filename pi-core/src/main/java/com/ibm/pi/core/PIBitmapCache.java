@@ -0,0 +1,221 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.LruCache;
+
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+
+/**
+ * This class keeps decoded floor maps in memory under a byte budget, least recently used maps are
+ * dropped first.  It also decodes floor maps, downsampled to the size they are displayed at, into
+ * bitmaps handed back through {@link #release(Bitmap)} so their memory gets reused instead of
+ * allocated again.
+ *
+ * The same cached bitmap can be handed to several callers, so every bitmap handed out is counted and
+ * only reused once each caller has released it and the cache no longer holds it.
+ */
+class PIBitmapCache {
+    private static final String TAG = PIBitmapCache.class.getSimpleName();
+
+    private static final int BYTES_PER_PIXEL = 4; // ARGB_8888
+
+    private final LruCache<String, Bitmap> mCache;
+    private final LinkedList<Bitmap> mPool = new LinkedList<Bitmap>();
+    // bitmap -> callers it was handed to that haven't released it, guarded by mPool
+    private final IdentityHashMap<Bitmap, Integer> mHolders = new IdentityHashMap<Bitmap, Integer>();
+    private final int mMaxPoolSizeInBytes;
+    private int mPoolSizeInBytes = 0;
+
+    PIBitmapCache(int maxSizeInBytes) {
+        mCache = new LruCache<String, Bitmap>(maxSizeInBytes) {
+            @Override
+            protected int sizeOf(String key, Bitmap bitmap) {
+                return bitmap.getByteCount();
+            }
+
+            @Override
+            protected void entryRemoved(boolean evicted, String key, Bitmap oldValue, Bitmap newValue) {
+                if (oldValue != newValue) {
+                    // nobody displays it anymore, now that the cache is done with it too it can be reused
+                    recycleIfUnused(oldValue);
+                }
+            }
+        };
+        mMaxPoolSizeInBytes = maxSizeInBytes / 4;
+    }
+
+    static String key(String url, int targetWidth, int targetHeight) {
+        return url + "#" + targetWidth + "x" + targetHeight;
+    }
+
+    /**
+     * @return the cached bitmap, counted as handed to the caller until it is released.
+     */
+    Bitmap get(String key) {
+        Bitmap bitmap = mCache.get(key);
+        if (bitmap != null) {
+            retain(bitmap);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Caches a bitmap that is being handed to the caller, counted as such until it is released.
+     */
+    void put(String key, Bitmap bitmap) {
+        retain(bitmap);
+        mCache.put(key, bitmap);
+    }
+
+    void clear() {
+        mCache.evictAll();
+        synchronized (mPool) {
+            mPool.clear();
+            mPoolSizeInBytes = 0;
+            mHolders.clear();
+        }
+    }
+
+    /**
+     * Hands a bitmap back.  It is only reused once every caller it was handed to has released it and it
+     * is no longer cached.  Bitmaps this cache didn't hand out, or releases past the last one, are ignored.
+     */
+    void release(Bitmap bitmap) {
+        if (bitmap == null) {
+            return;
+        }
+        synchronized (mPool) {
+            Integer holders = mHolders.get(bitmap);
+            if (holders == null) {
+                return;
+            }
+            if (holders > 1) {
+                mHolders.put(bitmap, holders - 1);
+                return;
+            }
+            mHolders.remove(bitmap);
+        }
+        if (!mCache.snapshot().containsValue(bitmap)) {
+            recycleIfUnused(bitmap);
+        }
+    }
+
+    private void retain(Bitmap bitmap) {
+        synchronized (mPool) {
+            Integer holders = mHolders.get(bitmap);
+            mHolders.put(bitmap, holders == null ? 1 : holders + 1);
+        }
+    }
+
+    // pools a bitmap that is neither cached nor held by any caller
+    private void recycleIfUnused(Bitmap bitmap) {
+        if (bitmap.isRecycled() || !bitmap.isMutable()) {
+            return;
+        }
+        synchronized (mPool) {
+            if (mHolders.containsKey(bitmap) || mPool.contains(bitmap)) {
+                return;
+            }
+            mPool.addLast(bitmap);
+            mPoolSizeInBytes += bitmap.getByteCount();
+            while (mPoolSizeInBytes > mMaxPoolSizeInBytes && !mPool.isEmpty()) {
+                mPoolSizeInBytes -= mPool.removeFirst().getByteCount();
+            }
+        }
+    }
+
+    /**
+     * Decodes an image, downsampled so it is no smaller than the target size.
+     *
+     * @param data encoded image.
+     * @param targetWidth width the image will be displayed at, 0 to decode at full resolution.
+     * @param targetHeight height the image will be displayed at, 0 to decode at full resolution.
+     * @return the bitmap, or null if the data could not be decoded.
+     */
+    Bitmap decode(byte[] data, int targetWidth, int targetHeight) {
+        BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        if (options.outWidth <= 0 || options.outHeight <= 0) {
+            return null;
+        }
+
+        options.inJustDecodeBounds = false;
+        options.inSampleSize = calculateSampleSize(options.outWidth, options.outHeight, targetWidth, targetHeight);
+        options.inMutable = true;
+        options.inBitmap = takeReusable(options.outWidth, options.outHeight, options.inSampleSize);
+        try {
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        } catch (IllegalArgumentException e) {
+            // the pooled bitmap didn't fit after all
+            PILogger.d(TAG, "could not reuse bitmap: {}", e.getMessage());
+            options.inBitmap = null;
+            return BitmapFactory.decodeByteArray(data, 0, data.length, options);
+        }
+    }
+
+    // largest power of two that keeps both sides at or above the target
+    static int calculateSampleSize(int width, int height, int targetWidth, int targetHeight) {
+        int sampleSize = 1;
+        if (targetWidth <= 0 || targetHeight <= 0) {
+            return sampleSize;
+        }
+        while ((width / (sampleSize * 2)) >= targetWidth && (height / (sampleSize * 2)) >= targetHeight) {
+            sampleSize *= 2;
+        }
+        return sampleSize;
+    }
+
+    private Bitmap takeReusable(int width, int height, int sampleSize) {
+        synchronized (mPool) {
+            Iterator<Bitmap> iterator = mPool.iterator();
+            while (iterator.hasNext()) {
+                Bitmap candidate = iterator.next();
+                if (mHolders.containsKey(candidate)) {
+                    // handed out again from the cache as it was being evicted, it is on screen
+                    iterator.remove();
+                    mPoolSizeInBytes -= candidate.getByteCount();
+                    continue;
+                }
+                if (canReuse(candidate, width, height, sampleSize)) {
+                    iterator.remove();
+                    mPoolSizeInBytes -= candidate.getByteCount();
+                    return candidate;
+                }
+            }
+        }
+        return null;
+    }
+
+    private static boolean canReuse(Bitmap candidate, int width, int height, int sampleSize) {
+        if (candidate.isRecycled()) {
+            return false;
+        }
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            int byteCount = (width / sampleSize) * (height / sampleSize) * BYTES_PER_PIXEL;
+            return byteCount <= candidate.getAllocationByteCount();
+        }
+        // before KitKat only same sized, unsampled bitmaps can be reused
+        return sampleSize == 1 && candidate.getWidth() == width && candidate.getHeight() == height;
+    }
+}
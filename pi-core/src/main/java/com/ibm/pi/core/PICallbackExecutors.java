@@ -0,0 +1,70 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+
+/**
+ * This class provides the executors PIAPIAdapter completion handlers can be run on.
+ *
+ * @see PIAPIAdapter#setCallbackExecutor(Executor)
+ */
+public final class PICallbackExecutors {
+
+    private static Executor sMainThread;
+
+    private static final Executor INLINE = new Executor() {
+        @Override
+        public void execute(Runnable runnable) {
+            runnable.run();
+        }
+    };
+
+    private PICallbackExecutors() {
+    }
+
+    /**
+     * Runs completion handlers on the main thread.  This is the default.
+     *
+     * @return an executor that posts to the main looper.
+     */
+    public static synchronized Executor mainThread() {
+        if (sMainThread == null) {
+            final Handler handler = new Handler(Looper.getMainLooper());
+            sMainThread = new Executor() {
+                @Override
+                public void execute(Runnable runnable) {
+                    handler.post(runnable);
+                }
+            };
+        }
+        return sMainThread;
+    }
+
+    /**
+     * Runs completion handlers right on the request thread, with no thread hop.  Meant for services
+     * that don't touch the UI.  Handlers must be quick, they hold up the request lane while they run.
+     *
+     * @return an executor that runs in the calling thread.
+     */
+    public static Executor inline() {
+        return INLINE;
+    }
+}
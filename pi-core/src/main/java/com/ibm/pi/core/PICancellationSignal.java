@@ -0,0 +1,77 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+import java.util.ArrayList;
+
+/**
+ * This class signals that a request has been canceled.  Transports listen for it to abort the
+ * connection of a request that is still in flight.
+ */
+public class PICancellationSignal {
+    private boolean mCanceled = false;
+    private final ArrayList<Runnable> mListeners = new ArrayList<Runnable>();
+
+    /**
+     *
+     * @return true if the request has been canceled
+     */
+    public synchronized boolean isCanceled() {
+        return mCanceled;
+    }
+
+    /**
+     * Cancels the request and runs the cancel listeners.  Does nothing if already canceled.
+     */
+    public void cancel() {
+        ArrayList<Runnable> listeners;
+        synchronized (this) {
+            if (mCanceled) {
+                return;
+            }
+            mCanceled = true;
+            listeners = new ArrayList<Runnable>(mListeners);
+            mListeners.clear();
+        }
+        for (Runnable listener : listeners) {
+            listener.run();
+        }
+    }
+
+    /**
+     * Adds a listener run on cancel, on the thread that cancels.  If already canceled it runs right away.
+     *
+     * @param listener what to run on cancel.
+     */
+    public void addOnCancelListener(Runnable listener) {
+        synchronized (this) {
+            if (!mCanceled) {
+                mListeners.add(listener);
+                return;
+            }
+        }
+        listener.run();
+    }
+
+    /**
+     *
+     * @param listener listener to stop running on cancel.
+     */
+    public synchronized void removeOnCancelListener(Runnable listener) {
+        mListeners.remove(listener);
+    }
+}
@@ -0,0 +1,167 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+/**
+ * This class stops the PIAPIAdapter from sending requests to a host that keeps failing.
+ *
+ * After a run of consecutive failures (the server could not be reached or answered with a 5xx) the
+ * circuit opens and requests fail right away without touching the network.  Once the open period is
+ * over the circuit goes half open and lets a single probe request through: if it succeeds the circuit
+ * closes, otherwise it opens again for twice as long, up to a ceiling.
+ */
+public class PICircuitBreaker {
+    private static final String TAG = PICircuitBreaker.class.getSimpleName();
+
+    public static final int DEFAULT_FAILURE_THRESHOLD = 5;
+    public static final long DEFAULT_OPEN_DURATION_IN_MILLISECONDS = 30 * 1000; /* milliseconds */
+    public static final long DEFAULT_MAX_OPEN_DURATION_IN_MILLISECONDS = 10 * 60 * 1000; /* milliseconds */
+
+    /**
+     * States of the circuit.
+     */
+    public enum State {
+        /**
+         * requests go through
+         */
+        CLOSED,
+        /**
+         * requests fail right away
+         */
+        OPEN,
+        /**
+         * a single probe request is allowed through to test the host
+         */
+        HALF_OPEN
+    }
+
+    private final String mHost;
+    private final int mFailureThreshold;
+    private final long mBaseOpenDuration;
+    private final long mMaxOpenDuration;
+
+    private State mState = State.CLOSED;
+    private int mConsecutiveFailures = 0;
+    private long mOpenDuration;
+    private long mOpenedAt = 0;
+    private boolean mProbeInFlight = false;
+
+    PICircuitBreaker(String host) {
+        this(host, DEFAULT_FAILURE_THRESHOLD, DEFAULT_OPEN_DURATION_IN_MILLISECONDS, DEFAULT_MAX_OPEN_DURATION_IN_MILLISECONDS);
+    }
+
+    PICircuitBreaker(String host, int failureThreshold, long openDurationInMilliseconds, long maxOpenDurationInMilliseconds) {
+        mHost = host;
+        mFailureThreshold = failureThreshold;
+        mBaseOpenDuration = openDurationInMilliseconds;
+        mMaxOpenDuration = maxOpenDurationInMilliseconds;
+        mOpenDuration = openDurationInMilliseconds;
+    }
+
+    /**
+     *
+     * @return host the circuit guards
+     */
+    public String getHost() {
+        return mHost;
+    }
+
+    /**
+     *
+     * @return current state of the circuit
+     */
+    public synchronized State getState() {
+        if (mState == State.OPEN && System.currentTimeMillis() - mOpenedAt >= mOpenDuration) {
+            mState = State.HALF_OPEN;
+            mProbeInFlight = false;
+        }
+        return mState;
+    }
+
+    /**
+     *
+     * @return ms until an open circuit lets a probe through, 0 if it isn't open
+     */
+    public synchronized long getRemainingOpenTime() {
+        if (getState() != State.OPEN) {
+            return 0;
+        }
+        return mOpenDuration - (System.currentTimeMillis() - mOpenedAt);
+    }
+
+    /**
+     * Asks to send a request.  In the half open state only the first caller gets through.
+     *
+     * @return true if the request may be sent.
+     */
+    synchronized boolean allowRequest() {
+        switch (getState()) {
+            case CLOSED:
+                return true;
+            case HALF_OPEN:
+                if (mProbeInFlight) {
+                    return false;
+                }
+                mProbeInFlight = true;
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    synchronized void onSuccess() {
+        if (mState != State.CLOSED) {
+            PILogger.d(TAG, "closing circuit for {}", mHost);
+        }
+        mState = State.CLOSED;
+        mConsecutiveFailures = 0;
+        mOpenDuration = mBaseOpenDuration;
+        mProbeInFlight = false;
+    }
+
+    synchronized void onFailure() {
+        mConsecutiveFailures++;
+        if (mState == State.HALF_OPEN) {
+            // the probe failed, back off for longer
+            mOpenDuration = Math.min(mMaxOpenDuration, mOpenDuration * 2);
+            open();
+        } else if (mState == State.CLOSED && mConsecutiveFailures >= mFailureThreshold) {
+            open();
+        }
+    }
+
+    /**
+     * Called when a request let through is canceled before its outcome is known.  Says nothing about
+     * the host, but frees the probe slot so a canceled probe doesn't keep the circuit half open for good.
+     */
+    synchronized void onAbandoned() {
+        if (mState == State.HALF_OPEN) {
+            mProbeInFlight = false;
+        }
+    }
+
+    static boolean isFailure(int responseCode) {
+        return responseCode == 0 || responseCode >= 500;
+    }
+
+    private void open() {
+        PILogger.e(TAG, "opening circuit for {} for {}ms", mHost, mOpenDuration);
+        mState = State.OPEN;
+        mOpenedAt = System.currentTimeMillis();
+        mProbeInFlight = false;
+    }
+}
@@ -0,0 +1,301 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+
+package com.ibm.pi.core;
+
+import android.content.Context;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * This class holds the resources PIAPIAdapters need to send requests: the request thread pools, the
+ * HTTP transport and its connection pool, the validators of fetched config documents, the document
+ * and floor map caches, the executor completion handlers are called on, the transfer counters, the
+ * request metrics, and what is learned about the backends while sending: circuit breakers, recent
+ * latencies, the retry and hedge budgets and the rate limiters.
+ *
+ * Adapters are thin views holding only their credentials and settings.  Adapters made with the
+ * PIAPIAdapter constructor share the default client, apps that want to keep a group of adapters apart
+ * create their own client and make the adapters with {@link #newAdapter}.
+ */
+public class PIClient {
+    private static final String TAG = PIClient.class.getSimpleName();
+
+    // connections are pooled process wide, so clients share one transport unless told otherwise
+    private static PIHttpTransport sDefaultTransport;
+    private static PIClient sDefault;
+
+    private PIRequestExecutor mRequestExecutor;
+    private PIHttpTransport mTransport;
+    private PITransferStats mTransferStats;
+    private PIMetrics mMetrics;
+    private PIConditionalCache mConditionalCache;
+    private Executor mCallbackExecutor;
+    // one disk cache per directory, so adapters sharing a directory share its size budget
+    private final HashMap<String, PIDiskCache> mDiskCaches = new HashMap<String, PIDiskCache>();
+    private PIBitmapCache mBitmapCache;
+    // a host's health is the same whichever adapter talks to it
+    private final HashMap<String, PICircuitBreaker> mCircuitBreakers = new HashMap<String, PICircuitBreaker>();
+    private final PILatencyWindows mLatencies = new PILatencyWindows();
+    private final PIRetryBudget mRetryBudget = new PIRetryBudget();
+    private final PIHedgeBudget mHedgeBudget = new PIHedgeBudget(PIHedgeBudget.DEFAULT_RATIO);
+    private final HashMap<PIRateLimiter.Group, PIRateLimiter> mRateLimiters = new HashMap<PIRateLimiter.Group, PIRateLimiter>();
+    // only fires timers, the requests they start run on their lanes
+    private ScheduledExecutorService mTimer;
+
+    /**
+     * Creates a client with its own thread pools, validators and counters.  Connections are still
+     * pooled with all other clients unless {@link #setTransport(PIHttpTransport)} is called.
+     */
+    public PIClient() {
+    }
+
+    /**
+     * The process wide client, used by adapters made with the PIAPIAdapter constructor.  Adapters are
+     * attached to it after being serialized, for instance when passed to the beacon sensor service.
+     *
+     * @return the default client.
+     */
+    public static synchronized PIClient getDefault() {
+        if (sDefault == null) {
+            sDefault = new PIClient();
+        }
+        return sDefault;
+    }
+
+    /**
+     * Creates an adapter for a tenant and org that sends its requests through this client.
+     *
+     * @param context Activity context
+     * @param username username for tenant
+     * @param password password for tenant
+     * @param hostname url
+     * @param tenantCode unique identifier for the tenant
+     * @param orgCode unique identifier for the organization
+     * @return an adapter sharing this client's resources.
+     */
+    public PIAPIAdapter newAdapter(Context context, String username, String password, String hostname, String tenantCode, String orgCode) {
+        PILogger.d(TAG, "creating adapter for tenant: {}, org: {}", tenantCode, orgCode);
+        return new PIAPIAdapter(this, context, username, password, hostname, tenantCode, orgCode);
+    }
+
+    /**
+     * Replaces the thread pools requests are run on, for all adapters of this client.
+     *
+     * @param requestExecutor executor to run requests on.
+     */
+    public synchronized void setRequestExecutor(PIRequestExecutor requestExecutor) {
+        mRequestExecutor = requestExecutor;
+    }
+
+    /**
+     *
+     * @return executor requests are run on.
+     */
+    public synchronized PIRequestExecutor getRequestExecutor() {
+        if (mRequestExecutor == null) {
+            mRequestExecutor = new PIRequestExecutor();
+        }
+        return mRequestExecutor;
+    }
+
+    /**
+     * Replaces the HTTP stack requests are sent through, for all adapters of this client.
+     *
+     * @param transport transport to send requests with.
+     */
+    public synchronized void setTransport(PIHttpTransport transport) {
+        mTransport = transport;
+    }
+
+    /**
+     *
+     * @return transport requests are sent through.
+     */
+    public synchronized PIHttpTransport getTransport() {
+        if (mTransport == null) {
+            mTransport = getDefaultTransport();
+        }
+        return mTransport;
+    }
+
+    private static synchronized PIHttpTransport getDefaultTransport() {
+        if (sDefaultTransport == null) {
+            sDefaultTransport = new PIPooledHttpTransport();
+        }
+        return sDefaultTransport;
+    }
+
+    /**
+     * Sets the executor completion handlers are called on, for all adapters of this client that don't set
+     * their own.
+     *
+     * @param callbackExecutor executor to call back on, see {@link PICallbackExecutors}.
+     */
+    public synchronized void setCallbackExecutor(Executor callbackExecutor) {
+        mCallbackExecutor = callbackExecutor;
+    }
+
+    /**
+     *
+     * @return executor completion handlers are called on, the main thread by default.
+     */
+    public synchronized Executor getCallbackExecutor() {
+        if (mCallbackExecutor == null) {
+            mCallbackExecutor = PICallbackExecutors.mainThread();
+        }
+        return mCallbackExecutor;
+    }
+
+    /**
+     *
+     * @return byte counters for the requests sent by all adapters of this client.
+     */
+    public synchronized PITransferStats getTransferStats() {
+        if (mTransferStats == null) {
+            mTransferStats = new PITransferStats();
+        }
+        return mTransferStats;
+    }
+
+    /**
+     *
+     * @return latency, throughput and response code metrics of the requests sent by all adapters of this client.
+     */
+    public synchronized PIMetrics getMetrics() {
+        if (mMetrics == null) {
+            mMetrics = new PIMetrics();
+        }
+        return mMetrics;
+    }
+
+    // documents are keyed by url, which holds the tenant and org, so adapters can't see each other's
+    synchronized PIConditionalCache getConditionalCache() {
+        if (mConditionalCache == null) {
+            mConditionalCache = new PIConditionalCache();
+        }
+        return mConditionalCache;
+    }
+
+    // the size is only used by the first adapter to open the directory
+    synchronized PIDiskCache getDiskCache(File directory, long maxSizeInBytes) {
+        PIDiskCache diskCache = mDiskCaches.get(directory.getPath());
+        if (diskCache == null) {
+            diskCache = new PIDiskCache(directory, maxSizeInBytes);
+            mDiskCaches.put(directory.getPath(), diskCache);
+        }
+        return diskCache;
+    }
+
+    /**
+     * Sets the memory budget of the floor map cache of this client.  Defaults to an eighth of the
+     * app's heap.
+     *
+     * @param maxSizeInBytes maximum size of the cached bitmaps in bytes.
+     */
+    public synchronized void setFloorMapCacheSize(int maxSizeInBytes) {
+        if (mBitmapCache != null) {
+            mBitmapCache.clear();
+        }
+        mBitmapCache = new PIBitmapCache(maxSizeInBytes);
+    }
+
+    synchronized PIBitmapCache getBitmapCache() {
+        if (mBitmapCache == null) {
+            mBitmapCache = new PIBitmapCache((int) Math.min(Integer.MAX_VALUE, Runtime.getRuntime().maxMemory() / 8));
+        }
+        return mBitmapCache;
+    }
+
+    synchronized PICircuitBreaker getCircuitBreaker(String host) {
+        PICircuitBreaker circuitBreaker = mCircuitBreakers.get(host);
+        if (circuitBreaker == null) {
+            circuitBreaker = new PICircuitBreaker(host);
+            mCircuitBreakers.put(host, circuitBreaker);
+        }
+        return circuitBreaker;
+    }
+
+    PILatencyWindows getLatencies() {
+        return mLatencies;
+    }
+
+    PIRetryBudget getRetryBudget() {
+        return mRetryBudget;
+    }
+
+    /**
+     * Caps the hedges sent by the adapters of this client to a fraction of the reads that could be
+     * hedged, so hedging can't pile load onto a backend that is slow for everyone.  Defaults to 0.05.
+     *
+     * @param ratio hedges allowed per hedgeable read, e.g. 0.05 allows one hedge for every twenty reads.
+     */
+    public void setHedgeBudget(double ratio) {
+        mHedgeBudget.setRatio(ratio);
+    }
+
+    PIHedgeBudget getHedgeBudget() {
+        return mHedgeBudget;
+    }
+
+    /**
+     * Limits the rate the adapters of this client send requests to a group of endpoints at.  No group
+     * is limited by default.
+     *
+     * @param group the endpoints to limit.
+     * @param rateLimiter limiter for the group, null to stop limiting it.
+     */
+    public synchronized void setRateLimiter(PIRateLimiter.Group group, PIRateLimiter rateLimiter) {
+        if (rateLimiter != null) {
+            mRateLimiters.put(group, rateLimiter);
+        } else {
+            mRateLimiters.remove(group);
+        }
+    }
+
+    synchronized PIRateLimiter getRateLimiter(PIRateLimiter.Group group) {
+        return mRateLimiters.get(group);
+    }
+
+    synchronized ScheduledExecutorService getTimer() {
+        if (mTimer == null) {
+            mTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "pi-timer");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mTimer;
+    }
+
+    /**
+     * Stops accepting requests.  Requests already queued still run.
+     */
+    public synchronized void shutdown() {
+        if (mRequestExecutor != null) {
+            mRequestExecutor.shutdown();
+        }
+    }
+}
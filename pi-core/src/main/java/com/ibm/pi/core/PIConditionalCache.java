@@ -0,0 +1,102 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class remembers the validators (ETag and Last-Modified) of the config documents the
+ * PIAPIAdapter has fetched, along with the doctypes parsed from them.  When the server answers a
+ * conditional GET with 304 Not Modified, the previously parsed doctypes are handed back instead of
+ * downloading and parsing the document again.
+ *
+ * The least recently used entries are dropped once the cache is full.
+ */
+class PIConditionalCache {
+    private static final int DEFAULT_MAX_ENTRIES = 64;
+
+    static class CachedDocument {
+        final String etag;
+        final String lastModified;
+        private final Object parsed;
+
+        CachedDocument(String etag, String lastModified, Object parsed) {
+            this.etag = etag;
+            this.lastModified = lastModified;
+            // the caller the doctypes were parsed for keeps the original list
+            this.parsed = copy(parsed);
+        }
+
+        /**
+         * Lists are copied so one caller changing its result doesn't affect the others.
+         *
+         * @return the parsed doctypes.
+         */
+        Object getParsed() {
+            return copy(parsed);
+        }
+
+        @SuppressWarnings("unchecked")
+        private static Object copy(Object parsed) {
+            if (parsed instanceof ArrayList) {
+                return new ArrayList<Object>((ArrayList<Object>) parsed);
+            }
+            return parsed;
+        }
+    }
+
+    private final Map<String, CachedDocument> mEntries;
+
+    PIConditionalCache() {
+        this(DEFAULT_MAX_ENTRIES);
+    }
+
+    PIConditionalCache(final int maxEntries) {
+        mEntries = new LinkedHashMap<String, CachedDocument>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, CachedDocument> eldest) {
+                return size() > maxEntries;
+            }
+        };
+    }
+
+    synchronized CachedDocument get(String url) {
+        return mEntries.get(url);
+    }
+
+    /**
+     * Stores the parsed doctypes of a document.  Documents without validators can't be revalidated,
+     * so they aren't stored.
+     */
+    synchronized void put(String url, String etag, String lastModified, Object parsed) {
+        if (etag == null && lastModified == null) {
+            mEntries.remove(url);
+        } else {
+            mEntries.put(url, new CachedDocument(etag, lastModified, parsed));
+        }
+    }
+
+    synchronized void remove(String url) {
+        mEntries.remove(url);
+    }
+
+    synchronized void clear() {
+        mEntries.clear();
+    }
+}
@@ -0,0 +1,244 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class stores the raw config documents fetched by the PIAPIAdapter on disk, keyed by their
+ * url, so they survive restarts of the app and can be served without a network.
+ *
+ * The cache is kept under a size budget, the least recently used documents are deleted first.
+ */
+class PIDiskCache {
+    private static final String TAG = PIDiskCache.class.getSimpleName();
+
+    private static final int FORMAT_VERSION = 1;
+    private static final String TEMP_SUFFIX = ".tmp";
+
+    static class Document {
+        final String url;
+        final long storedAt;
+        final String etag;
+        final String lastModified;
+        final String body;
+
+        Document(String url, long storedAt, String etag, String lastModified, String body) {
+            this.url = url;
+            this.storedAt = storedAt;
+            this.etag = etag;
+            this.lastModified = lastModified;
+            this.body = body;
+        }
+
+        long getAge() {
+            return System.currentTimeMillis() - storedAt;
+        }
+    }
+
+    private final File mDirectory;
+    private final long mMaxSizeInBytes;
+    // file name -> size, in access order
+    private LinkedHashMap<String, Long> mIndex;
+    private long mSize = 0;
+
+    PIDiskCache(File directory, long maxSizeInBytes) {
+        mDirectory = directory;
+        mMaxSizeInBytes = maxSizeInBytes;
+    }
+
+    synchronized Document get(String url) {
+        String name = fileName(url);
+        if (!getIndex().containsKey(name)) {
+            return null;
+        }
+        File file = new File(mDirectory, name);
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if (in.readInt() != FORMAT_VERSION) {
+                throw new IOException("unknown cache format");
+            }
+            String storedUrl = in.readUTF();
+            long storedAt = in.readLong();
+            String etag = emptyToNull(in.readUTF());
+            String lastModified = emptyToNull(in.readUTF());
+            byte[] body = new byte[in.readInt()];
+            in.readFully(body);
+            if (!url.equals(storedUrl)) {
+                // hash collision, treat as a miss
+                return null;
+            }
+            file.setLastModified(System.currentTimeMillis());
+            return new Document(storedUrl, storedAt, etag, lastModified, new String(body, "UTF-8"));
+        } catch (IOException e) {
+            PILogger.e(TAG, "dropping unreadable cache entry for {}: {}", url, e);
+            delete(name);
+            return null;
+        } finally {
+            closeQuietly(in);
+        }
+    }
+
+    synchronized void put(String url, String etag, String lastModified, String body) {
+        if (!mDirectory.exists() && !mDirectory.mkdirs()) {
+            PILogger.e(TAG, "could not create cache directory {}", mDirectory);
+            return;
+        }
+        String name = fileName(url);
+        File temp = new File(mDirectory, name + TEMP_SUFFIX);
+        DataOutputStream out = null;
+        try {
+            byte[] bytes = body.getBytes("UTF-8");
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+            out.writeInt(FORMAT_VERSION);
+            out.writeUTF(url);
+            out.writeLong(System.currentTimeMillis());
+            out.writeUTF(etag != null ? etag : "");
+            out.writeUTF(lastModified != null ? lastModified : "");
+            out.writeInt(bytes.length);
+            out.write(bytes);
+            out.close();
+            out = null;
+
+            // rename so readers never see a half written document
+            File file = new File(mDirectory, name);
+            if (!temp.renameTo(file)) {
+                throw new IOException("could not rename " + temp);
+            }
+            Long previous = getIndex().put(name, file.length());
+            mSize += file.length() - (previous != null ? previous : 0);
+            trimToSize();
+        } catch (IOException e) {
+            PILogger.e(TAG, "could not cache {}: {}", url, e);
+            temp.delete();
+        } finally {
+            closeQuietly(out);
+        }
+    }
+
+    /**
+     * Marks a document as fresh again, used when the server confirmed it hasn't changed.
+     */
+    synchronized void touch(String url) {
+        Document document = get(url);
+        if (document != null) {
+            put(url, document.etag, document.lastModified, document.body);
+        }
+    }
+
+    synchronized void clear() {
+        for (String name : getIndex().keySet().toArray(new String[0])) {
+            delete(name);
+        }
+    }
+
+    synchronized long getSize() {
+        getIndex();
+        return mSize;
+    }
+
+    private void trimToSize() {
+        Iterator<Map.Entry<String, Long>> eldest = getIndex().entrySet().iterator();
+        while (mSize > mMaxSizeInBytes && eldest.hasNext()) {
+            Map.Entry<String, Long> entry = eldest.next();
+            eldest.remove();
+            mSize -= entry.getValue();
+            new File(mDirectory, entry.getKey()).delete();
+        }
+    }
+
+    private void delete(String name) {
+        Long size = getIndex().remove(name);
+        if (size != null) {
+            mSize -= size;
+        }
+        new File(mDirectory, name).delete();
+    }
+
+    // built lazily from the files on disk, oldest access first
+    private LinkedHashMap<String, Long> getIndex() {
+        if (mIndex == null) {
+            mIndex = new LinkedHashMap<String, Long>(16, 0.75f, true);
+            File[] files = mDirectory.listFiles();
+            if (files != null) {
+                Arrays.sort(files, new Comparator<File>() {
+                    @Override
+                    public int compare(File lhs, File rhs) {
+                        long diff = lhs.lastModified() - rhs.lastModified();
+                        return diff < 0 ? -1 : (diff > 0 ? 1 : 0);
+                    }
+                });
+                for (File file : files) {
+                    if (file.getName().endsWith(TEMP_SUFFIX)) {
+                        // left behind by a crash mid write
+                        file.delete();
+                    } else {
+                        mIndex.put(file.getName(), file.length());
+                        mSize += file.length();
+                    }
+                }
+            }
+        }
+        return mIndex;
+    }
+
+    private static String fileName(String url) {
+        try {
+            MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            byte[] hash = digest.digest(url.getBytes("UTF-8"));
+            StringBuilder sb = new StringBuilder(hash.length * 2);
+            for (byte b : hash) {
+                sb.append(String.format("%02x", b & 0xff));
+            }
+            return sb.toString();
+        } catch (NoSuchAlgorithmException e) {
+            return Integer.toHexString(url.hashCode());
+        } catch (IOException e) {
+            return Integer.toHexString(url.hashCode());
+        }
+    }
+
+    private static String emptyToNull(String value) {
+        return value.length() == 0 ? null : value;
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // nothing left to do
+            }
+        }
+    }
+}
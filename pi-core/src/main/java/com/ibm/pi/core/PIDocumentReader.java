@@ -0,0 +1,132 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+import android.util.JsonReader;
+
+import com.ibm.json.java.JSONArray;
+import com.ibm.json.java.JSONObject;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+
+/**
+ * This class streams the elements of a list document (the rows or features of a config response)
+ * straight into doctypes.  The document as a whole is never loaded into a String or a JSON tree, only
+ * the element being read is held as a JSONObject until its doctype is built.
+ *
+ * The doctypes themselves are all returned at once, so memory still grows with the number of elements,
+ * by the size of the doctypes rather than that of the raw document and its tree.  Use a paged request,
+ * such as PIAPIAdapter.iterateDevices, where that is too much.
+ */
+class PIDocumentReader {
+
+    /**
+     * Builds a doctype from a single element of a list document.
+     */
+    interface ElementFactory<T> {
+        T create(JSONObject element);
+    }
+
+    private PIDocumentReader() {}
+
+    /**
+     * Reads the array held by a key of the top level object, e.g. "features" or "rows".
+     *
+     * @param in the document.
+     * @param arrayKey key of the array to read.
+     * @param factory builds a doctype from each element.
+     * @return the doctypes, in document order, all of them held at once.
+     * @throws IOException if the document could not be read or is not valid JSON.
+     */
+    static <T> ArrayList<T> readArray(Reader in, String arrayKey, ElementFactory<T> factory) throws IOException {
+        ArrayList<T> elements = new ArrayList<T>();
+        JsonReader reader = new JsonReader(in);
+        try {
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (arrayKey.equals(reader.nextName())) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        elements.add(factory.create(readObject(reader)));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+        } catch (IllegalStateException e) {
+            // JsonReader reports unexpected tokens this way
+            throw new IOException("malformed document: " + e.getMessage());
+        } finally {
+            reader.close();
+        }
+        return elements;
+    }
+
+    private static JSONObject readObject(JsonReader reader) throws IOException {
+        JSONObject object = new JSONObject();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String name = reader.nextName();
+            object.put(name, readValue(reader));
+        }
+        reader.endObject();
+        return object;
+    }
+
+    private static JSONArray readArray(JsonReader reader) throws IOException {
+        JSONArray array = new JSONArray();
+        reader.beginArray();
+        while (reader.hasNext()) {
+            array.add(readValue(reader));
+        }
+        reader.endArray();
+        return array;
+    }
+
+    // produces the same value types JSON4J does, the doctypes rely on them
+    private static Object readValue(JsonReader reader) throws IOException {
+        switch (reader.peek()) {
+            case BEGIN_OBJECT:
+                return readObject(reader);
+            case BEGIN_ARRAY:
+                return readArray(reader);
+            case STRING:
+                return reader.nextString();
+            case NUMBER:
+                String number = reader.nextString();
+                if (number.indexOf('.') != -1 || number.indexOf('e') != -1 || number.indexOf('E') != -1) {
+                    return Double.valueOf(number);
+                }
+                try {
+                    return Long.valueOf(number);
+                } catch (NumberFormatException e) {
+                    return Double.valueOf(number);
+                }
+            case BOOLEAN:
+                return reader.nextBoolean();
+            case NULL:
+                reader.nextNull();
+                return null;
+            default:
+                throw new IOException("unexpected token " + reader.peek());
+        }
+    }
+}
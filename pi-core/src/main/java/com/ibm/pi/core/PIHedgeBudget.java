@@ -0,0 +1,60 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+/**
+ * This class caps hedged requests to a fraction of the requests that could be hedged, so hedging
+ * can't multiply the load on a backend that is already slow.  It works like {@link PIRetryBudget}:
+ * every eligible request tops the budget up, every hedge takes one out.
+ */
+class PIHedgeBudget {
+    static final double DEFAULT_RATIO = 0.05;
+
+    // the budget never holds more than this many hedges, so a quiet period can't bank a burst
+    private static final double MAX_BUDGET = 10;
+
+    private double mRatio;
+    private double mBudget = MAX_BUDGET;
+
+    PIHedgeBudget(double ratio) {
+        mRatio = ratio;
+    }
+
+    synchronized void setRatio(double ratio) {
+        mRatio = ratio;
+    }
+
+    /**
+     * Called for every request that could be hedged, tops up the budget.
+     */
+    synchronized void onRequest() {
+        mBudget = Math.min(MAX_BUDGET, mBudget + mRatio);
+    }
+
+    /**
+     * Takes a hedge out of the budget.
+     *
+     * @return true if the budget allowed the hedge.
+     */
+    synchronized boolean tryHedge() {
+        if (mBudget < 1) {
+            return false;
+        }
+        mBudget -= 1;
+        return true;
+    }
+}
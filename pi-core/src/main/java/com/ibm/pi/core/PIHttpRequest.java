@@ -0,0 +1,166 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+import java.net.URL;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * This class describes a single HTTP request sent through a {@link PIHttpTransport}.
+ */
+public class PIHttpRequest {
+    private final URL url;
+    private final String method;
+    private final Map<String, String> headers = new LinkedHashMap<String, String>();
+    private byte[] body;
+    private int connectTimeout;
+    private int readTimeout;
+    private PICancellationSignal cancellationSignal;
+    private PIRequestTiming timing;
+
+    /**
+     * Constructor
+     *
+     * @param url url of the request.
+     * @param method HTTP method, e.g. GET, POST, PUT, HEAD.
+     */
+    public PIHttpRequest(URL url, String method) {
+        this.url = url;
+        this.method = method;
+    }
+
+    /**
+     *
+     * @return url of the request
+     */
+    public URL getUrl() {
+        return url;
+    }
+
+    /**
+     *
+     * @return HTTP method
+     */
+    public String getMethod() {
+        return method;
+    }
+
+    /**
+     *
+     * @return request headers
+     */
+    public Map<String, String> getHeaders() {
+        return headers;
+    }
+
+    /**
+     *
+     * @param name header name
+     * @param value header value
+     */
+    public void setHeader(String name, String value) {
+        headers.put(name, value);
+    }
+
+    /**
+     *
+     * @return request body, null if there is none
+     */
+    public byte[] getBody() {
+        return body;
+    }
+
+    /**
+     *
+     * @param body request body
+     */
+    public void setBody(byte[] body) {
+        this.body = body;
+    }
+
+    /**
+     *
+     * @return connection timeout in ms
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     *
+     * @param connectTimeout connection timeout in ms
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     *
+     * @return read timeout in ms
+     */
+    public int getReadTimeout() {
+        return readTimeout;
+    }
+
+    /**
+     *
+     * @param readTimeout read timeout in ms
+     */
+    public void setReadTimeout(int readTimeout) {
+        this.readTimeout = readTimeout;
+    }
+
+    /**
+     * Transports should abort the connection when this is canceled.
+     *
+     * @return signal the request is canceled with, null if it can't be canceled
+     */
+    public PICancellationSignal getCancellationSignal() {
+        return cancellationSignal;
+    }
+
+    /**
+     *
+     * @param cancellationSignal signal the request is canceled with
+     */
+    public void setCancellationSignal(PICancellationSignal cancellationSignal) {
+        this.cancellationSignal = cancellationSignal;
+    }
+
+    /**
+     * Transports should mark the phases of the request on this when it is set.
+     *
+     * @return timing of the request, null if nobody is timing it
+     */
+    public PIRequestTiming getTiming() {
+        return timing;
+    }
+
+    /**
+     *
+     * @param timing timing of the request
+     */
+    public void setTiming(PIRequestTiming timing) {
+        this.timing = timing;
+    }
+
+    @Override
+    public String toString() {
+        return method + " " + url;
+    }
+}
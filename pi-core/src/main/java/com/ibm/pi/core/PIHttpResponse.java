@@ -0,0 +1,52 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+import java.io.InputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * This interface represents the response to a {@link PIHttpRequest}.
+ */
+public interface PIHttpResponse {
+
+    /**
+     *
+     * @return HTTP response code
+     */
+    int getResponseCode();
+
+    /**
+     *
+     * @return HTTP header
+     */
+    Map<String, List<String>> getHeaders();
+
+    /**
+     * The response body.  For unsuccessful response codes this is the error body.
+     *
+     * @return the body as a stream, or null if there is no body.
+     */
+    InputStream getBody();
+
+    /**
+     * Releases the response.  Transports that pool connections use this to hand the connection
+     * back, so always call it, even if the body wasn't read.
+     */
+    void close();
+}
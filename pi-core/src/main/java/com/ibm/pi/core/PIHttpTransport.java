@@ -0,0 +1,45 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+import java.io.IOException;
+
+/**
+ * This interface sends HTTP requests on behalf of the PIAPIAdapter.  Implement it to plug a different
+ * HTTP stack in behind the adapter, see {@link PIAPIAdapter#setTransport(PIHttpTransport)}.
+ *
+ * Implementations are called from the adapter's worker threads and must be thread safe.
+ */
+public interface PIHttpTransport {
+
+    /**
+     * Sends a request and blocks until the response headers have arrived.
+     *
+     * @param request request to send.
+     * @return the response.  The caller must close it once the body has been read.
+     * @throws IOException if the server could not be reached.
+     */
+    PIHttpResponse execute(PIHttpRequest request) throws IOException;
+
+    /**
+     * Opens a connection to a host ahead of time so the first real request doesn't pay for the
+     * TCP and TLS handshakes.  Blocks until done, call it off the main thread.
+     *
+     * @param request a cheap request against the host to warm up.
+     */
+    void warmUp(PIHttpRequest request);
+}
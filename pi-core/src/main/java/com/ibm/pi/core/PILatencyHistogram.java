@@ -0,0 +1,88 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+
+package com.ibm.pi.core;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A latency histogram that can be recorded into from any thread without locking.  Buckets grow by a
+ * quarter of a power of two, so a percentile read from it is within 19% of the actual latency.
+ */
+class PILatencyHistogram {
+    private static final long MAX_LATENCY_IN_MILLISECONDS = 5 * 60 * 1000; /* milliseconds */
+
+    // upper bound of each bucket in ms, latencies above the last one go in an overflow bucket
+    private static final long[] BOUNDS;
+
+    static {
+        long[] bounds = new long[128];
+        int count = 0;
+        double bound = 1;
+        while (bound <= MAX_LATENCY_IN_MILLISECONDS) {
+            long ceiling = (long) Math.ceil(bound);
+            if (count == 0 || ceiling > bounds[count - 1]) {
+                bounds[count++] = ceiling;
+            }
+            bound *= Math.pow(2, 0.25);
+        }
+        BOUNDS = Arrays.copyOf(bounds, count);
+    }
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BOUNDS.length + 1);
+
+    void record(long latencyInMilliseconds) {
+        int index = Arrays.binarySearch(BOUNDS, Math.max(0, latencyInMilliseconds));
+        mCounts.incrementAndGet(index >= 0 ? index : -index - 1);
+    }
+
+    /**
+     * @return a copy of the bucket counts, the last one counts latencies over {@link #MAX_LATENCY_IN_MILLISECONDS}.
+     */
+    long[] getCounts() {
+        long[] counts = new long[mCounts.length()];
+        for (int i = 0; i < counts.length; i++) {
+            counts[i] = mCounts.get(i);
+        }
+        return counts;
+    }
+
+    /**
+     * @param counts bucket counts as returned by {@link #getCounts()}.
+     * @param percentile the percentile, between 0 and 1.
+     * @return upper bound in ms of the bucket holding the percentile, or -1 if nothing was recorded.
+     */
+    static long percentile(long[] counts, double percentile) {
+        long total = 0;
+        for (long count : counts) {
+            total += count;
+        }
+        if (total == 0) {
+            return -1;
+        }
+        long rank = Math.max(1, (long) Math.ceil(percentile * total));
+        long seen = 0;
+        for (int i = 0; i < counts.length; i++) {
+            seen += counts[i];
+            if (seen >= rank) {
+                return i < BOUNDS.length ? BOUNDS[i] : MAX_LATENCY_IN_MILLISECONDS;
+            }
+        }
+        return MAX_LATENCY_IN_MILLISECONDS;
+    }
+}
@@ -0,0 +1,79 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * This class keeps the recent latencies of each endpoint, the time until the response headers
+ * arrived.  {@link PITimeoutPolicy} derives timeouts from them and hedging its delay.  One set of
+ * windows is shared by all adapters of a {@link PIClient}, they talk to the same backends.
+ */
+class PILatencyWindows {
+    // latencies kept per endpoint, older ones make way so the timeout tracks the current network
+    private static final int WINDOW_SIZE = 100;
+    // too few samples say nothing about the tail
+    private static final int MIN_SAMPLES = 20;
+
+    private final HashMap<String, Window> mWindows = new HashMap<String, Window>();
+
+    /**
+     * Samples the time a request took to get its response headers.
+     */
+    synchronized void record(String endpoint, long latencyInMilliseconds) {
+        Window window = mWindows.get(endpoint);
+        if (window == null) {
+            window = new Window();
+            mWindows.put(endpoint, window);
+        }
+        window.add(latencyInMilliseconds);
+    }
+
+    /**
+     *
+     * @param endpoint the endpoint, e.g. zones or map.
+     * @param percentile the percentile, between 0 and 1, e.g. 0.95.
+     * @return the percentile of the endpoint's recent latencies in ms, or -1 if there aren't enough samples yet.
+     */
+    synchronized long getPercentile(String endpoint, double percentile) {
+        Window window = mWindows.get(endpoint);
+        if (window == null || window.count < MIN_SAMPLES) {
+            return -1;
+        }
+        return window.percentile(percentile);
+    }
+
+    private static class Window {
+        private final long[] samples = new long[WINDOW_SIZE];
+        private int next;
+        private int count;
+
+        void add(long latency) {
+            samples[next] = latency;
+            next = (next + 1) % samples.length;
+            count = Math.min(count + 1, samples.length);
+        }
+
+        long percentile(double percentile) {
+            long[] sorted = Arrays.copyOf(samples, count);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(percentile * count) - 1;
+            return sorted[Math.max(0, Math.min(count - 1, index))];
+        }
+    }
+}
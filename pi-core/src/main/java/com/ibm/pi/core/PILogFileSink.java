@@ -0,0 +1,268 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+
+package com.ibm.pi.core;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * This class writes log messages to files without blocking the threads that log them.  Messages go
+ * into a fixed size ring buffer and a background thread writes them out in batches.  If the writer
+ * falls behind, the oldest messages are overwritten and a line saying how many were lost is written
+ * in their place.
+ *
+ * The current file is pi.log.  Once it grows past the maximum size it is renamed to pi.1.log, the
+ * previous pi.1.log to pi.2.log and so on, and the oldest file is deleted.
+ */
+public class PILogFileSink {
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final long DEFAULT_MAX_FILE_SIZE_IN_BYTES = 512 * 1024; /* bytes */
+    public static final int DEFAULT_MAX_FILES = 3;
+
+    private static final String FILE_PREFIX = "pi";
+    private static final String FILE_EXTENSION = ".log";
+    private static final String LEVELS = "??VDIWEA";
+
+    private final File mDirectory;
+    private final long mMaxFileSize;
+    private final int mMaxFiles;
+
+    // slots are allocated once and reused, appending only copies references into them
+    private final Entry[] mRing;
+    private int mHead = 0;
+    private int mCount = 0;
+    private long mDropped = 0;
+    private boolean mClosed = false;
+
+    // only touched by the writer thread
+    private final Entry[] mBatch;
+    private final SimpleDateFormat mDateFormat = new SimpleDateFormat("MM-dd HH:mm:ss.SSS", Locale.US);
+    private final Date mDate = new Date();
+    private Writer mWriter;
+    private long mFileSize;
+
+    /**
+     * Creates a sink with the default capacity and rotation settings.
+     *
+     * @param directory directory to write the log files to, e.g. a subdirectory of Context.getFilesDir().
+     */
+    public PILogFileSink(File directory) {
+        this(directory, DEFAULT_CAPACITY, DEFAULT_MAX_FILE_SIZE_IN_BYTES, DEFAULT_MAX_FILES);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param directory directory to write the log files to.
+     * @param capacity number of messages buffered before the oldest ones are overwritten.
+     * @param maxFileSizeInBytes size a log file can grow to before it is rotated.
+     * @param maxFiles number of log files kept, including the current one.
+     */
+    public PILogFileSink(File directory, int capacity, long maxFileSizeInBytes, int maxFiles) {
+        if (capacity < 1 || maxFiles < 1) {
+            throw new IllegalArgumentException("capacity and maxFiles must be at least 1");
+        }
+        mDirectory = directory;
+        mMaxFileSize = maxFileSizeInBytes;
+        mMaxFiles = maxFiles;
+        mRing = new Entry[capacity];
+        mBatch = new Entry[capacity];
+        for (int i = 0; i < capacity; i++) {
+            mRing[i] = new Entry();
+            mBatch[i] = new Entry();
+        }
+
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, "pi-log-writer");
+        writer.setDaemon(true);
+        writer.setPriority(Thread.MIN_PRIORITY);
+        writer.start();
+    }
+
+    void append(int level, String tag, String msg) {
+        long time = System.currentTimeMillis();
+        synchronized (this) {
+            if (mClosed) {
+                return;
+            }
+            if (mCount == mRing.length) {
+                mHead = (mHead + 1) % mRing.length;
+                mCount--;
+                mDropped++;
+            }
+            mRing[(mHead + mCount) % mRing.length].set(time, level, tag, msg);
+            mCount++;
+            if (mCount == 1) {
+                notify();
+            }
+        }
+    }
+
+    /**
+     * Stops accepting messages.  Messages already buffered are still written, then the file is closed.
+     */
+    public void close() {
+        synchronized (this) {
+            mClosed = true;
+            notify();
+        }
+    }
+
+    /**
+     *
+     * @return the log files, newest first.
+     */
+    public List<File> getLogFiles() {
+        ArrayList<File> files = new ArrayList<File>();
+        for (int i = 0; i < mMaxFiles; i++) {
+            File file = getFile(i);
+            if (file.exists()) {
+                files.add(file);
+            }
+        }
+        return files;
+    }
+
+    private void drain() {
+        while (true) {
+            int count;
+            long dropped;
+            synchronized (this) {
+                while (mCount == 0 && !mClosed) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (mCount == 0) {
+                    break;
+                }
+                count = mCount;
+                for (int i = 0; i < count; i++) {
+                    Entry entry = mRing[(mHead + i) % mRing.length];
+                    mBatch[i].set(entry.time, entry.level, entry.tag, entry.msg);
+                    entry.set(0, 0, null, null);
+                }
+                mHead = (mHead + count) % mRing.length;
+                mCount = 0;
+                dropped = mDropped;
+                mDropped = 0;
+            }
+            write(count, dropped);
+        }
+        closeWriter();
+    }
+
+    private void write(int count, long dropped) {
+        try {
+            if (dropped > 0) {
+                writeLine(System.currentTimeMillis(), PILogger.WARN, PILogFileSink.class.getSimpleName(),
+                        "dropped " + dropped + " log messages");
+            }
+            for (int i = 0; i < count; i++) {
+                Entry entry = mBatch[i];
+                writeLine(entry.time, entry.level, entry.tag, entry.msg);
+                entry.set(0, 0, null, null);
+            }
+            if (mWriter != null) {
+                mWriter.flush();
+            }
+        } catch (IOException e) {
+            // logging the failure would come straight back here
+            e.printStackTrace();
+            closeWriter();
+        }
+    }
+
+    private void writeLine(long time, int level, String tag, String msg) throws IOException {
+        if (mWriter == null || mFileSize >= mMaxFileSize) {
+            rotate();
+        }
+        mDate.setTime(time);
+        String line = mDateFormat.format(mDate) + " " + LEVELS.charAt(Math.min(level, LEVELS.length() - 1))
+                + "/" + tag + ": " + msg + "\n";
+        mWriter.write(line);
+        // close enough, log lines are mostly ascii
+        mFileSize += line.length();
+    }
+
+    private void rotate() throws IOException {
+        closeWriter();
+        if (!mDirectory.isDirectory() && !mDirectory.mkdirs()) {
+            throw new IOException("could not create log directory " + mDirectory);
+        }
+        File current = getFile(0);
+        if (current.length() >= mMaxFileSize) {
+            File oldest = getFile(mMaxFiles - 1);
+            if (oldest.exists() && !oldest.delete()) {
+                throw new IOException("could not delete " + oldest);
+            }
+            for (int i = mMaxFiles - 2; i >= 0; i--) {
+                File file = getFile(i);
+                if (file.exists() && !file.renameTo(getFile(i + 1))) {
+                    throw new IOException("could not rotate " + file);
+                }
+            }
+        }
+        mFileSize = current.length();
+        mWriter = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(current, true), "UTF-8"));
+    }
+
+    private void closeWriter() {
+        if (mWriter != null) {
+            try {
+                mWriter.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+            mWriter = null;
+        }
+    }
+
+    private File getFile(int index) {
+        return new File(mDirectory, index == 0 ? FILE_PREFIX + FILE_EXTENSION : FILE_PREFIX + "." + index + FILE_EXTENSION);
+    }
+
+    private static class Entry {
+        long time;
+        int level;
+        String tag;
+        String msg;
+
+        void set(long time, int level, String tag, String msg) {
+            this.time = time;
+            this.level = level;
+            this.tag = tag;
+            this.msg = msg;
+        }
+    }
+}
@@ -19,13 +19,102 @@ package com.ibm.pi.core;
 import android.util.Log;
 
 /**
- * This class manages logging for Presence Insights. Enable debug mode to flood LogCat with useful
- * information regarding the classes within.
+ * This class manages logging for Presence Insights.  Messages below the level set with
+ * {@link #setLevel(int)} are dropped, nothing is logged by default.  Enable debug mode to flood
+ * LogCat with useful information regarding the classes within.
+ *
+ * Messages that take arguments should use the pattern methods, e.g.
+ * {@code PILogger.d(TAG, "adding beacon region for beacon: {}", beacon)}.  When the level is disabled
+ * they return right away, without concatenating strings or calling toString() on the arguments.  Primitive
+ * arguments are still boxed by the caller, so guard those on hot paths, and anything more expensive,
+ * with {@link #isLoggable(int)}.
  *
  * @author Ciaran Hannigan (cehannig@us.ibm.com)
  */
 public class PILogger {
-    static boolean inDebugMode = false;
+    public static final int VERBOSE = Log.VERBOSE;
+    public static final int DEBUG = Log.DEBUG;
+    public static final int INFO = Log.INFO;
+    public static final int WARN = Log.WARN;
+    public static final int ERROR = Log.ERROR;
+    /**
+     * disables logging
+     */
+    public static final int NONE = Log.ASSERT + 1;
+
+    // a disabled call costs one read of this
+    private static volatile int sLevel = NONE;
+    private static volatile PILogFileSink sFileSink;
+
+    /**
+     * Sets the lowest level that gets logged.
+     *
+     * @param level one of {@link #VERBOSE}, {@link #DEBUG}, {@link #INFO}, {@link #WARN}, {@link #ERROR} or {@link #NONE}.
+     */
+    static public void setLevel(int level) {
+        sLevel = level;
+    }
+
+    /**
+     *
+     * @return the lowest level that gets logged.
+     */
+    static public int getLevel() {
+        return sLevel;
+    }
+
+    /**
+     * @param level the level to check.
+     * @return true if messages of the level are logged.
+     */
+    static public boolean isLoggable(int level) {
+        return level >= sLevel;
+    }
+
+    /**
+     * Also writes every logged message to files, see {@link PILogFileSink}.  The previous sink is not
+     * closed.
+     *
+     * @param fileSink sink to write to, or null to stop writing to files.
+     */
+    static public void setFileSink(PILogFileSink fileSink) {
+        sFileSink = fileSink;
+    }
+
+    /**
+     * Send a VERBOSE log message.
+     *
+     * @param tag Used to identify the source of a log message. It usually identifies the class or activity where the log call occurs.
+     * @param msg The message you would like logged.
+     */
+    static public int v(String tag, String msg) {
+        return VERBOSE >= sLevel ? log(VERBOSE, tag, msg) : 0;
+    }
+
+    /**
+     * Send a VERBOSE log message built from a pattern.  The message is only built if VERBOSE is enabled.
+     *
+     * @param tag Used to identify the source of a log message.
+     * @param format The message, each {} is replaced by the next argument.
+     * @param arg1 first argument.
+     */
+    static public int v(String tag, String format, Object arg1) {
+        return VERBOSE >= sLevel ? log(VERBOSE, tag, format(format, arg1, null, null, 1)) : 0;
+    }
+
+    /**
+     * See {@link #v(String, String, Object)}.
+     */
+    static public int v(String tag, String format, Object arg1, Object arg2) {
+        return VERBOSE >= sLevel ? log(VERBOSE, tag, format(format, arg1, arg2, null, 2)) : 0;
+    }
+
+    /**
+     * See {@link #v(String, String, Object)}.
+     */
+    static public int v(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        return VERBOSE >= sLevel ? log(VERBOSE, tag, format(format, arg1, arg2, arg3, 3)) : 0;
+    }
 
     /**
      * Send a DEBUG log message.
@@ -34,25 +123,169 @@ public class PILogger {
      * @param msg The message you would like logged.
      */
     static public int d(String tag, String msg) {
-        return inDebugMode ? Log.d(tag, msg) : 0;
+        return DEBUG >= sLevel ? log(DEBUG, tag, msg) : 0;
     }
 
     /**
-     * Send an ERROR log message.
+     * Send a DEBUG log message built from a pattern.  The message is only built if DEBUG is enabled.
+     *
+     * @param tag Used to identify the source of a log message.
+     * @param format The message, each {} is replaced by the next argument.
+     * @param arg1 first argument.
+     */
+    static public int d(String tag, String format, Object arg1) {
+        return DEBUG >= sLevel ? log(DEBUG, tag, format(format, arg1, null, null, 1)) : 0;
+    }
+
+    /**
+     * See {@link #d(String, String, Object)}.
+     */
+    static public int d(String tag, String format, Object arg1, Object arg2) {
+        return DEBUG >= sLevel ? log(DEBUG, tag, format(format, arg1, arg2, null, 2)) : 0;
+    }
+
+    /**
+     * See {@link #d(String, String, Object)}.
+     */
+    static public int d(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        return DEBUG >= sLevel ? log(DEBUG, tag, format(format, arg1, arg2, arg3, 3)) : 0;
+    }
+
+    /**
+     * Send a INFO log message.
+     *
+     * @param tag Used to identify the source of a log message. It usually identifies the class or activity where the log call occurs.
+     * @param msg The message you would like logged.
+     */
+    static public int i(String tag, String msg) {
+        return INFO >= sLevel ? log(INFO, tag, msg) : 0;
+    }
+
+    /**
+     * Send a INFO log message built from a pattern.  The message is only built if INFO is enabled.
+     *
+     * @param tag Used to identify the source of a log message.
+     * @param format The message, each {} is replaced by the next argument.
+     * @param arg1 first argument.
+     */
+    static public int i(String tag, String format, Object arg1) {
+        return INFO >= sLevel ? log(INFO, tag, format(format, arg1, null, null, 1)) : 0;
+    }
+
+    /**
+     * See {@link #i(String, String, Object)}.
+     */
+    static public int i(String tag, String format, Object arg1, Object arg2) {
+        return INFO >= sLevel ? log(INFO, tag, format(format, arg1, arg2, null, 2)) : 0;
+    }
+
+    /**
+     * See {@link #i(String, String, Object)}.
+     */
+    static public int i(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        return INFO >= sLevel ? log(INFO, tag, format(format, arg1, arg2, arg3, 3)) : 0;
+    }
+
+    /**
+     * Send a WARN log message.
+     *
+     * @param tag Used to identify the source of a log message. It usually identifies the class or activity where the log call occurs.
+     * @param msg The message you would like logged.
+     */
+    static public int w(String tag, String msg) {
+        return WARN >= sLevel ? log(WARN, tag, msg) : 0;
+    }
+
+    /**
+     * Send a WARN log message built from a pattern.  The message is only built if WARN is enabled.
+     *
+     * @param tag Used to identify the source of a log message.
+     * @param format The message, each {} is replaced by the next argument.
+     * @param arg1 first argument.
+     */
+    static public int w(String tag, String format, Object arg1) {
+        return WARN >= sLevel ? log(WARN, tag, format(format, arg1, null, null, 1)) : 0;
+    }
+
+    /**
+     * See {@link #w(String, String, Object)}.
+     */
+    static public int w(String tag, String format, Object arg1, Object arg2) {
+        return WARN >= sLevel ? log(WARN, tag, format(format, arg1, arg2, null, 2)) : 0;
+    }
+
+    /**
+     * See {@link #w(String, String, Object)}.
+     */
+    static public int w(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        return WARN >= sLevel ? log(WARN, tag, format(format, arg1, arg2, arg3, 3)) : 0;
+    }
+
+    /**
+     * Send a ERROR log message.
      *
      * @param tag Used to identify the source of a log message. It usually identifies the class or activity where the log call occurs.
      * @param msg The message you would like logged.
      */
     static public int e(String tag, String msg) {
-        return inDebugMode ? Log.e(tag, msg) : 0;
+        return ERROR >= sLevel ? log(ERROR, tag, msg) : 0;
+    }
+
+    /**
+     * Send a ERROR log message built from a pattern.  The message is only built if ERROR is enabled.
+     *
+     * @param tag Used to identify the source of a log message.
+     * @param format The message, each {} is replaced by the next argument.
+     * @param arg1 first argument.
+     */
+    static public int e(String tag, String format, Object arg1) {
+        return ERROR >= sLevel ? log(ERROR, tag, format(format, arg1, null, null, 1)) : 0;
+    }
+
+    /**
+     * See {@link #e(String, String, Object)}.
+     */
+    static public int e(String tag, String format, Object arg1, Object arg2) {
+        return ERROR >= sLevel ? log(ERROR, tag, format(format, arg1, arg2, null, 2)) : 0;
+    }
+
+    /**
+     * See {@link #e(String, String, Object)}.
+     */
+    static public int e(String tag, String format, Object arg1, Object arg2, Object arg3) {
+        return ERROR >= sLevel ? log(ERROR, tag, format(format, arg1, arg2, arg3, 3)) : 0;
     }
 
     /**
      * Enables/Disables logging.
      *
-     * @param enable enable or disable logging.
+     * @param enable true to log at {@link #DEBUG} level and above, false to log nothing.
      */
     static public void enableDebugMode(boolean enable) {
-        inDebugMode = enable;
+        sLevel = enable ? DEBUG : NONE;
+    }
+
+    private static int log(int level, String tag, String msg) {
+        PILogFileSink fileSink = sFileSink;
+        if (fileSink != null) {
+            fileSink.append(level, tag, msg);
+        }
+        return Log.println(level, tag, msg);
+    }
+
+    // replaces the {} in format with the arguments in order, extra {} are left as is
+    static String format(String format, Object arg1, Object arg2, Object arg3, int argCount) {
+        StringBuilder sb = new StringBuilder(format.length() + 32);
+        int start = 0;
+        int arg = 0;
+        int index;
+        while (arg < argCount && (index = format.indexOf("{}", start)) != -1) {
+            sb.append(format, start, index);
+            sb.append(arg == 0 ? arg1 : arg == 1 ? arg2 : arg3);
+            start = index + 2;
+            arg++;
+        }
+        sb.append(format, start, format.length());
+        return sb.toString();
     }
 }
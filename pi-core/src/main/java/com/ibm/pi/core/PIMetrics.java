@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+
+package com.ibm.pi.core;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * This class collects per endpoint metrics of the requests sent by a {@link PIClient}'s adapters:
+ * latency histograms, bytes in and out, response code and timeout counts and the number of requests
+ * in flight.
+ *
+ * Endpoints are keyed by template, the request path with its identifiers replaced by placeholders,
+ * e.g. /pi-config/v2/tenants/{tenant}/orgs/{org}/sites/{site}/floors/{floor}/beacons.  Recording never
+ * takes a lock once an endpoint has been seen, so it is cheap enough to run on every request.  Call
+ * {@link #snapshot()} to read them.
+ */
+public class PIMetrics {
+    // response codes at or above this are counted together with it
+    private static final int MAX_RESPONSE_CODE = 599;
+
+    // collection -> placeholder for the identifier that follows it in a path
+    private static final Map<String, String> PLACEHOLDERS = new HashMap<String, String>();
+    private static final List<String> COLLECTIONS = Arrays.asList(
+            "tenants", "orgs", "sites", "floors", "zones", "beacons", "sensors", "devices");
+
+    static {
+        for (String collection : COLLECTIONS) {
+            PLACEHOLDERS.put(collection, "{" + collection.substring(0, collection.length() - 1) + "}");
+        }
+    }
+
+    private final ConcurrentHashMap<String, Endpoint> mEndpoints = new ConcurrentHashMap<String, Endpoint>();
+    private final long mStartTime = System.currentTimeMillis();
+
+    /**
+     * @param url url of a request.
+     * @return the endpoint template of the url.
+     */
+    static String template(URL url) {
+        String[] segments = url.getPath().split("/");
+        StringBuilder template = new StringBuilder();
+        String placeholder = null;
+        for (String segment : segments) {
+            if (segment.length() == 0) {
+                continue;
+            }
+            template.append('/').append(placeholder != null ? placeholder : segment);
+            placeholder = placeholder == null ? PLACEHOLDERS.get(segment) : null;
+        }
+        return template.toString();
+    }
+
+    Endpoint getEndpoint(String template) {
+        Endpoint endpoint = mEndpoints.get(template);
+        if (endpoint == null) {
+            Endpoint created = new Endpoint();
+            endpoint = mEndpoints.putIfAbsent(template, created);
+            if (endpoint == null) {
+                endpoint = created;
+            }
+        }
+        return endpoint;
+    }
+
+    /**
+     * Copies the current values of all metrics.  Counters are read one by one while requests keep
+     * running, so a snapshot taken under load can be off by the requests that finished meanwhile.
+     *
+     * @return the metrics of every endpoint requested so far.
+     */
+    public PIMetricsSnapshot snapshot() {
+        HashMap<String, PIMetricsSnapshot.Endpoint> endpoints = new HashMap<String, PIMetricsSnapshot.Endpoint>();
+        for (Map.Entry<String, Endpoint> entry : mEndpoints.entrySet()) {
+            Endpoint endpoint = entry.getValue();
+            HashMap<Integer, Long> responseCodes = new HashMap<Integer, Long>();
+            for (int code = 0; code < endpoint.responseCodes.length(); code++) {
+                long count = endpoint.responseCodes.get(code);
+                if (count > 0) {
+                    responseCodes.put(code, count);
+                }
+            }
+            endpoints.put(entry.getKey(), new PIMetricsSnapshot.Endpoint(entry.getKey(),
+                    endpoint.requests.get(), endpoint.inFlight.get(), endpoint.bytesIn.get(),
+                    endpoint.bytesOut.get(), responseCodes, endpoint.timeouts.get(), endpoint.latency.getCounts()));
+        }
+        return new PIMetricsSnapshot(mStartTime, System.currentTimeMillis(), endpoints);
+    }
+
+    /**
+     * Counters of one endpoint template.
+     */
+    static class Endpoint {
+        final AtomicLong requests = new AtomicLong();
+        final AtomicInteger inFlight = new AtomicInteger();
+        final AtomicLong bytesIn = new AtomicLong();
+        final AtomicLong bytesOut = new AtomicLong();
+        // indexed by response code, 0 counts requests that got no response
+        final AtomicLongArray responseCodes = new AtomicLongArray(MAX_RESPONSE_CODE + 1);
+        // also counted under response code 0 once the request ends
+        final AtomicLong timeouts = new AtomicLong();
+        final PILatencyHistogram latency = new PILatencyHistogram();
+
+        void onStart() {
+            inFlight.incrementAndGet();
+        }
+
+        void onEnd(int responseCode, long latencyInMilliseconds, long sent, long received) {
+            inFlight.decrementAndGet();
+            requests.incrementAndGet();
+            bytesOut.addAndGet(sent);
+            bytesIn.addAndGet(received);
+            responseCodes.incrementAndGet(Math.max(0, Math.min(MAX_RESPONSE_CODE, responseCode)));
+            latency.record(latencyInMilliseconds);
+        }
+
+        void onTimeout() {
+            timeouts.incrementAndGet();
+        }
+    }
+}
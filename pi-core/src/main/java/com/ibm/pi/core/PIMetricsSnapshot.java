@@ -0,0 +1,231 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+
+package com.ibm.pi.core;
+
+import com.ibm.json.java.JSONObject;
+
+import java.util.Collections;
+import java.util.Map;
+
+/**
+ * A copy of the {@link PIMetrics} of a client at one point in time, to poll from the app or push to
+ * its own telemetry.
+ */
+public class PIMetricsSnapshot {
+    private final long mStartTime;
+    private final long mTimestamp;
+    private final Map<String, Endpoint> mEndpoints;
+
+    PIMetricsSnapshot(long startTime, long timestamp, Map<String, Endpoint> endpoints) {
+        mStartTime = startTime;
+        mTimestamp = timestamp;
+        mEndpoints = Collections.unmodifiableMap(endpoints);
+    }
+
+    /**
+     *
+     * @return time the metrics started counting, in ms since the epoch.
+     */
+    public long getStartTime() {
+        return mStartTime;
+    }
+
+    /**
+     *
+     * @return time the snapshot was taken, in ms since the epoch.
+     */
+    public long getTimestamp() {
+        return mTimestamp;
+    }
+
+    /**
+     *
+     * @return metrics by endpoint template.
+     */
+    public Map<String, Endpoint> getEndpoints() {
+        return mEndpoints;
+    }
+
+    /**
+     *
+     * @return number of requests in flight across all endpoints.
+     */
+    public int getInFlight() {
+        int inFlight = 0;
+        for (Endpoint endpoint : mEndpoints.values()) {
+            inFlight += endpoint.getInFlight();
+        }
+        return inFlight;
+    }
+
+    /**
+     * Exports the snapshot, e.g. {"startTime": ..., "timestamp": ..., "endpoints": {"/pi-config/v1/...":
+     * {"requests": 12, "inFlight": 0, "bytesIn": 5120, "bytesOut": 0, "timeouts": 0, "p50": 84, "p90": 141,
+     * "p99": 238, "responseCodes": {"200": 11, "304": 1}}}}.
+     *
+     * @return the snapshot as a JSON Object.
+     */
+    public JSONObject toJSON() {
+        JSONObject endpoints = new JSONObject();
+        for (Endpoint endpoint : mEndpoints.values()) {
+            endpoints.put(endpoint.getTemplate(), endpoint.toJSON());
+        }
+        JSONObject returnObj = new JSONObject();
+        returnObj.put("startTime", mStartTime);
+        returnObj.put("timestamp", mTimestamp);
+        returnObj.put("endpoints", endpoints);
+        return returnObj;
+    }
+
+    @Override
+    public String toString() {
+        return toJSON().toString();
+    }
+
+    /**
+     * The metrics of one endpoint template.
+     */
+    public static class Endpoint {
+        private final String mTemplate;
+        private final long mRequests;
+        private final int mInFlight;
+        private final long mBytesIn;
+        private final long mBytesOut;
+        private final Map<Integer, Long> mResponseCodes;
+        private final long mTimeouts;
+        private final long[] mLatencyCounts;
+
+        Endpoint(String template, long requests, int inFlight, long bytesIn, long bytesOut,
+                 Map<Integer, Long> responseCodes, long timeouts, long[] latencyCounts) {
+            mTemplate = template;
+            mRequests = requests;
+            mInFlight = inFlight;
+            mBytesIn = bytesIn;
+            mBytesOut = bytesOut;
+            mResponseCodes = Collections.unmodifiableMap(responseCodes);
+            mTimeouts = timeouts;
+            mLatencyCounts = latencyCounts;
+        }
+
+        /**
+         *
+         * @return the endpoint template, e.g. /pi-config/v2/tenants/{tenant}/orgs/{org}/sites/{site}/floors/{floor}/beacons
+         */
+        public String getTemplate() {
+            return mTemplate;
+        }
+
+        /**
+         *
+         * @return number of requests that completed, successfully or not.
+         */
+        public long getRequests() {
+            return mRequests;
+        }
+
+        /**
+         *
+         * @return number of requests sent and not completed yet.
+         */
+        public int getInFlight() {
+            return mInFlight;
+        }
+
+        /**
+         *
+         * @return response body bytes read from the wire.
+         */
+        public long getBytesIn() {
+            return mBytesIn;
+        }
+
+        /**
+         *
+         * @return request body bytes written to the wire.
+         */
+        public long getBytesOut() {
+            return mBytesOut;
+        }
+
+        /**
+         *
+         * @return number of requests by response code, 0 for requests that got no response.
+         */
+        public Map<Integer, Long> getResponseCodes() {
+            return mResponseCodes;
+        }
+
+        /**
+         *
+         * @return number of requests that timed out, also counted under response code 0.
+         */
+        public long getTimeouts() {
+            return mTimeouts;
+        }
+
+        /**
+         * @param percentile the percentile, between 0 and 1, e.g. 0.99.
+         * @return the latency percentile in ms, or -1 if no request completed yet.
+         */
+        public long getLatencyPercentile(double percentile) {
+            return PILatencyHistogram.percentile(mLatencyCounts, percentile);
+        }
+
+        /**
+         *
+         * @return median latency in ms.
+         */
+        public long getP50() {
+            return getLatencyPercentile(0.5);
+        }
+
+        /**
+         *
+         * @return 90th percentile latency in ms.
+         */
+        public long getP90() {
+            return getLatencyPercentile(0.9);
+        }
+
+        /**
+         *
+         * @return 99th percentile latency in ms.
+         */
+        public long getP99() {
+            return getLatencyPercentile(0.99);
+        }
+
+        JSONObject toJSON() {
+            JSONObject responseCodes = new JSONObject();
+            for (Map.Entry<Integer, Long> count : mResponseCodes.entrySet()) {
+                responseCodes.put(String.valueOf(count.getKey()), count.getValue());
+            }
+            JSONObject returnObj = new JSONObject();
+            returnObj.put("requests", mRequests);
+            returnObj.put("inFlight", mInFlight);
+            returnObj.put("bytesIn", mBytesIn);
+            returnObj.put("bytesOut", mBytesOut);
+            returnObj.put("timeouts", mTimeouts);
+            returnObj.put("p50", getP50());
+            returnObj.put("p90", getP90());
+            returnObj.put("p99", getP99());
+            returnObj.put("responseCodes", responseCodes);
+            return returnObj;
+        }
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * This class walks a paged list endpoint one doctype at a time.  Pages are only fetched as they are
+ * needed, and the next page is fetched in the background while the current one is being consumed.
+ * At most two pages are held in memory, however large the list is.
+ *
+ * {@link #hasNext()} blocks while a page is being fetched, so don't iterate on the main thread.  If a
+ * page can't be fetched, iteration stops early and {@link #getException()} reports why.
+ */
+public class PIPagedIterator<T> implements Iterator<T> {
+    private static final String TAG = PIPagedIterator.class.getSimpleName();
+
+    /**
+     * Fetches a single page.
+     */
+    interface PageLoader<T> {
+        /**
+         * Starts fetching a page, without blocking.
+         *
+         * @param page page number, starting at 1.
+         * @param pageSize maximum number of elements on a page.
+         * @return a future for the page.  On success its result is the List of elements of the page,
+         * fewer than pageSize on the last page.
+         */
+        PIAPIFuture loadPage(int page, int pageSize);
+    }
+
+    private final PageLoader<T> mLoader;
+    private final int mPageSize;
+
+    private List<T> mCurrentPage;
+    private int mIndex = 0;
+    private int mNextPage = 1;
+    private boolean mLastPage = false;
+    private PIAPIFuture mPrefetch;
+    private int mPrefetchPage;
+    private Exception mException;
+
+    PIPagedIterator(PageLoader<T> loader, int pageSize) {
+        if (pageSize < 1) {
+            throw new IllegalArgumentException("pageSize must be at least 1");
+        }
+        mLoader = loader;
+        mPageSize = pageSize;
+        prefetch();
+    }
+
+    @Override
+    public synchronized boolean hasNext() {
+        while (mCurrentPage == null || mIndex >= mCurrentPage.size()) {
+            if (mLastPage || mException != null) {
+                return false;
+            }
+            advance();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized T next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        T element = mCurrentPage.get(mIndex);
+        // let consumed elements be collected before the page is done
+        mCurrentPage.set(mIndex, null);
+        mIndex++;
+        return element;
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("remove");
+    }
+
+    /**
+     * Stops iterating and cancels the page being prefetched.
+     */
+    public synchronized void close() {
+        mLastPage = true;
+        mCurrentPage = null;
+        if (mPrefetch != null) {
+            mPrefetch.cancel(true);
+            mPrefetch = null;
+        }
+    }
+
+    /**
+     *
+     * @return the exception that stopped iteration early, null if there was none.
+     */
+    public synchronized Exception getException() {
+        return mException;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void advance() {
+        PIAPIResult result;
+        try {
+            result = mPrefetch.get();
+            if (result.getException() instanceof RejectedExecutionException) {
+                // the lane had no room when the page was prefetched, ask again now that it is needed
+                PILogger.d(TAG, "page {} was rejected, fetching it again", mPrefetchPage);
+                mPrefetch = mLoader.loadPage(mPrefetchPage, mPageSize);
+                result = mPrefetch.get();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            fail(e);
+            return;
+        } catch (ExecutionException e) {
+            fail(e);
+            return;
+        }
+        if (result.getResponseCode() != HttpURLConnection.HTTP_OK || result.getException() != null) {
+            fail(result.getException() != null ? result.getException() : new IOException(result.toString()));
+            return;
+        }
+        mCurrentPage = (List<T>) result.getResult();
+        mIndex = 0;
+        if (mCurrentPage.size() < mPageSize) {
+            mLastPage = true;
+            mPrefetch = null;
+        } else {
+            prefetch();
+        }
+    }
+
+    private void prefetch() {
+        mPrefetchPage = mNextPage++;
+        mPrefetch = mLoader.loadPage(mPrefetchPage, mPageSize);
+    }
+
+    private void fail(Exception e) {
+        PILogger.e(TAG, "stopped iterating: {}", e);
+        mException = e;
+        mCurrentPage = null;
+        mPrefetch = null;
+    }
+}
@@ -0,0 +1,343 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.GeneralSecurityException;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocketFactory;
+
+/**
+ * This class is the default {@link PIHttpTransport}.  It sits on top of HttpURLConnection and makes
+ * sure connections go back into the platform's keep-alive pool: bodies are always drained and
+ * closed, and connections are only torn down when something went wrong.
+ *
+ * All https connections share one SSLSocketFactory, and with it one TLS session cache, so a new
+ * connection to a host we've already talked to resumes the previous session instead of doing a
+ * full handshake.
+ *
+ * Idle connections are evicted by the platform pool, which is sized by the process wide
+ * http.maxConnections and http.keepAliveDuration system properties.  The first transport created fills
+ * in whichever of them the app hasn't set itself, and the pool reads them once, on its first
+ * connection.  Create the transport before the app opens any HttpURLConnection of its own if the
+ * limits given to it should apply.
+ */
+public class PIPooledHttpTransport implements PIHttpTransport {
+    private static final String TAG = PIPooledHttpTransport.class.getSimpleName();
+
+    public static final int DEFAULT_MAX_IDLE_CONNECTIONS = 5;
+    public static final long DEFAULT_KEEP_ALIVE_IN_MILLISECONDS = 5 * 60 * 1000; /* milliseconds */
+    public static final int DEFAULT_TLS_SESSION_CACHE_SIZE = 16;
+    public static final int DEFAULT_TLS_SESSION_TIMEOUT_IN_SECONDS = 24 * 60 * 60; /* seconds */
+
+    // anything left in a body past this is cheaper to drop along with the connection
+    private static final int MAX_DRAIN_BYTES = 64 * 1024;
+
+    private static final String PROPERTY_MAX_CONNECTIONS = "http.maxConnections";
+    private static final String PROPERTY_KEEP_ALIVE_DURATION = "http.keepAliveDuration";
+
+    private final SSLSocketFactory mSocketFactory;
+    private final AtomicLong mSocketsOpened = new AtomicLong();
+
+    /**
+     * Creates a transport with the default pool settings.
+     */
+    public PIPooledHttpTransport() {
+        this(DEFAULT_MAX_IDLE_CONNECTIONS, DEFAULT_KEEP_ALIVE_IN_MILLISECONDS);
+    }
+
+    /**
+     * Creates a transport.  The limits only apply if the app hasn't set them and no HttpURLConnection
+     * was opened yet, the platform pool is shared by the whole process.
+     *
+     * @param maxIdleConnections maximum number of idle connections the pool keeps per host.
+     * @param keepAliveInMilliseconds how long idle connections are kept before they are evicted.
+     */
+    public PIPooledHttpTransport(int maxIdleConnections, long keepAliveInMilliseconds) {
+        this(maxIdleConnections, keepAliveInMilliseconds, null);
+    }
+
+    /**
+     * Creates a transport that opens its https connections from the given TLS context.
+     */
+    PIPooledHttpTransport(int maxIdleConnections, long keepAliveInMilliseconds, SSLContext sslContext) {
+        configurePool(maxIdleConnections, keepAliveInMilliseconds);
+        mSocketFactory = createSocketFactory(sslContext);
+    }
+
+    // the app's own settings win, they are process wide
+    private static synchronized void configurePool(int maxIdleConnections, long keepAliveInMilliseconds) {
+        if (System.getProperty(PROPERTY_MAX_CONNECTIONS) == null) {
+            System.setProperty(PROPERTY_MAX_CONNECTIONS, String.valueOf(maxIdleConnections));
+        }
+        if (System.getProperty(PROPERTY_KEEP_ALIVE_DURATION) == null) {
+            System.setProperty(PROPERTY_KEEP_ALIVE_DURATION, String.valueOf(keepAliveInMilliseconds));
+        }
+    }
+
+    @Override
+    public PIHttpResponse execute(PIHttpRequest request) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) request.getUrl().openConnection();
+        if (mSocketFactory != null && connection instanceof HttpsURLConnection) {
+            ((HttpsURLConnection) connection).setSSLSocketFactory(mSocketFactory);
+        }
+        PICancellationSignal cancellationSignal = request.getCancellationSignal();
+        Runnable abort = null;
+        if (cancellationSignal != null) {
+            // disconnecting from another thread fails whatever read or write the request is blocked in
+            abort = new Runnable() {
+                @Override
+                public void run() {
+                    connection.disconnect();
+                }
+            };
+            cancellationSignal.addOnCancelListener(abort);
+        }
+        try {
+            connection.setReadTimeout(request.getReadTimeout());
+            connection.setConnectTimeout(request.getConnectTimeout());
+            connection.setRequestMethod(request.getMethod());
+            for (Map.Entry<String, String> header : request.getHeaders().entrySet()) {
+                connection.setRequestProperty(header.getKey(), header.getValue());
+            }
+
+            byte[] body = request.getBody();
+            if (body != null) {
+                connection.setDoOutput(true);
+                // stream the body instead of letting HttpURLConnection buffer a copy of it
+                connection.setFixedLengthStreamingMode(body.length);
+            }
+
+            PIRequestTiming timing = request.getTiming();
+            boolean traced = PITrace.begin("pi connect");
+            try {
+                connection.connect();
+            } finally {
+                PITrace.end(traced);
+            }
+            if (timing != null) {
+                timing.markConnected();
+            }
+
+            int responseCode;
+            traced = PITrace.begin("pi first byte");
+            try {
+                if (body != null) {
+                    OutputStream out = connection.getOutputStream();
+                    try {
+                        out.write(body);
+                    } finally {
+                        out.close();
+                    }
+                }
+                responseCode = connection.getResponseCode();
+            } finally {
+                PITrace.end(traced);
+            }
+            if (timing != null) {
+                timing.markFirstByte();
+            }
+
+            return new PooledResponse(connection, responseCode, cancellationSignal, abort);
+        } catch (IOException e) {
+            if (abort != null) {
+                cancellationSignal.removeOnCancelListener(abort);
+            }
+            connection.disconnect();
+            throw e;
+        }
+    }
+
+    @Override
+    public void warmUp(PIHttpRequest request) {
+        PILogger.d(TAG, "warming up connection: {}", request);
+        try {
+            execute(request).close();
+        } catch (IOException e) {
+            PILogger.e(TAG, "warm up failed: {}", e);
+        }
+    }
+
+    /**
+     * Number of sockets opened for https connections.  Every one of these paid for a TCP handshake
+     * and at least an abbreviated TLS handshake, so it is a good measure of how well connections
+     * are being reused.
+     *
+     * @return number of https sockets opened by this transport.
+     */
+    public long getSocketsOpened() {
+        return mSocketsOpened.get();
+    }
+
+    private SSLSocketFactory createSocketFactory(SSLContext sslContext) {
+        try {
+            if (sslContext == null) {
+                sslContext = SSLContext.getInstance("TLS");
+                sslContext.init(null, null, null);
+            }
+            SSLSessionContext sessionContext = sslContext.getClientSessionContext();
+            if (sessionContext != null) {
+                sessionContext.setSessionCacheSize(DEFAULT_TLS_SESSION_CACHE_SIZE);
+                sessionContext.setSessionTimeout(DEFAULT_TLS_SESSION_TIMEOUT_IN_SECONDS);
+            }
+            return new CountingSocketFactory(sslContext.getSocketFactory());
+        } catch (GeneralSecurityException e) {
+            // fall back to the platform default factory
+            PILogger.e(TAG, "could not create shared TLS context: {}", e);
+            return null;
+        }
+    }
+
+    private class PooledResponse implements PIHttpResponse {
+        private final HttpURLConnection mConnection;
+        private final int mResponseCode;
+        private final PICancellationSignal mCancellationSignal;
+        private final Runnable mAbort;
+        private InputStream mBody;
+        private boolean mBodyOpened = false;
+        private boolean mClosed = false;
+
+        PooledResponse(HttpURLConnection connection, int responseCode, PICancellationSignal cancellationSignal, Runnable abort) {
+            mConnection = connection;
+            mResponseCode = responseCode;
+            mCancellationSignal = cancellationSignal;
+            mAbort = abort;
+        }
+
+        @Override
+        public int getResponseCode() {
+            return mResponseCode;
+        }
+
+        @Override
+        public Map<String, List<String>> getHeaders() {
+            return mConnection.getHeaderFields();
+        }
+
+        @Override
+        public InputStream getBody() {
+            if (!mBodyOpened) {
+                mBodyOpened = true;
+                try {
+                    mBody = mResponseCode >= HttpURLConnection.HTTP_BAD_REQUEST ?
+                            mConnection.getErrorStream() : mConnection.getInputStream();
+                } catch (IOException e) {
+                    mBody = mConnection.getErrorStream();
+                }
+            }
+            return mBody;
+        }
+
+        @Override
+        public void close() {
+            if (mClosed) {
+                return;
+            }
+            mClosed = true;
+            release();
+        }
+
+        private void release() {
+            if (mAbort != null) {
+                // the connection may be back in the pool soon, a late cancel must not touch it
+                mCancellationSignal.removeOnCancelListener(mAbort);
+                if (mCancellationSignal.isCanceled()) {
+                    mConnection.disconnect();
+                    return;
+                }
+            }
+            InputStream body = getBody();
+            if (body == null) {
+                return;
+            }
+            try {
+                // the connection only goes back into the pool once the body is fully read
+                byte[] buffer = new byte[4096];
+                int drained = 0;
+                int read;
+                while (drained < MAX_DRAIN_BYTES && (read = body.read(buffer)) != -1) {
+                    drained += read;
+                }
+                if (drained >= MAX_DRAIN_BYTES) {
+                    mConnection.disconnect();
+                }
+                body.close();
+            } catch (IOException e) {
+                mConnection.disconnect();
+            }
+        }
+    }
+
+    private class CountingSocketFactory extends SSLSocketFactory {
+        private final SSLSocketFactory mDelegate;
+
+        CountingSocketFactory(SSLSocketFactory delegate) {
+            mDelegate = delegate;
+        }
+
+        private Socket opened(Socket socket) {
+            mSocketsOpened.incrementAndGet();
+            return socket;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites() {
+            return mDelegate.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites() {
+            return mDelegate.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return opened(mDelegate.createSocket(socket, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return opened(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return opened(mDelegate.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return opened(mDelegate.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return opened(mDelegate.createSocket(address, port, localAddress, localPort));
+        }
+    }
+}
@@ -0,0 +1,236 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+import java.util.ArrayDeque;
+import java.util.EnumMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Schedules the requests of one lane by priority.  Every priority has its own queue and its own cap on
+ * the number of requests it runs at a time.  The highest priority with room goes first, except that a
+ * request which has waited longer than the starvation threshold is let through ahead of everyone else,
+ * so a steady stream of interactive reads can't hold back telemetry or prefetches forever.
+ */
+class PIPriorityScheduler {
+    private static final String TAG = PIPriorityScheduler.class.getSimpleName();
+
+    private static final long KEEP_ALIVE_IN_SECONDS = 30;
+
+    /**
+     * Queue wait times per priority, shared by all the lanes of a PIRequestExecutor.
+     */
+    static class WaitStats {
+        final AtomicLong dispatched = new AtomicLong();
+        final AtomicLong totalWait = new AtomicLong();
+        final AtomicLong maxWait = new AtomicLong();
+
+        void record(long wait) {
+            dispatched.incrementAndGet();
+            totalWait.addAndGet(wait);
+            long max;
+            do {
+                max = maxWait.get();
+            } while (wait > max && !maxWait.compareAndSet(max, wait));
+        }
+    }
+
+    private static class QueuedRequest {
+        final Runnable runnable;
+        final PIRequestExecutor.Priority priority;
+        final long enqueuedAt;
+
+        QueuedRequest(Runnable runnable, PIRequestExecutor.Priority priority, long enqueuedAt) {
+            this.runnable = runnable;
+            this.priority = priority;
+            this.enqueuedAt = enqueuedAt;
+        }
+    }
+
+    private final int mMaxThreads;
+    private final int mQueueDepth;
+    private final ThreadPoolExecutor mWorkers;
+    private final EnumMap<PIRequestExecutor.Priority, ArrayDeque<QueuedRequest>> mQueues;
+    private final EnumMap<PIRequestExecutor.Priority, Integer> mRunning;
+    private final EnumMap<PIRequestExecutor.Priority, Integer> mLimits;
+    private final EnumMap<PIRequestExecutor.Priority, WaitStats> mWaitStats;
+    private final long mStarvationThreshold;
+    private int mQueued;
+    private int mActive;
+    private boolean mShutdown;
+
+    PIPriorityScheduler(int maxThreads, int queueDepth, ThreadFactory threadFactory,
+                        EnumMap<PIRequestExecutor.Priority, Integer> limits,
+                        EnumMap<PIRequestExecutor.Priority, WaitStats> waitStats,
+                        long starvationThreshold) {
+        mMaxThreads = maxThreads;
+        mQueueDepth = queueDepth;
+        // the scheduler never hands out more than maxThreads requests, so the pool's own queue stays empty
+        mWorkers = new ThreadPoolExecutor(maxThreads, maxThreads,
+                KEEP_ALIVE_IN_SECONDS, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(),
+                threadFactory);
+        // let idle lanes give their threads back
+        mWorkers.allowCoreThreadTimeOut(true);
+        mQueues = new EnumMap<PIRequestExecutor.Priority, ArrayDeque<QueuedRequest>>(PIRequestExecutor.Priority.class);
+        mRunning = new EnumMap<PIRequestExecutor.Priority, Integer>(PIRequestExecutor.Priority.class);
+        for (PIRequestExecutor.Priority priority : PIRequestExecutor.Priority.values()) {
+            mQueues.put(priority, new ArrayDeque<QueuedRequest>());
+            mRunning.put(priority, 0);
+        }
+        mLimits = new EnumMap<PIRequestExecutor.Priority, Integer>(limits);
+        mWaitStats = waitStats;
+        mStarvationThreshold = starvationThreshold;
+    }
+
+    /**
+     *
+     * @param priority priority the returned executor queues its requests with.
+     * @return an executor that queues on this scheduler.
+     */
+    Executor executor(final PIRequestExecutor.Priority priority) {
+        return new Executor() {
+            @Override
+            public void execute(Runnable runnable) {
+                submit(runnable, priority);
+            }
+        };
+    }
+
+    void submit(Runnable runnable, PIRequestExecutor.Priority priority) {
+        synchronized (this) {
+            if (mShutdown) {
+                throw new RejectedExecutionException("lane is shut down");
+            }
+            if (mQueued >= mQueueDepth) {
+                throw new RejectedExecutionException("lane queue is full");
+            }
+            mQueues.get(priority).add(new QueuedRequest(runnable, priority, System.currentTimeMillis()));
+            mQueued++;
+        }
+        dispatch();
+    }
+
+    void setLimit(PIRequestExecutor.Priority priority, int maxConcurrent) {
+        synchronized (this) {
+            mLimits.put(priority, maxConcurrent);
+        }
+        dispatch();
+    }
+
+    synchronized int getQueuedCount() {
+        return mQueued;
+    }
+
+    synchronized int getQueuedCount(PIRequestExecutor.Priority priority) {
+        return mQueues.get(priority).size();
+    }
+
+    synchronized int getActiveCount() {
+        return mActive;
+    }
+
+    /**
+     * Stops accepting requests.  Requests already queued still run.
+     */
+    void shutdown() {
+        boolean idle;
+        synchronized (this) {
+            mShutdown = true;
+            idle = mQueued == 0 && mActive == 0;
+        }
+        if (idle) {
+            mWorkers.shutdown();
+        }
+    }
+
+    private void dispatch() {
+        while (true) {
+            final QueuedRequest next;
+            synchronized (this) {
+                if (mActive >= mMaxThreads) {
+                    return;
+                }
+                next = poll(System.currentTimeMillis());
+                if (next == null) {
+                    return;
+                }
+                mQueued--;
+                mActive++;
+                mRunning.put(next.priority, mRunning.get(next.priority) + 1);
+            }
+            mWaitStats.get(next.priority).record(System.currentTimeMillis() - next.enqueuedAt);
+            mWorkers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        next.runnable.run();
+                    } finally {
+                        finished(next.priority);
+                    }
+                }
+            });
+        }
+    }
+
+    private void finished(PIRequestExecutor.Priority priority) {
+        boolean drained;
+        synchronized (this) {
+            mActive--;
+            mRunning.put(priority, mRunning.get(priority) - 1);
+            drained = mShutdown && mQueued == 0 && mActive == 0;
+        }
+        if (drained) {
+            mWorkers.shutdown();
+        } else {
+            dispatch();
+        }
+    }
+
+    // picks the request that runs next, null if nothing can run right now
+    private QueuedRequest poll(long now) {
+        QueuedRequest starved = null;
+        for (PIRequestExecutor.Priority priority : PIRequestExecutor.Priority.values()) {
+            QueuedRequest head = mQueues.get(priority).peek();
+            if (head != null && hasRoom(priority) && now - head.enqueuedAt >= mStarvationThreshold
+                    && (starved == null || head.enqueuedAt < starved.enqueuedAt)) {
+                starved = head;
+            }
+        }
+        if (starved != null) {
+            PILogger.d(TAG, "promoting {} request queued for {}ms", starved.priority, now - starved.enqueuedAt);
+            return mQueues.get(starved.priority).poll();
+        }
+        for (PIRequestExecutor.Priority priority : PIRequestExecutor.Priority.values()) {
+            if (!mQueues.get(priority).isEmpty() && hasRoom(priority)) {
+                return mQueues.get(priority).poll();
+            }
+        }
+        return null;
+    }
+
+    private boolean hasRoom(PIRequestExecutor.Priority priority) {
+        Integer limit = mLimits.get(priority);
+        return limit == null || mRunning.get(priority) < limit;
+    }
+}
@@ -0,0 +1,262 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+import java.io.Serializable;
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * This class limits the rate at which the PIAPIAdapter sends requests to a group of endpoints, with a
+ * token bucket: requests spend a token each, tokens come back at a fixed rate and up to burst of them
+ * can be saved up.  What happens to a request that finds the bucket empty depends on the policy:
+ *
+ * DELAY queues it until a token comes back.
+ * DROP_OLDEST queues it too, but when the queue is full the request that has waited longest is dropped
+ * instead of the new one, for traffic where only the latest matters.
+ * COALESCE merges it with a queued request to the same url, the one sent answers both.  Only GETs and
+ * HEADs are merged, every other request carries a body of its own and is queued as with DELAY.
+ *
+ * Dropped requests complete with response code 0.
+ */
+public class PIRateLimiter implements Serializable {
+    public static final int DEFAULT_MAX_QUEUED = 16;
+
+    /**
+     * The endpoint groups requests are limited by.
+     */
+    public enum Group {
+        /**
+         * the beacon connector, beacon notification messages
+         */
+        CONNECTOR,
+        /**
+         * the v1 management config api
+         */
+        CONFIG_V1,
+        /**
+         * the v2 management config api
+         */
+        CONFIG_V2
+    }
+
+    /**
+     * What to do with a request when the bucket is empty.
+     */
+    public enum Policy {
+        DELAY,
+        DROP_OLDEST,
+        COALESCE
+    }
+
+    /**
+     * A request waiting on the limiter.
+     */
+    interface Request {
+        /**
+         * @return key of the request, requests with the same key can be coalesced.  null if the request
+         * must be sent on its own.
+         */
+        String getKey();
+
+        /**
+         * @return true if nobody wants the request anymore, it is skipped without spending a token.
+         */
+        boolean isAbandoned();
+
+        void send();
+
+        void drop();
+
+        /**
+         * Makes this request answer for an older one it replaces in the queue.
+         */
+        void absorb(Request older);
+    }
+
+    private static ScheduledExecutorService sScheduler;
+
+    private final double requestsPerSecond;
+    private final int burst;
+    private final Policy policy;
+    private final int maxQueued;
+
+    private transient boolean initialized;
+    private transient double tokens;
+    private transient long refilledAt;
+    private transient ArrayDeque<Request> queue;
+    private transient boolean drainScheduled;
+
+    /**
+     * Constructor
+     *
+     * @param requestsPerSecond rate tokens come back at.
+     * @param burst maximum number of tokens saved up, the largest burst sent without waiting.
+     * @param policy what to do with requests that find the bucket empty.
+     */
+    public PIRateLimiter(double requestsPerSecond, int burst, Policy policy) {
+        this(requestsPerSecond, burst, policy, DEFAULT_MAX_QUEUED);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param requestsPerSecond rate tokens come back at.
+     * @param burst maximum number of tokens saved up, the largest burst sent without waiting.
+     * @param policy what to do with requests that find the bucket empty.
+     * @param maxQueued maximum number of requests waiting for a token.
+     */
+    public PIRateLimiter(double requestsPerSecond, int burst, Policy policy, int maxQueued) {
+        if (requestsPerSecond <= 0 || burst < 1 || maxQueued < 1) {
+            throw new IllegalArgumentException("requestsPerSecond must be positive, burst and maxQueued at least 1");
+        }
+        this.requestsPerSecond = requestsPerSecond;
+        this.burst = burst;
+        this.policy = policy;
+        this.maxQueued = maxQueued;
+    }
+
+    /**
+     *
+     * @return what the limiter does with requests that find the bucket empty
+     */
+    public Policy getPolicy() {
+        return policy;
+    }
+
+    /**
+     * Sends the request now if there is a token for it, otherwise handles it per the policy.
+     */
+    void submit(Request request, PITransferStats stats) {
+        Request dropped = null;
+        boolean sendNow = false;
+        synchronized (this) {
+            refill();
+            if (queue.isEmpty() && tokens >= 1) {
+                tokens -= 1;
+                sendNow = true;
+            } else if (policy == Policy.COALESCE && coalesce(request)) {
+                stats.recordRateLimitCoalesced();
+            } else if (queue.size() < maxQueued) {
+                queue.add(request);
+                stats.recordRateLimitDelayed();
+                scheduleDrain();
+            } else if (policy == Policy.DROP_OLDEST) {
+                dropped = queue.poll();
+                queue.add(request);
+                scheduleDrain();
+            } else {
+                dropped = request;
+            }
+        }
+        if (sendNow) {
+            request.send();
+        }
+        if (dropped != null) {
+            stats.recordRateLimitDropped();
+            dropped.drop();
+        }
+    }
+
+    // this request takes the place of a queued request to the same url
+    private boolean coalesce(Request request) {
+        if (request.getKey() == null) {
+            return false;
+        }
+        for (Iterator<Request> it = queue.iterator(); it.hasNext(); ) {
+            Request queued = it.next();
+            if (request.getKey().equals(queued.getKey()) && !queued.isAbandoned()) {
+                request.absorb(queued);
+                // keeps the older request's place in line
+                ArrayDeque<Request> reordered = new ArrayDeque<Request>(queue.size());
+                for (Request other : queue) {
+                    reordered.add(other == queued ? request : other);
+                }
+                queue = reordered;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void drain() {
+        while (true) {
+            Request next;
+            synchronized (this) {
+                drainScheduled = false;
+                refill();
+                while (!queue.isEmpty() && queue.peek().isAbandoned()) {
+                    queue.poll();
+                }
+                if (queue.isEmpty()) {
+                    return;
+                }
+                if (tokens < 1) {
+                    scheduleDrain();
+                    return;
+                }
+                tokens -= 1;
+                next = queue.poll();
+            }
+            next.send();
+        }
+    }
+
+    private void scheduleDrain() {
+        if (drainScheduled) {
+            return;
+        }
+        drainScheduled = true;
+        long wait = (long) Math.ceil((1 - tokens) * 1000 / requestsPerSecond);
+        getScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        }, Math.max(0, wait), TimeUnit.MILLISECONDS);
+    }
+
+    private void refill() {
+        long now = System.currentTimeMillis();
+        if (!initialized) {
+            initialized = true;
+            tokens = burst;
+            refilledAt = now;
+            queue = new ArrayDeque<Request>();
+        }
+        tokens = Math.min(burst, tokens + (now - refilledAt) * requestsPerSecond / 1000);
+        refilledAt = now;
+    }
+
+    private static synchronized ScheduledExecutorService getScheduler() {
+        if (sScheduler == null) {
+            sScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "pi-rate-limiter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sScheduler;
+    }
+}
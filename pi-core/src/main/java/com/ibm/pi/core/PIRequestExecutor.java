@@ -0,0 +1,244 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * This class owns the thread pools the PIAPIAdapter runs its requests on.  Requests are split into
+ * lanes so a slow floor map download can't hold up beacon notification uploads, and none of them
+ * touch AsyncTask's process wide serial queue.
+ *
+ * Each lane is a bounded pool with a bounded queue.  When a lane's queue is full the request is
+ * rejected and the adapter reports it back through the completion handler.
+ *
+ * Within a lane requests are ordered by {@link Priority}, each priority can be capped to a number of
+ * requests running at a time, and a request that has been queued too long is run next whatever its
+ * priority.
+ */
+public class PIRequestExecutor {
+    private static final String TAG = PIRequestExecutor.class.getSimpleName();
+
+    private static final long STARVATION_THRESHOLD_IN_MILLISECONDS = 2000;
+
+    /**
+     * The lanes requests are scheduled on.
+     */
+    public enum Lane {
+        /**
+         * management config reads and device registration
+         */
+        CONFIG(3, 64),
+        /**
+         * beacon notification messages
+         */
+        UPLOAD(2, 32),
+        /**
+         * floor map downloads
+         */
+        IMAGE(2, 8);
+
+        private final int defaultThreads;
+        private final int defaultQueueDepth;
+
+        Lane(int defaultThreads, int defaultQueueDepth) {
+            this.defaultThreads = defaultThreads;
+            this.defaultQueueDepth = defaultQueueDepth;
+        }
+    }
+
+    /**
+     * How urgent a request is, highest first.
+     */
+    public enum Priority {
+        /**
+         * a user is waiting on the result
+         */
+        INTERACTIVE,
+        /**
+         * time critical reporting, like beacon notification messages
+         */
+        TELEMETRY,
+        /**
+         * prefetches, revalidations and device updates nobody is waiting on
+         */
+        BACKGROUND
+    }
+
+    private final EnumMap<Lane, PIPriorityScheduler> mLanes = new EnumMap<Lane, PIPriorityScheduler>(Lane.class);
+    private final EnumMap<Priority, Integer> mPriorityLimits = new EnumMap<Priority, Integer>(Priority.class);
+    private final EnumMap<Priority, PIPriorityScheduler.WaitStats> mWaitStats =
+            new EnumMap<Priority, PIPriorityScheduler.WaitStats>(Priority.class);
+
+    /**
+     * Creates an executor with the default concurrency and queue depth for every lane.  Background
+     * requests run one at a time per lane.
+     */
+    public PIRequestExecutor() {
+        mPriorityLimits.put(Priority.BACKGROUND, 1);
+        for (Priority priority : Priority.values()) {
+            mWaitStats.put(priority, new PIPriorityScheduler.WaitStats());
+        }
+        for (Lane lane : Lane.values()) {
+            mLanes.put(lane, createLane(lane, lane.defaultThreads, lane.defaultQueueDepth));
+        }
+    }
+
+    /**
+     * Tunes a lane.  Requests already queued on the lane are allowed to finish on the old pool.
+     *
+     * @param lane the lane to tune.
+     * @param maxThreads maximum number of requests the lane runs at the same time.
+     * @param queueDepth maximum number of requests waiting on the lane before new ones are rejected.
+     */
+    public synchronized void configureLane(Lane lane, int maxThreads, int queueDepth) {
+        if (maxThreads < 1 || queueDepth < 1) {
+            throw new IllegalArgumentException("maxThreads and queueDepth must be at least 1");
+        }
+        PILogger.d(TAG, "configuring lane {} with maxThreads: {}, queueDepth: {}", lane, maxThreads, queueDepth);
+        PIPriorityScheduler previous = mLanes.put(lane, createLane(lane, maxThreads, queueDepth));
+        previous.shutdown();
+    }
+
+    /**
+     * Caps the number of requests of a priority running at the same time on each lane.
+     *
+     * @param priority the priority to cap.
+     * @param maxConcurrent maximum number of requests of the priority running per lane.
+     */
+    public synchronized void configurePriority(Priority priority, int maxConcurrent) {
+        if (maxConcurrent < 1) {
+            throw new IllegalArgumentException("maxConcurrent must be at least 1");
+        }
+        PILogger.d(TAG, "configuring priority {} with maxConcurrent: {}", priority, maxConcurrent);
+        mPriorityLimits.put(priority, maxConcurrent);
+        for (PIPriorityScheduler scheduler : mLanes.values()) {
+            scheduler.setLimit(priority, maxConcurrent);
+        }
+    }
+
+    /**
+     *
+     * @param lane the lane to look up.
+     * @return an executor that runs requests on the lane with {@link Priority#INTERACTIVE} priority.
+     */
+    public Executor getLane(Lane lane) {
+        return getLane(lane, Priority.INTERACTIVE);
+    }
+
+    /**
+     *
+     * @param lane the lane to look up.
+     * @param priority priority of the requests given to the returned executor.
+     * @return an executor that runs requests on the lane with the given priority.
+     */
+    public synchronized Executor getLane(Lane lane, Priority priority) {
+        return mLanes.get(lane).executor(priority);
+    }
+
+    /**
+     *
+     * @param lane the lane to look up.
+     * @return number of requests waiting on the lane.
+     */
+    public synchronized int getQueuedCount(Lane lane) {
+        return mLanes.get(lane).getQueuedCount();
+    }
+
+    /**
+     *
+     * @param lane the lane to look up.
+     * @param priority the priority to look up.
+     * @return number of requests of the priority waiting on the lane.
+     */
+    public synchronized int getQueuedCount(Lane lane, Priority priority) {
+        return mLanes.get(lane).getQueuedCount(priority);
+    }
+
+    /**
+     *
+     * @param lane the lane to look up.
+     * @return number of requests currently running on the lane.
+     */
+    public synchronized int getActiveCount(Lane lane) {
+        return mLanes.get(lane).getActiveCount();
+    }
+
+    /**
+     *
+     * @param priority the priority to look up.
+     * @return number of requests of the priority that have left the queue to run, across all lanes.
+     */
+    public long getDispatchedCount(Priority priority) {
+        return mWaitStats.get(priority).dispatched.get();
+    }
+
+    /**
+     *
+     * @param priority the priority to look up.
+     * @return average time in milliseconds requests of the priority spent queued, across all lanes.
+     */
+    public long getAverageQueueWait(Priority priority) {
+        PIPriorityScheduler.WaitStats stats = mWaitStats.get(priority);
+        long dispatched = stats.dispatched.get();
+        return dispatched == 0 ? 0 : stats.totalWait.get() / dispatched;
+    }
+
+    /**
+     *
+     * @param priority the priority to look up.
+     * @return longest time in milliseconds a request of the priority spent queued, across all lanes.
+     */
+    public long getMaxQueueWait(Priority priority) {
+        return mWaitStats.get(priority).maxWait.get();
+    }
+
+    /**
+     * Stops accepting requests on all lanes.  Requests already queued still run.
+     */
+    public synchronized void shutdown() {
+        for (PIPriorityScheduler scheduler : mLanes.values()) {
+            scheduler.shutdown();
+        }
+    }
+
+    private PIPriorityScheduler createLane(Lane lane, int maxThreads, int queueDepth) {
+        return new PIPriorityScheduler(maxThreads, queueDepth, new LaneThreadFactory(lane),
+                mPriorityLimits, mWaitStats, STARVATION_THRESHOLD_IN_MILLISECONDS);
+    }
+
+    private static class LaneThreadFactory implements ThreadFactory {
+        private final AtomicInteger mCount = new AtomicInteger(1);
+        private final String mPrefix;
+
+        LaneThreadFactory(Lane lane) {
+            mPrefix = "pi-" + lane.name().toLowerCase(Locale.US) + "-";
+        }
+
+        @Override
+        public Thread newThread(Runnable runnable) {
+            Thread thread = new Thread(runnable, mPrefix + mCount.getAndIncrement());
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1);
+            return thread;
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+
+package com.ibm.pi.core;
+
+import java.io.Serializable;
+
+/**
+ * This class breaks down where the time of a request went.  Every phase is in milliseconds, or -1 when
+ * the request didn't go through it, e.g. a result served from the cache has no connect phase.
+ *
+ * <ul>
+ *     <li>queued: waiting for a thread on the request's lane</li>
+ *     <li>connect: DNS lookup, TCP connect and TLS handshake, close to 0 when a pooled connection was reused</li>
+ *     <li>first byte: sending the request and waiting for the response headers, mostly server think time</li>
+ *     <li>body: downloading the response body.  Floor maps are decoded, and documents that aren't kept
+ *     on disk are parsed, as they are downloaded, so for those this includes decoding or parsing</li>
+ *     <li>parse: turning the downloaded document into doctypes</li>
+ * </ul>
+ *
+ * When a request is retried or hedged, the network phases are those of the attempt that produced the result.
+ */
+public class PIRequestTiming implements Serializable {
+    private final long submittedAt;
+    private final long startedAt;
+    private long sentAt = -1;
+    private long connectedAt = -1;
+    private long firstByteAt = -1;
+    private long bodyReadAt = -1;
+    private long parse = -1;
+    private long finishedAt = -1;
+
+    PIRequestTiming(long submittedAt, long startedAt) {
+        this.submittedAt = submittedAt;
+        this.startedAt = startedAt;
+    }
+
+    // a fresh attempt of the same request, network phases start over
+    PIRequestTiming attempt() {
+        PIRequestTiming attempt = new PIRequestTiming(submittedAt, startedAt);
+        attempt.sentAt = System.currentTimeMillis();
+        return attempt;
+    }
+
+    /**
+     * Called by transports once the connection is established.
+     */
+    public void markConnected() {
+        connectedAt = System.currentTimeMillis();
+    }
+
+    /**
+     * Called by transports once the response headers are in.  Only the first call counts.
+     */
+    public void markFirstByte() {
+        if (firstByteAt < 0) {
+            firstByteAt = System.currentTimeMillis();
+        }
+    }
+
+    void markBodyRead() {
+        bodyReadAt = System.currentTimeMillis();
+    }
+
+    void setParse(long parseInMilliseconds) {
+        parse = parseInMilliseconds;
+    }
+
+    void finish() {
+        finishedAt = System.currentTimeMillis();
+    }
+
+    /**
+     *
+     * @return time spent waiting for a thread
+     */
+    public long getQueued() {
+        return startedAt - submittedAt;
+    }
+
+    /**
+     *
+     * @return time spent connecting, -1 if the transport doesn't report it
+     */
+    public long getConnect() {
+        return sentAt < 0 || connectedAt < 0 ? -1 : connectedAt - sentAt;
+    }
+
+    /**
+     *
+     * @return time from sending the request, or from being connected if known, to the response headers
+     */
+    public long getFirstByte() {
+        if (firstByteAt < 0) {
+            return -1;
+        }
+        return firstByteAt - (connectedAt >= 0 ? connectedAt : sentAt);
+    }
+
+    /**
+     *
+     * @return time spent downloading the response body
+     */
+    public long getBody() {
+        return firstByteAt < 0 || bodyReadAt < 0 ? -1 : bodyReadAt - firstByteAt;
+    }
+
+    /**
+     *
+     * @return time spent parsing the document into doctypes
+     */
+    public long getParse() {
+        return parse;
+    }
+
+    /**
+     *
+     * @return time from the call to the result being ready for the completion handler
+     */
+    public long getTotal() {
+        return finishedAt < 0 ? -1 : finishedAt - submittedAt;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("queued %d, connect %d, first byte %d, body %d, parse %d, total %d ms",
+                getQueued(), getConnect(), getFirstByte(), getBody(), getParse(), getTotal());
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+/**
+ * This class caps retries to a fraction of the requests sent, so a degraded backend doesn't get hit
+ * with a multiple of the normal load.  One budget is shared by all adapters of a {@link PIClient}, each
+ * request tops it up by the ratio of the {@link PIRetryPolicy} it is sent with.
+ */
+class PIRetryBudget {
+    // the budget never holds more than this many retries, so a quiet period can't bank a burst
+    private static final double MAX_BUDGET = 10;
+
+    private double mBudget = MAX_BUDGET;
+
+    /**
+     * Called for every request sent, tops up the budget.
+     *
+     * @param ratio retries allowed per request sent.
+     */
+    synchronized void onRequest(double ratio) {
+        mBudget = Math.min(MAX_BUDGET, mBudget + ratio);
+    }
+
+    /**
+     * Takes a retry out of the budget.
+     *
+     * @return true if the budget allowed the retry.
+     */
+    synchronized boolean tryRetry() {
+        if (mBudget < 1) {
+            return false;
+        }
+        mBudget -= 1;
+        return true;
+    }
+}
@@ -0,0 +1,116 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+import java.io.Serializable;
+import java.util.Random;
+
+/**
+ * This class decides whether and when the PIAPIAdapter retries a failed request.  Only idempotent
+ * requests (GET, PUT and HEAD) are retried, and only when the server could not be reached or
+ * answered with 429, 502, 503 or 504.
+ *
+ * Retries back off exponentially with full jitter: the delay before retry n is a random value between
+ * 0 and min(maxDelay, baseDelay * 2^n).  On top of that, a retry budget caps retries to a fraction of
+ * the requests sent, so a degraded backend doesn't get hit with a multiple of the normal load.  The
+ * budget itself is kept by the adapter's {@link PIClient}, the policy only holds the settings.
+ */
+public class PIRetryPolicy implements Serializable {
+    public static final int DEFAULT_MAX_ATTEMPTS = 3;
+    public static final long DEFAULT_BASE_DELAY_IN_MILLISECONDS = 250; /* milliseconds */
+    public static final long DEFAULT_MAX_DELAY_IN_MILLISECONDS = 4000; /* milliseconds */
+    public static final double DEFAULT_BUDGET_RATIO = 0.1;
+
+    private final int maxAttempts;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final double budgetRatio;
+
+    private transient Random random;
+
+    /**
+     * Creates a policy with the default settings.
+     */
+    public PIRetryPolicy() {
+        this(DEFAULT_MAX_ATTEMPTS, DEFAULT_BASE_DELAY_IN_MILLISECONDS, DEFAULT_MAX_DELAY_IN_MILLISECONDS, DEFAULT_BUDGET_RATIO);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxAttempts maximum number of attempts per request, including the first one.  1 disables retries.
+     * @param baseDelayInMilliseconds upper bound of the delay before the first retry.
+     * @param maxDelayInMilliseconds upper bound of the delay before any retry.
+     * @param budgetRatio retries allowed per request sent, e.g. 0.1 allows one retry for every ten requests.
+     */
+    public PIRetryPolicy(int maxAttempts, long baseDelayInMilliseconds, long maxDelayInMilliseconds, double budgetRatio) {
+        this.maxAttempts = maxAttempts;
+        this.baseDelay = baseDelayInMilliseconds;
+        this.maxDelay = maxDelayInMilliseconds;
+        this.budgetRatio = budgetRatio;
+    }
+
+    /**
+     * A policy that never retries.
+     *
+     * @return a policy that never retries.
+     */
+    public static PIRetryPolicy none() {
+        return new PIRetryPolicy(1, 0, 0, 0);
+    }
+
+    /**
+     *
+     * @return maximum number of attempts per request
+     */
+    public int getMaxAttempts() {
+        return maxAttempts;
+    }
+
+    static boolean isIdempotent(String requestMethod) {
+        return "GET".equals(requestMethod) || "PUT".equals(requestMethod) || "HEAD".equals(requestMethod);
+    }
+
+    static boolean isRetryable(int responseCode) {
+        return responseCode == 0 || responseCode == 429 || responseCode == 502
+                || responseCode == 503 || responseCode == 504;
+    }
+
+    /**
+     *
+     * @return retries allowed per request sent
+     */
+    double getBudgetRatio() {
+        return budgetRatio;
+    }
+
+    /**
+     * @param retry number of the retry, starting at 0.
+     * @return how long to wait before the retry in ms.
+     */
+    synchronized long getDelay(int retry) {
+        if (random == null) {
+            random = new Random();
+        }
+        long ceiling = Math.min(maxDelay, baseDelay << Math.min(retry, 30));
+        return ceiling <= 0 ? 0 : (long) (random.nextDouble() * ceiling);
+    }
+
+    long getMaxDelay() {
+        return maxDelay;
+    }
+}
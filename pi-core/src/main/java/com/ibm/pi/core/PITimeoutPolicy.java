@@ -0,0 +1,113 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+import java.io.Serializable;
+import java.util.HashMap;
+
+/**
+ * This class decides the connect and read timeouts of PIAPIAdapter requests.  Timeouts are set per
+ * endpoint, the kind of resource a request is for: orgs, sites, floors, zones, beacons, sensors,
+ * devices, proximityUUID, map for floor maps or bnm for beacon notification messages.
+ *
+ * Each endpoint's timeout follows its recent latency: the time until the response headers arrive is
+ * sampled, and once there are enough samples the timeout is a multiple of their 99th percentile, kept
+ * between the endpoint's floor and ceiling.  A timeout set with {@link #setTimeout(String, int)} wins
+ * over all of that.  The latencies are kept by the adapter's {@link PIClient}, the policy only holds the
+ * settings.
+ */
+public class PITimeoutPolicy implements Serializable {
+    public static final int DEFAULT_TIMEOUT_IN_MILLISECONDS = 7000; /* milliseconds */
+    public static final int DEFAULT_FLOOR_IN_MILLISECONDS = 2000; /* milliseconds */
+    public static final int DEFAULT_CEILING_IN_MILLISECONDS = 15000; /* milliseconds */
+
+    private static final double PERCENTILE = 0.99;
+    private static final int HEADROOM = 3;
+
+    private final HashMap<String, Integer> mOverrides = new HashMap<String, Integer>();
+    private final HashMap<String, Integer> mFloors = new HashMap<String, Integer>();
+    private final HashMap<String, Integer> mCeilings = new HashMap<String, Integer>();
+
+    /**
+     * Creates a policy with the default bounds.  Beacon notification messages are sent every few
+     * seconds, so they are held to at most 4 seconds, while floor maps can take up to 30.
+     */
+    public PITimeoutPolicy() {
+        setBounds("bnm", 1000, 4000);
+        setBounds("map", DEFAULT_FLOOR_IN_MILLISECONDS, 30000);
+    }
+
+    /**
+     * Sets the range an endpoint's adaptive timeout is kept within.
+     *
+     * @param endpoint the endpoint, e.g. zones or map.
+     * @param floorInMilliseconds shortest timeout.
+     * @param ceilingInMilliseconds longest timeout.
+     */
+    public synchronized void setBounds(String endpoint, int floorInMilliseconds, int ceilingInMilliseconds) {
+        if (floorInMilliseconds < 1 || ceilingInMilliseconds < floorInMilliseconds) {
+            throw new IllegalArgumentException("floor must be at least 1 and no more than ceiling");
+        }
+        mFloors.put(endpoint, floorInMilliseconds);
+        mCeilings.put(endpoint, ceilingInMilliseconds);
+    }
+
+    /**
+     * Fixes an endpoint's timeout, it no longer adapts to latency.
+     *
+     * @param endpoint the endpoint, e.g. zones or map.
+     * @param timeoutInMilliseconds connect and read timeout.
+     */
+    public synchronized void setTimeout(String endpoint, int timeoutInMilliseconds) {
+        if (timeoutInMilliseconds < 1) {
+            throw new IllegalArgumentException("timeout must be at least 1");
+        }
+        mOverrides.put(endpoint, timeoutInMilliseconds);
+    }
+
+    /**
+     * Lets an endpoint's timeout adapt to latency again.
+     *
+     * @param endpoint the endpoint, e.g. zones or map.
+     */
+    public synchronized void clearTimeout(String endpoint) {
+        mOverrides.remove(endpoint);
+    }
+
+    /**
+     *
+     * @param endpoint the endpoint, e.g. zones or map.
+     * @param latencies recent latencies of the adapter's client.
+     * @return the connect and read timeout requests to the endpoint are sent with, in ms.
+     */
+    synchronized int getTimeout(String endpoint, PILatencyWindows latencies) {
+        Integer override = mOverrides.get(endpoint);
+        if (override != null) {
+            return override;
+        }
+        int floor = get(mFloors, endpoint, DEFAULT_FLOOR_IN_MILLISECONDS);
+        int ceiling = get(mCeilings, endpoint, DEFAULT_CEILING_IN_MILLISECONDS);
+        long percentile = latencies.getPercentile(endpoint, PERCENTILE);
+        long timeout = percentile < 0 ? DEFAULT_TIMEOUT_IN_MILLISECONDS : percentile * HEADROOM;
+        return (int) Math.max(floor, Math.min(ceiling, timeout));
+    }
+
+    private static int get(HashMap<String, Integer> values, String endpoint, int defaultValue) {
+        Integer value = values.get(endpoint);
+        return value != null ? value : defaultValue;
+    }
+}
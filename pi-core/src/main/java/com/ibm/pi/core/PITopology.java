@@ -0,0 +1,170 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+import com.ibm.pi.core.doctypes.PIBeacon;
+import com.ibm.pi.core.doctypes.PIFloor;
+import com.ibm.pi.core.doctypes.PIOrg;
+import com.ibm.pi.core.doctypes.PISensor;
+import com.ibm.pi.core.doctypes.PISite;
+import com.ibm.pi.core.doctypes.PIZone;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * This class is an immutable snapshot of an organization's venues: its sites, their floors, and the
+ * zones, beacons and sensors on each floor.  Built by {@link PIAPIAdapter#loadTopology(PITopologyListener)}.
+ *
+ * Parts that could not be fetched are missing from the snapshot and listed in {@link #getFailures()}.
+ */
+public class PITopology {
+
+    /**
+     * A site and its floors.
+     */
+    public static class Site {
+        private final PISite site;
+        private final List<Floor> floors;
+
+        Site(PISite site, List<Floor> floors) {
+            this.site = site;
+            this.floors = Collections.unmodifiableList(new ArrayList<Floor>(floors));
+        }
+
+        public PISite getSite() {
+            return site;
+        }
+
+        public List<Floor> getFloors() {
+            return floors;
+        }
+    }
+
+    /**
+     * A floor and what is on it.
+     */
+    public static class Floor {
+        private final PIFloor floor;
+        private final List<PIZone> zones;
+        private final List<PIBeacon> beacons;
+        private final List<PISensor> sensors;
+
+        Floor(PIFloor floor, List<PIZone> zones, List<PIBeacon> beacons, List<PISensor> sensors) {
+            this.floor = floor;
+            this.zones = unmodifiable(zones);
+            this.beacons = unmodifiable(beacons);
+            this.sensors = unmodifiable(sensors);
+        }
+
+        public PIFloor getFloor() {
+            return floor;
+        }
+
+        public List<PIZone> getZones() {
+            return zones;
+        }
+
+        public List<PIBeacon> getBeacons() {
+            return beacons;
+        }
+
+        public List<PISensor> getSensors() {
+            return sensors;
+        }
+    }
+
+    /**
+     * A part of the topology that could not be fetched.
+     */
+    public static class Failure {
+        private final String path;
+        private final PIAPIResult result;
+
+        Failure(String path, PIAPIResult result) {
+            this.path = path;
+            this.result = result;
+        }
+
+        /**
+         *
+         * @return what was being fetched, e.g. "sites/site1/floors/floor2/beacons"
+         */
+        public String getPath() {
+            return path;
+        }
+
+        /**
+         *
+         * @return the failed result
+         */
+        public PIAPIResult getResult() {
+            return result;
+        }
+
+        @Override
+        public String toString() {
+            return path + ": " + result;
+        }
+    }
+
+    private final PIOrg org;
+    private final List<Site> sites;
+    private final List<Failure> failures;
+
+    PITopology(PIOrg org, List<Site> sites, List<Failure> failures) {
+        this.org = org;
+        this.sites = Collections.unmodifiableList(new ArrayList<Site>(sites));
+        this.failures = Collections.unmodifiableList(new ArrayList<Failure>(failures));
+    }
+
+    /**
+     *
+     * @return the organization, null if it could not be fetched
+     */
+    public PIOrg getOrg() {
+        return org;
+    }
+
+    public List<Site> getSites() {
+        return sites;
+    }
+
+    /**
+     *
+     * @return parts of the topology that could not be fetched, empty if it is complete
+     */
+    public List<Failure> getFailures() {
+        return failures;
+    }
+
+    /**
+     *
+     * @return true if every part of the topology was fetched
+     */
+    public boolean isComplete() {
+        return failures.isEmpty();
+    }
+
+    private static <T> List<T> unmodifiable(List<T> list) {
+        if (list == null) {
+            return Collections.emptyList();
+        }
+        return Collections.unmodifiableList(new ArrayList<T>(list));
+    }
+}
@@ -0,0 +1,39 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+/**
+ * This interface provides callbacks for {@link PIAPIAdapter#loadTopology(PITopologyListener)}.
+ */
+public interface PITopologyListener {
+
+    /**
+     * Called each time a request of the load finishes.  The total grows as the sites and floors
+     * that need fetching are discovered.
+     *
+     * @param completed number of requests finished so far.
+     * @param total number of requests known so far.
+     */
+    void onProgress(int completed, int total);
+
+    /**
+     * Provides the loaded topology.  Parts that failed to load are listed in {@link PITopology#getFailures()}.
+     *
+     * @param topology snapshot of the organization's topology.
+     */
+    void onComplete(PITopology topology);
+}
@@ -0,0 +1,270 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+import com.ibm.pi.core.doctypes.PIBeacon;
+import com.ibm.pi.core.doctypes.PIFloor;
+import com.ibm.pi.core.doctypes.PIOrg;
+import com.ibm.pi.core.doctypes.PISensor;
+import com.ibm.pi.core.doctypes.PISite;
+import com.ibm.pi.core.doctypes.PIZone;
+
+import java.net.HttpURLConnection;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads an organization's whole topology by fanning out over the per resource endpoints.  The org and
+ * the site list are fetched first, then the floors of every site, then the zones, beacons and sensors of
+ * every floor, with at most maxConcurrency requests out at a time so the config lane isn't flooded.
+ *
+ * A failed request doesn't fail the load, it is recorded and the parts that depend on it are left out.
+ */
+class PITopologyLoader {
+    private static final String TAG = PITopologyLoader.class.getSimpleName();
+
+    static final int DEFAULT_MAX_CONCURRENCY = 4;
+
+    private final PIAPIAdapter mAdapter;
+    private final PITopologyListener mListener;
+    private final int mMaxConcurrency;
+    private final PIAPIFuture mFuture = new PIAPIFuture(null);
+
+    private final ArrayDeque<Runnable> mPending = new ArrayDeque<Runnable>();
+    private int mRunning;
+    private int mCompleted;
+    private int mTotal;
+
+    private PIOrg mOrg;
+    private final Map<PISite, List<PIFloor>> mFloors = new LinkedHashMap<PISite, List<PIFloor>>();
+    private final Map<PIFloor, FloorContents> mFloorContents = new LinkedHashMap<PIFloor, FloorContents>();
+    private final ArrayList<PITopology.Failure> mFailures = new ArrayList<PITopology.Failure>();
+
+    private static class FloorContents {
+        List<PIZone> zones;
+        List<PIBeacon> beacons;
+        List<PISensor> sensors;
+    }
+
+    PITopologyLoader(PIAPIAdapter adapter, PITopologyListener listener, int maxConcurrency) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1");
+        }
+        mAdapter = adapter;
+        mListener = listener;
+        mMaxConcurrency = maxConcurrency;
+    }
+
+    /**
+     * Starts the load.
+     *
+     * @return a future that completes with the {@link PITopology} once the listener has it.  Canceling
+     * it aborts the requests in flight and drops the rest.
+     */
+    PIAPIFuture start() {
+        PILogger.d(TAG, "loading topology with maxConcurrency: {}", mMaxConcurrency);
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                mFuture.cancelWith(mAdapter.getOrg(new Step("org") {
+                    @Override
+                    void onSuccess(Object result) {
+                        mOrg = (PIOrg) result;
+                    }
+                }));
+            }
+        });
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                mFuture.cancelWith(mAdapter.getSites(new Step("sites") {
+                    @Override
+                    void onSuccess(Object result) {
+                        for (PISite site : castList(result, PISite.class)) {
+                            loadFloors(site);
+                        }
+                    }
+                }));
+            }
+        });
+        return mFuture;
+    }
+
+    private void loadFloors(final PISite site) {
+        synchronized (this) {
+            mFloors.put(site, new ArrayList<PIFloor>());
+        }
+        final String path = "sites/" + site.getCode() + "/floors";
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                mFuture.cancelWith(mAdapter.getFloors(site.getCode(), new Step(path) {
+                    @Override
+                    void onSuccess(Object result) {
+                        List<PIFloor> floors = castList(result, PIFloor.class);
+                        synchronized (PITopologyLoader.this) {
+                            mFloors.get(site).addAll(floors);
+                        }
+                        for (PIFloor floor : floors) {
+                            loadFloorContents(site, floor, path + "/" + floor.getCode());
+                        }
+                    }
+                }));
+            }
+        });
+    }
+
+    private void loadFloorContents(final PISite site, final PIFloor floor, final String path) {
+        final FloorContents contents = new FloorContents();
+        synchronized (this) {
+            mFloorContents.put(floor, contents);
+        }
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                mFuture.cancelWith(mAdapter.getZones(site.getCode(), floor.getCode(), new Step(path + "/zones") {
+                    @Override
+                    void onSuccess(Object result) {
+                        contents.zones = castList(result, PIZone.class);
+                    }
+                }));
+            }
+        });
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                mFuture.cancelWith(mAdapter.getBeacons(site.getCode(), floor.getCode(), new Step(path + "/beacons") {
+                    @Override
+                    void onSuccess(Object result) {
+                        contents.beacons = castList(result, PIBeacon.class);
+                    }
+                }));
+            }
+        });
+        enqueue(new Runnable() {
+            @Override
+            public void run() {
+                mFuture.cancelWith(mAdapter.getSensors(site.getCode(), floor.getCode(), new Step(path + "/sensors") {
+                    @Override
+                    void onSuccess(Object result) {
+                        contents.sensors = castList(result, PISensor.class);
+                    }
+                }));
+            }
+        });
+    }
+
+    private void enqueue(Runnable request) {
+        synchronized (this) {
+            mTotal++;
+            mPending.add(request);
+        }
+        drain();
+    }
+
+    private void drain() {
+        while (true) {
+            Runnable next;
+            synchronized (this) {
+                if (mFuture.isCancelled() || mRunning >= mMaxConcurrency || mPending.isEmpty()) {
+                    return;
+                }
+                next = mPending.poll();
+                mRunning++;
+            }
+            next.run();
+        }
+    }
+
+    /**
+     * Completion handler for one request of the load.  Records the outcome, then lets the next
+     * pending request go and finishes the load once nothing is left.
+     */
+    private abstract class Step implements PIAPICompletionHandler {
+        private final String mPath;
+
+        Step(String path) {
+            mPath = path;
+        }
+
+        abstract void onSuccess(Object result);
+
+        @Override
+        public void onComplete(PIAPIResult result) {
+            if (result.getResponseCode() == HttpURLConnection.HTTP_OK && result.getException() == null) {
+                try {
+                    onSuccess(result.getResult());
+                } catch (ClassCastException e) {
+                    onFailure(result);
+                }
+            } else {
+                onFailure(result);
+            }
+
+            int completed;
+            int total;
+            boolean done;
+            synchronized (PITopologyLoader.this) {
+                mRunning--;
+                completed = ++mCompleted;
+                total = mTotal;
+                done = mRunning == 0 && mPending.isEmpty();
+            }
+            mListener.onProgress(completed, total);
+            if (done) {
+                PITopology topology = build();
+                mListener.onComplete(topology);
+                mFuture.complete(new PIAPIResult(topology, HttpURLConnection.HTTP_OK));
+            } else {
+                drain();
+            }
+        }
+
+        private void onFailure(PIAPIResult result) {
+            PILogger.e(TAG, "failed to load {}: {}", mPath, result.getResponseCode());
+            synchronized (PITopologyLoader.this) {
+                mFailures.add(new PITopology.Failure(mPath, result));
+            }
+        }
+    }
+
+    private synchronized PITopology build() {
+        ArrayList<PITopology.Site> sites = new ArrayList<PITopology.Site>();
+        for (Map.Entry<PISite, List<PIFloor>> site : mFloors.entrySet()) {
+            ArrayList<PITopology.Floor> floors = new ArrayList<PITopology.Floor>();
+            for (PIFloor floor : site.getValue()) {
+                FloorContents contents = mFloorContents.get(floor);
+                floors.add(new PITopology.Floor(floor, contents.zones, contents.beacons, contents.sensors));
+            }
+            sites.add(new PITopology.Site(site.getKey(), floors));
+        }
+        PILogger.d(TAG, "loaded topology: {} sites, {} failures", sites.size(), mFailures.size());
+        return new PITopology(mOrg, sites, mFailures);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> List<T> castList(Object result, Class<T> type) {
+        List<?> list = (List<?>) result;
+        for (Object element : list) {
+            type.cast(element);
+        }
+        return (List<T>) list;
+    }
+}
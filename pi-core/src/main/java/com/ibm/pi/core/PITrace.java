@@ -0,0 +1,74 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+
+package com.ibm.pi.core;
+
+import android.os.Build;
+import android.os.Trace;
+
+/**
+ * Wraps android.os.Trace so request phases show up in systrace and Perfetto captures when tracing is
+ * enabled.  Sections are a no-op before API 18.
+ */
+final class PITrace {
+    // section names longer than this are rejected by Trace
+    private static final int MAX_SECTION_NAME_LENGTH = 127;
+
+    private static volatile boolean sEnabled = false;
+
+    private PITrace() {
+    }
+
+    static void setEnabled(boolean enabled) {
+        sEnabled = enabled;
+    }
+
+    /**
+     * @param name name of the section.
+     * @return true if a section was started, pass it to {@link #end(boolean)}.
+     */
+    static boolean begin(String name) {
+        if (!isEnabled()) {
+            return false;
+        }
+        Trace.beginSection(name.length() > MAX_SECTION_NAME_LENGTH ? name.substring(0, MAX_SECTION_NAME_LENGTH) : name);
+        return true;
+    }
+
+    /**
+     * Starts a section named after its parts, only building the name when tracing is enabled.
+     *
+     * @return true if a section was started, pass it to {@link #end(boolean)}.
+     */
+    static boolean begin(String prefix, String method, String endpoint) {
+        if (!isEnabled()) {
+            return false;
+        }
+        return begin(prefix + " " + method + " " + endpoint);
+    }
+
+    static boolean isEnabled() {
+        return sEnabled && Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN_MR2;
+    }
+
+    // only ends a section begin() started, so toggling tracing mid request can't unbalance the stack
+    static void end(boolean begun) {
+        if (begun) {
+            Trace.endSection();
+        }
+    }
+}
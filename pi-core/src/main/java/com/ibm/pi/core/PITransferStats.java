@@ -0,0 +1,221 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class counts the bytes the PIAPIAdapter sends and receives, both as they went over the wire
+ * and as they were before compression, so the savings from gzip can be measured.  It also counts
+ * the requests that were never sent because an identical one was already in flight, the requests
+ * that timed out, per endpoint, the hedges sent for slow requests and what the rate limiters did.
+ */
+public class PITransferStats {
+    private final AtomicLong bytesSent = new AtomicLong();
+    private final AtomicLong bytesSentUncompressed = new AtomicLong();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong bytesReceivedUncompressed = new AtomicLong();
+    private final AtomicLong compressedRequests = new AtomicLong();
+    private final AtomicLong compressedResponses = new AtomicLong();
+    private final AtomicLong coalescedRequests = new AtomicLong();
+    private final AtomicLong hedgedRequests = new AtomicLong();
+    private final AtomicLong hedgeWins = new AtomicLong();
+    private final AtomicLong rateLimitDelayed = new AtomicLong();
+    private final AtomicLong rateLimitDropped = new AtomicLong();
+    private final AtomicLong rateLimitCoalesced = new AtomicLong();
+    private final AtomicLong timeouts = new AtomicLong();
+    private final HashMap<String, AtomicLong> endpointTimeouts = new HashMap<String, AtomicLong>();
+
+    void recordSent(long wireBytes, long uncompressedBytes, boolean compressed) {
+        bytesSent.addAndGet(wireBytes);
+        bytesSentUncompressed.addAndGet(uncompressedBytes);
+        if (compressed) {
+            compressedRequests.incrementAndGet();
+        }
+    }
+
+    void recordReceived(long wireBytes, long uncompressedBytes, boolean compressed) {
+        bytesReceived.addAndGet(wireBytes);
+        bytesReceivedUncompressed.addAndGet(uncompressedBytes);
+        if (compressed) {
+            compressedResponses.incrementAndGet();
+        }
+    }
+
+    void recordCoalesced() {
+        coalescedRequests.incrementAndGet();
+    }
+
+    void recordHedged() {
+        hedgedRequests.incrementAndGet();
+    }
+
+    void recordHedgeWin() {
+        hedgeWins.incrementAndGet();
+    }
+
+    void recordRateLimitDelayed() {
+        rateLimitDelayed.incrementAndGet();
+    }
+
+    void recordRateLimitDropped() {
+        rateLimitDropped.incrementAndGet();
+    }
+
+    void recordRateLimitCoalesced() {
+        rateLimitCoalesced.incrementAndGet();
+    }
+
+    void recordTimeout(String endpoint) {
+        timeouts.incrementAndGet();
+        AtomicLong count;
+        synchronized (endpointTimeouts) {
+            count = endpointTimeouts.get(endpoint);
+            if (count == null) {
+                count = new AtomicLong();
+                endpointTimeouts.put(endpoint, count);
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     *
+     * @return request body bytes written to the wire
+     */
+    public long getBytesSent() {
+        return bytesSent.get();
+    }
+
+    /**
+     *
+     * @return request body bytes before compression
+     */
+    public long getBytesSentUncompressed() {
+        return bytesSentUncompressed.get();
+    }
+
+    /**
+     *
+     * @return response body bytes read from the wire
+     */
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    /**
+     *
+     * @return response body bytes after decompression
+     */
+    public long getBytesReceivedUncompressed() {
+        return bytesReceivedUncompressed.get();
+    }
+
+    /**
+     *
+     * @return number of requests sent with a gzip body
+     */
+    public long getCompressedRequests() {
+        return compressedRequests.get();
+    }
+
+    /**
+     *
+     * @return number of responses received with a gzip body
+     */
+    public long getCompressedResponses() {
+        return compressedResponses.get();
+    }
+
+    /**
+     *
+     * @return number of calls that shared the response of an identical request already in flight
+     */
+    public long getCoalescedRequests() {
+        return coalescedRequests.get();
+    }
+
+    /**
+     *
+     * @return number of duplicate requests sent because the original was slow
+     */
+    public long getHedgedRequests() {
+        return hedgedRequests.get();
+    }
+
+    /**
+     *
+     * @return number of hedges that answered before the request they duplicated
+     */
+    public long getHedgeWins() {
+        return hedgeWins.get();
+    }
+
+    /**
+     *
+     * @return number of requests a rate limiter held back until it had a token for them
+     */
+    public long getRateLimitDelayed() {
+        return rateLimitDelayed.get();
+    }
+
+    /**
+     *
+     * @return number of requests a rate limiter dropped
+     */
+    public long getRateLimitDropped() {
+        return rateLimitDropped.get();
+    }
+
+    /**
+     *
+     * @return number of requests a rate limiter merged into one already waiting
+     */
+    public long getRateLimitCoalesced() {
+        return rateLimitCoalesced.get();
+    }
+
+    /**
+     *
+     * @return number of requests that hit their connect or read timeout
+     */
+    public long getTimeouts() {
+        return timeouts.get();
+    }
+
+    /**
+     *
+     * @return number of requests that hit their connect or read timeout, by endpoint
+     */
+    public Map<String, Long> getTimeoutsByEndpoint() {
+        HashMap<String, Long> counts = new HashMap<String, Long>();
+        synchronized (endpointTimeouts) {
+            for (Map.Entry<String, AtomicLong> count : endpointTimeouts.entrySet()) {
+                counts.put(count.getKey(), count.getValue().get());
+            }
+        }
+        return counts;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("sent %d/%d bytes, received %d/%d bytes (wire/uncompressed)",
+                getBytesSent(), getBytesSentUncompressed(), getBytesReceived(), getBytesReceivedUncompressed());
+    }
+}
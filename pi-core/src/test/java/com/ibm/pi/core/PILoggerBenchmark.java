@@ -0,0 +1,80 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+
+package com.ibm.pi.core;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Measures what a log call costs when its level is disabled.  Run it with the unit tests, the
+ * numbers are printed to the test output.
+ */
+public class PILoggerBenchmark {
+    private static final String TAG = PILoggerBenchmark.class.getSimpleName();
+    private static final int WARM_UP_CALLS = 200000;
+    private static final int CALLS = 2000000;
+
+    @Test
+    public void disabledPatternCallNeverBuildsTheMessage() throws Exception {
+        PILogger.setLevel(PILogger.NONE);
+        CountingArgument argument = new CountingArgument();
+
+        for (int i = 0; i < WARM_UP_CALLS; i++) {
+            PILogger.d(TAG, "adding beacon region for beacon: {}", argument);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < CALLS; i++) {
+            PILogger.d(TAG, "adding beacon region for beacon: {}", argument);
+        }
+        long pattern = System.nanoTime() - start;
+        assertEquals(0, argument.calls);
+
+        for (int i = 0; i < WARM_UP_CALLS; i++) {
+            PILogger.d(TAG, "adding beacon region for beacon: " + argument);
+        }
+        argument.calls = 0;
+        start = System.nanoTime();
+        for (int i = 0; i < CALLS; i++) {
+            PILogger.d(TAG, "adding beacon region for beacon: " + argument);
+        }
+        long concatenated = System.nanoTime() - start;
+
+        System.out.println(String.format("disabled PILogger.d: %.2f ns/call with a pattern, %.2f ns/call concatenated",
+                (double) pattern / CALLS, (double) concatenated / CALLS));
+        // the concatenated call built every message anyway
+        assertEquals(CALLS, argument.calls);
+    }
+
+    @Test
+    public void formatReplacesPlaceholdersInOrder() throws Exception {
+        assertEquals("GET url in 250ms", PILogger.format("{} {} in {}ms", "GET", "url", 250, 3));
+        assertEquals("a b {}", PILogger.format("{} {} {}", "a", "b", null, 2));
+        assertEquals("no placeholders", PILogger.format("no placeholders", "a", null, null, 1));
+    }
+
+    private static class CountingArgument {
+        int calls = 0;
+
+        @Override
+        public String toString() {
+            calls++;
+            return "beacon";
+        }
+    }
+}
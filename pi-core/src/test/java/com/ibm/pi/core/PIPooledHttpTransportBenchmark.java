@@ -0,0 +1,340 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+
+package com.ibm.pi.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.security.KeyStore;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManagerFactory;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares PIPooledHttpTransport with a connection per request, the way requests were sent before,
+ * against a local https stand-in for the connector.  The stand-in serves a self-signed certificate
+ * generated for the run and counts the connections it accepts, every one of which is a TCP and a TLS
+ * handshake.  Run it with the unit tests, the numbers are printed to the test output.
+ */
+public class PIPooledHttpTransportBenchmark {
+    private static final int WARM_UP_REQUESTS = 50;
+    private static final int REQUESTS = 500;
+    private static final String BODY = "{\"bnm\":[{\"major\":1,\"minor\":2,\"rssi\":-60}]}";
+    private static final String PASSWORD = "stand-in";
+
+    private File mKeyStore;
+    private SSLContext mClientContext;
+    private StandIn mServer;
+
+    @Before
+    public void setUp() throws Exception {
+        mKeyStore = createKeyStore();
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        FileInputStream in = new FileInputStream(mKeyStore);
+        try {
+            keyStore.load(in, PASSWORD.toCharArray());
+        } finally {
+            in.close();
+        }
+
+        KeyManagerFactory keyManagers = KeyManagerFactory.getInstance(KeyManagerFactory.getDefaultAlgorithm());
+        keyManagers.init(keyStore, PASSWORD.toCharArray());
+        SSLContext serverContext = SSLContext.getInstance("TLS");
+        serverContext.init(keyManagers.getKeyManagers(), null, null);
+
+        // the client trusts the stand-in's certificate and nothing else
+        TrustManagerFactory trustManagers = TrustManagerFactory.getInstance(TrustManagerFactory.getDefaultAlgorithm());
+        trustManagers.init(keyStore);
+        mClientContext = SSLContext.getInstance("TLS");
+        mClientContext.init(null, trustManagers.getTrustManagers(), null);
+
+        mServer = new StandIn(serverContext);
+        mServer.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mServer.close();
+        mKeyStore.delete();
+        mKeyStore.getParentFile().delete();
+    }
+
+    @Test
+    public void pooledTransportReusesConnections() throws Exception {
+        URL url = new URL("https://127.0.0.1:" + mServer.getPort() + "/conn-beacon/v1/tenants/t/orgs/o");
+
+        Result perRequest = run(new ConnectionPerRequestTransport(mClientContext.getSocketFactory()), url);
+        PIPooledHttpTransport transport = new PIPooledHttpTransport(PIPooledHttpTransport.DEFAULT_MAX_IDLE_CONNECTIONS,
+                PIPooledHttpTransport.DEFAULT_KEEP_ALIVE_IN_MILLISECONDS, mClientContext);
+        Result pooled = run(transport, url);
+
+        System.out.println("connection per request: " + perRequest);
+        System.out.println("pooled keep-alive:      " + pooled + ", " + transport.getSocketsOpened() + " sockets opened");
+        assertEquals(REQUESTS, perRequest.connections);
+        // a single thread sending one request at a time needs a single connection
+        assertTrue("pooled transport opened " + pooled.connections + " connections", pooled.connections <= 2);
+    }
+
+    // a self-signed certificate for the loopback address, made with the JDK's keytool
+    private static File createKeyStore() throws Exception {
+        File directory = File.createTempFile("stand-in", "");
+        directory.delete();
+        directory.mkdir();
+        File keyStore = new File(directory, "stand-in.p12");
+        String keytool = new File(System.getProperty("java.home"), "bin/keytool").getPath();
+        Process process = new ProcessBuilder(keytool, "-genkeypair", "-alias", "stand-in",
+                "-keyalg", "RSA", "-keysize", "2048", "-validity", "1",
+                "-dname", "CN=127.0.0.1", "-ext", "san=ip:127.0.0.1",
+                "-storetype", "PKCS12", "-keystore", keyStore.getPath(),
+                "-storepass", PASSWORD, "-keypass", PASSWORD)
+                .redirectErrorStream(true)
+                .start();
+        InputStream output = process.getInputStream();
+        while (output.read() != -1) {
+            // keytool blocks if its output isn't read
+        }
+        assertEquals("keytool failed", 0, process.waitFor());
+        return keyStore;
+    }
+
+    private Result run(PIHttpTransport transport, URL url) throws IOException {
+        for (int i = 0; i < WARM_UP_REQUESTS; i++) {
+            send(transport, url);
+        }
+        int connectionsBefore = mServer.getConnections();
+        long[] latencies = new long[REQUESTS];
+        long start = System.nanoTime();
+        for (int i = 0; i < REQUESTS; i++) {
+            long sent = System.nanoTime();
+            send(transport, url);
+            latencies[i] = System.nanoTime() - sent;
+        }
+        long elapsed = System.nanoTime() - start;
+        Arrays.sort(latencies);
+        return new Result(mServer.getConnections() - connectionsBefore, elapsed, latencies);
+    }
+
+    private static void send(PIHttpTransport transport, URL url) throws IOException {
+        PIHttpRequest request = new PIHttpRequest(url, "POST");
+        request.setHeader("Content-Type", "application/json");
+        request.setBody(BODY.getBytes("UTF-8"));
+        request.setConnectTimeout(5000);
+        request.setReadTimeout(5000);
+        PIHttpResponse response = transport.execute(request);
+        try {
+            assertEquals(HttpURLConnection.HTTP_OK, response.getResponseCode());
+            InputStream body = response.getBody();
+            byte[] buffer = new byte[1024];
+            while (body.read(buffer) != -1) {
+                // read it all, like the adapter does
+            }
+        } finally {
+            response.close();
+        }
+    }
+
+    private static class Result {
+        final int connections;
+        final long elapsed;
+        final long[] latencies;
+
+        Result(int connections, long elapsed, long[] latencies) {
+            this.connections = connections;
+            this.elapsed = elapsed;
+            this.latencies = latencies;
+        }
+
+        @Override
+        public String toString() {
+            double minutes = elapsed / 60e9;
+            return String.format("%d connections for %d requests (%.0f handshakes/min at %.0f requests/min), p50 %.3f ms, p99 %.3f ms",
+                    connections, latencies.length, connections / minutes, latencies.length / minutes,
+                    latencies[latencies.length / 2] / 1e6, latencies[latencies.length * 99 / 100] / 1e6);
+        }
+    }
+
+    /**
+     * Sends every request on a connection of its own, which the server closes after answering.
+     */
+    private static class ConnectionPerRequestTransport implements PIHttpTransport {
+        private final SSLSocketFactory mSocketFactory;
+
+        ConnectionPerRequestTransport(SSLSocketFactory socketFactory) {
+            mSocketFactory = socketFactory;
+        }
+
+        @Override
+        public PIHttpResponse execute(PIHttpRequest request) throws IOException {
+            final HttpURLConnection connection = (HttpURLConnection) request.getUrl().openConnection();
+            ((HttpsURLConnection) connection).setSSLSocketFactory(mSocketFactory);
+            connection.setRequestMethod(request.getMethod());
+            connection.setRequestProperty("Connection", "close");
+            connection.setDoOutput(true);
+            OutputStream out = connection.getOutputStream();
+            out.write(request.getBody());
+            out.close();
+            final int responseCode = connection.getResponseCode();
+            return new PIHttpResponse() {
+                @Override
+                public int getResponseCode() {
+                    return responseCode;
+                }
+
+                @Override
+                public Map<String, List<String>> getHeaders() {
+                    return connection.getHeaderFields();
+                }
+
+                @Override
+                public InputStream getBody() {
+                    try {
+                        return connection.getInputStream();
+                    } catch (IOException e) {
+                        return null;
+                    }
+                }
+
+                @Override
+                public void close() {
+                    connection.disconnect();
+                }
+            };
+        }
+
+        @Override
+        public void warmUp(PIHttpRequest request) {
+        }
+    }
+
+    /**
+     * A minimal HTTP/1.1 over TLS server that answers every request with a small JSON document and
+     * keeps connections alive unless asked not to.
+     */
+    private static class StandIn extends Thread {
+        private final ServerSocket mServerSocket;
+        private final AtomicInteger mConnections = new AtomicInteger();
+
+        StandIn(SSLContext sslContext) throws IOException {
+            super("stand-in");
+            setDaemon(true);
+            mServerSocket = sslContext.getServerSocketFactory().createServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        }
+
+        int getPort() {
+            return mServerSocket.getLocalPort();
+        }
+
+        int getConnections() {
+            return mConnections.get();
+        }
+
+        void close() throws IOException {
+            mServerSocket.close();
+        }
+
+        @Override
+        public void run() {
+            while (!mServerSocket.isClosed()) {
+                try {
+                    final Socket socket = mServerSocket.accept();
+                    mConnections.incrementAndGet();
+                    Thread handler = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            serve(socket);
+                        }
+                    }, "stand-in-connection");
+                    handler.setDaemon(true);
+                    handler.start();
+                } catch (IOException e) {
+                    // closed
+                }
+            }
+        }
+
+        private void serve(Socket socket) {
+            try {
+                socket.setTcpNoDelay(true);
+                InputStream in = socket.getInputStream();
+                OutputStream out = socket.getOutputStream();
+                byte[] response = "{\"status\":\"ok\"}".getBytes("UTF-8");
+                while (true) {
+                    int contentLength = 0;
+                    boolean close = false;
+                    String line = readLine(in);
+                    if (line == null) {
+                        break;
+                    }
+                    while ((line = readLine(in)) != null && !line.isEmpty()) {
+                        String lower = line.toLowerCase();
+                        if (lower.startsWith("content-length:")) {
+                            contentLength = Integer.parseInt(line.substring(15).trim());
+                        } else if (lower.startsWith("connection:") && lower.contains("close")) {
+                            close = true;
+                        }
+                    }
+                    for (int i = 0; i < contentLength; i++) {
+                        in.read();
+                    }
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Type: application/json\r\nContent-Length: " + response.length
+                            + (close ? "\r\nConnection: close" : "") + "\r\n\r\n").getBytes("UTF-8"));
+                    out.write(response);
+                    out.flush();
+                    if (close) {
+                        break;
+                    }
+                }
+                socket.close();
+            } catch (IOException e) {
+                // client went away
+            }
+        }
+
+        private static String readLine(InputStream in) throws IOException {
+            StringBuilder line = new StringBuilder();
+            int c;
+            while ((c = in.read()) != -1) {
+                if (c == '\n') {
+                    return line.toString().trim();
+                }
+                line.append((char) c);
+            }
+            return line.length() > 0 ? line.toString() : null;
+        }
+    }
+}
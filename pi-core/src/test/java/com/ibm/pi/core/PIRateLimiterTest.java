@@ -0,0 +1,226 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the token bucket of PIRateLimiter and what each policy does once it is empty.
+ */
+public class PIRateLimiterTest {
+    private static final long TIMEOUT_IN_SECONDS = 5;
+
+    private final List<String> mSent = new ArrayList<String>();
+    private final PITransferStats mStats = new PITransferStats();
+
+    @Test
+    public void burstIsSentWithoutWaiting() throws Exception {
+        PIRateLimiter limiter = new PIRateLimiter(0.1, 2, PIRateLimiter.Policy.COALESCE);
+        TestRequest first = new TestRequest("first", "a");
+        TestRequest second = new TestRequest("second", "b");
+        limiter.submit(first, mStats);
+        limiter.submit(second, mStats);
+
+        // sent on the calling thread
+        assertEquals(0, first.sent.getCount());
+        assertEquals(0, second.sent.getCount());
+        assertEquals(0, mStats.getRateLimitDelayed());
+    }
+
+    @Test
+    public void requestToQueuedUrlTakesItsPlace() throws Exception {
+        PIRateLimiter limiter = new PIRateLimiter(10, 1, PIRateLimiter.Policy.COALESCE);
+        TestRequest first = new TestRequest("first", "a");
+        TestRequest queued = new TestRequest("queued", "a");
+        TestRequest other = new TestRequest("other", "b");
+        TestRequest newest = new TestRequest("newest", "a");
+        limiter.submit(first, mStats);
+        limiter.submit(queued, mStats);
+        limiter.submit(other, mStats);
+        limiter.submit(newest, mStats);
+
+        assertSame(queued, newest.absorbed);
+        assertEquals(2, mStats.getRateLimitDelayed());
+        assertEquals(1, mStats.getRateLimitCoalesced());
+        assertTrue(other.sent.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS));
+        synchronized (mSent) {
+            // the newest request went out in the queued one's place, ahead of the other url
+            assertEquals("first", mSent.get(0));
+            assertEquals("newest", mSent.get(1));
+            assertEquals("other", mSent.get(2));
+            assertEquals(3, mSent.size());
+        }
+        assertFalse(queued.dropped);
+    }
+
+    @Test
+    public void abandonedRequestIsNotCoalescedInto() throws Exception {
+        PIRateLimiter limiter = new PIRateLimiter(10, 1, PIRateLimiter.Policy.COALESCE);
+        TestRequest first = new TestRequest("first", "a");
+        TestRequest abandoned = new TestRequest("abandoned", "a");
+        TestRequest newest = new TestRequest("newest", "a");
+        limiter.submit(first, mStats);
+        limiter.submit(abandoned, mStats);
+        abandoned.abandoned = true;
+        limiter.submit(newest, mStats);
+
+        assertNull(newest.absorbed);
+        assertEquals(0, mStats.getRateLimitCoalesced());
+        assertTrue(newest.sent.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS));
+        // skipped without spending a token
+        assertEquals(1, abandoned.sent.getCount());
+    }
+
+    @Test
+    public void fullQueueDropsNewRequest() throws Exception {
+        PIRateLimiter limiter = new PIRateLimiter(0.1, 1, PIRateLimiter.Policy.COALESCE, 1);
+        TestRequest first = new TestRequest("first", "a");
+        TestRequest queued = new TestRequest("queued", "b");
+        TestRequest coalesced = new TestRequest("coalesced", "b");
+        TestRequest overflow = new TestRequest("overflow", "c");
+        limiter.submit(first, mStats);
+        limiter.submit(queued, mStats);
+        limiter.submit(coalesced, mStats);
+        limiter.submit(overflow, mStats);
+
+        // merging doesn't need room in the queue, a new url does
+        assertSame(queued, coalesced.absorbed);
+        assertTrue(overflow.dropped);
+        assertFalse(queued.dropped);
+        assertEquals(1, mStats.getRateLimitDropped());
+    }
+
+    @Test
+    public void requestWithBodyIsNeverCoalesced() throws Exception {
+        PIRateLimiter limiter = new PIRateLimiter(10, 1, PIRateLimiter.Policy.COALESCE);
+        TestRequest first = new TestRequest("first", null);
+        TestRequest queued = new TestRequest("queued", null);
+        TestRequest newest = new TestRequest("newest", null);
+        limiter.submit(first, mStats);
+        limiter.submit(queued, mStats);
+        limiter.submit(newest, mStats);
+
+        // falls back to DELAY, both bodies reach the server
+        assertNull(newest.absorbed);
+        assertEquals(0, mStats.getRateLimitCoalesced());
+        assertEquals(2, mStats.getRateLimitDelayed());
+        assertTrue(newest.sent.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS));
+        synchronized (mSent) {
+            assertEquals("queued", mSent.get(1));
+            assertEquals("newest", mSent.get(2));
+        }
+    }
+
+    @Test
+    public void delayQueuesInOrderAndDropsNewestWhenFull() throws Exception {
+        PIRateLimiter limiter = new PIRateLimiter(10, 1, PIRateLimiter.Policy.DELAY, 2);
+        TestRequest first = new TestRequest("first", "a");
+        TestRequest second = new TestRequest("second", "a");
+        TestRequest third = new TestRequest("third", "a");
+        TestRequest overflow = new TestRequest("overflow", "a");
+        limiter.submit(first, mStats);
+        limiter.submit(second, mStats);
+        limiter.submit(third, mStats);
+        limiter.submit(overflow, mStats);
+
+        // the same url is not merged either
+        assertNull(third.absorbed);
+        assertTrue(overflow.dropped);
+        assertEquals(2, mStats.getRateLimitDelayed());
+        assertEquals(1, mStats.getRateLimitDropped());
+        assertTrue(third.sent.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS));
+        synchronized (mSent) {
+            assertEquals("first", mSent.get(0));
+            assertEquals("second", mSent.get(1));
+            assertEquals("third", mSent.get(2));
+            assertEquals(3, mSent.size());
+        }
+    }
+
+    @Test
+    public void dropOldestMakesRoomForNewest() throws Exception {
+        PIRateLimiter limiter = new PIRateLimiter(10, 1, PIRateLimiter.Policy.DROP_OLDEST, 2);
+        TestRequest first = new TestRequest("first", "a");
+        TestRequest oldest = new TestRequest("oldest", "b");
+        TestRequest middle = new TestRequest("middle", "c");
+        TestRequest newest = new TestRequest("newest", "d");
+        limiter.submit(first, mStats);
+        limiter.submit(oldest, mStats);
+        limiter.submit(middle, mStats);
+        limiter.submit(newest, mStats);
+
+        assertTrue(oldest.dropped);
+        assertFalse(newest.dropped);
+        assertEquals(1, mStats.getRateLimitDropped());
+        assertTrue(newest.sent.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS));
+        synchronized (mSent) {
+            assertEquals("middle", mSent.get(1));
+            assertEquals("newest", mSent.get(2));
+            assertEquals(3, mSent.size());
+        }
+        assertEquals(1, oldest.sent.getCount());
+    }
+
+    private class TestRequest implements PIRateLimiter.Request {
+        final CountDownLatch sent = new CountDownLatch(1);
+        volatile boolean abandoned;
+        volatile boolean dropped;
+        volatile PIRateLimiter.Request absorbed;
+        private final String mName;
+        private final String mKey;
+
+        TestRequest(String name, String key) {
+            mName = name;
+            mKey = key;
+        }
+
+        @Override
+        public String getKey() {
+            return mKey;
+        }
+
+        @Override
+        public boolean isAbandoned() {
+            return abandoned;
+        }
+
+        @Override
+        public void send() {
+            synchronized (mSent) {
+                mSent.add(mName);
+            }
+            sent.countDown();
+        }
+
+        @Override
+        public void drop() {
+            dropped = true;
+        }
+
+        @Override
+        public void absorb(PIRateLimiter.Request older) {
+            absorbed = older;
+        }
+    }
+}
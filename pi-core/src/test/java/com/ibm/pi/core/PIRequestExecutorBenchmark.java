@@ -0,0 +1,117 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compares the throughput of a PIRequestExecutor lane with the single serial queue requests used to
+ * share.  Every request blocks for a few milliseconds, the way a request waiting on the network does.
+ * Run it with the unit tests, the numbers are printed to the test output.  Only completion is checked,
+ * the numbers depend on the machine.
+ */
+public class PIRequestExecutorBenchmark {
+    private static final int WARM_UP_REQUESTS = 20;
+    private static final int REQUESTS = 300;
+    private static final long REQUEST_TIME_IN_MILLISECONDS = 5;
+
+    @Test
+    public void laneAgainstSerialQueue() throws Exception {
+        ExecutorService serial = Executors.newSingleThreadExecutor();
+        PIRequestExecutor executor = new PIRequestExecutor();
+        executor.configureLane(PIRequestExecutor.Lane.CONFIG, 3, REQUESTS);
+        Executor lane = executor.getLane(PIRequestExecutor.Lane.CONFIG);
+        try {
+            run(serial, WARM_UP_REQUESTS);
+            long serialTime = run(serial, REQUESTS);
+            run(lane, WARM_UP_REQUESTS);
+            long laneTime = run(lane, REQUESTS);
+
+            System.out.println(String.format("%d requests of %dms: serial queue %.1f req/s, CONFIG lane %.1f req/s, " +
+                            "average queue wait %dms",
+                    REQUESTS, REQUEST_TIME_IN_MILLISECONDS, perSecond(serialTime), perSecond(laneTime),
+                    executor.getAverageQueueWait(PIRequestExecutor.Priority.INTERACTIVE)));
+        } finally {
+            serial.shutdown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void interactiveBehindBackgroundBacklog() throws Exception {
+        PIRequestExecutor executor = new PIRequestExecutor();
+        executor.configureLane(PIRequestExecutor.Lane.CONFIG, 3, REQUESTS + 1);
+        try {
+            CountDownLatch background = new CountDownLatch(REQUESTS);
+            Executor lane = executor.getLane(PIRequestExecutor.Lane.CONFIG, PIRequestExecutor.Priority.BACKGROUND);
+            for (int i = 0; i < REQUESTS; i++) {
+                lane.execute(new Request(background));
+            }
+            CountDownLatch interactive = new CountDownLatch(1);
+            long start = System.nanoTime();
+            executor.getLane(PIRequestExecutor.Lane.CONFIG).execute(new Request(interactive));
+            assertTrue(interactive.await(10, TimeUnit.SECONDS));
+            long latency = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+            System.out.println(String.format("interactive request behind %d background requests: %dms",
+                    REQUESTS, latency));
+            assertTrue(background.await(10, TimeUnit.SECONDS));
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    private static long run(Executor executor, int requests) throws InterruptedException {
+        CountDownLatch done = new CountDownLatch(requests);
+        long start = System.nanoTime();
+        for (int i = 0; i < requests; i++) {
+            executor.execute(new Request(done));
+        }
+        assertTrue(done.await(30, TimeUnit.SECONDS));
+        return System.nanoTime() - start;
+    }
+
+    private static double perSecond(long nanos) {
+        return REQUESTS / (nanos / 1e9);
+    }
+
+    private static class Request implements Runnable {
+        private final CountDownLatch mDone;
+
+        Request(CountDownLatch done) {
+            mDone = done;
+        }
+
+        @Override
+        public void run() {
+            try {
+                Thread.sleep(REQUEST_TIME_IN_MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            mDone.countDown();
+        }
+    }
+}
@@ -0,0 +1,255 @@
+/**
+ * Copyright (c) 2015 IBM Corporation. All rights reserved.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ **/
+
+package com.ibm.pi.core;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Checks the lane limits and the scheduling order of PIRequestExecutor.  Requests block on latches
+ * rather than sleeping, and starvation is checked on a scheduler with a short threshold, so nothing
+ * here depends on how fast the machine is.
+ */
+public class PIRequestExecutorTest {
+    private static final long TIMEOUT_IN_SECONDS = 5;
+    private static final long STARVATION_THRESHOLD_IN_MILLISECONDS = 50;
+
+    private PIRequestExecutor mExecutor;
+    private CountDownLatch mRelease;
+
+    @Before
+    public void setUp() throws Exception {
+        mExecutor = new PIRequestExecutor();
+        mRelease = new CountDownLatch(1);
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        mRelease.countDown();
+        mExecutor.shutdown();
+    }
+
+    @Test
+    public void fullLaneRejectsRequests() throws Exception {
+        mExecutor.configureLane(PIRequestExecutor.Lane.CONFIG, 1, 2);
+        Executor lane = mExecutor.getLane(PIRequestExecutor.Lane.CONFIG);
+        CountDownLatch started = new CountDownLatch(1);
+
+        lane.execute(new Blocking(started, null));
+        assertTrue(started.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS));
+        lane.execute(new Blocking(null, null));
+        lane.execute(new Blocking(null, null));
+        assertEquals(2, mExecutor.getQueuedCount(PIRequestExecutor.Lane.CONFIG));
+
+        try {
+            lane.execute(new Blocking(null, null));
+            fail("a full lane should reject the request");
+        } catch (RejectedExecutionException e) {
+            // expected
+        }
+        assertEquals(2, mExecutor.getQueuedCount(PIRequestExecutor.Lane.CONFIG));
+        assertEquals(1, mExecutor.getActiveCount(PIRequestExecutor.Lane.CONFIG));
+    }
+
+    @Test
+    public void laneRunsUpToItsThreadCount() throws Exception {
+        mExecutor.configureLane(PIRequestExecutor.Lane.CONFIG, 3, 8);
+        Executor lane = mExecutor.getLane(PIRequestExecutor.Lane.CONFIG);
+        // only passes once three requests run side by side
+        CyclicBarrier together = new CyclicBarrier(3);
+        CountDownLatch started = new CountDownLatch(3);
+        CountDownLatch fourth = new CountDownLatch(1);
+
+        for (int i = 0; i < 3; i++) {
+            lane.execute(new Meeting(together, started));
+        }
+        assertTrue(started.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS));
+        lane.execute(new Blocking(fourth, null));
+        assertEquals(3, mExecutor.getActiveCount(PIRequestExecutor.Lane.CONFIG));
+        assertEquals(1, mExecutor.getQueuedCount(PIRequestExecutor.Lane.CONFIG));
+        assertEquals(1, fourth.getCount());
+
+        mRelease.countDown();
+        assertTrue(fourth.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void backgroundRunsOneAtATimePerLane() throws Exception {
+        Executor background = mExecutor.getLane(PIRequestExecutor.Lane.CONFIG, PIRequestExecutor.Priority.BACKGROUND);
+        CountDownLatch started = new CountDownLatch(1);
+
+        background.execute(new Blocking(started, null));
+        background.execute(new Blocking(null, null));
+        background.execute(new Blocking(null, null));
+        assertTrue(started.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS));
+        assertEquals(1, mExecutor.getActiveCount(PIRequestExecutor.Lane.CONFIG));
+        assertEquals(2, mExecutor.getQueuedCount(PIRequestExecutor.Lane.CONFIG, PIRequestExecutor.Priority.BACKGROUND));
+
+        // the lane still has threads for everyone else
+        CountDownLatch interactive = new CountDownLatch(1);
+        mExecutor.getLane(PIRequestExecutor.Lane.CONFIG).execute(new Blocking(interactive, null));
+        assertTrue(interactive.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS));
+        assertEquals(2, mExecutor.getActiveCount(PIRequestExecutor.Lane.CONFIG));
+
+        // and the other lanes run their own background request
+        CountDownLatch upload = new CountDownLatch(1);
+        mExecutor.getLane(PIRequestExecutor.Lane.UPLOAD, PIRequestExecutor.Priority.BACKGROUND)
+                .execute(new Blocking(upload, null));
+        assertTrue(upload.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void higherPriorityRunsFirst() throws Exception {
+        PIPriorityScheduler scheduler = newScheduler(Long.MAX_VALUE);
+        try {
+            List<String> order = runBehindBlocker(scheduler, false);
+            assertEquals("interactive", order.get(0));
+            assertEquals("background", order.get(1));
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void starvedRequestIsPromoted() throws Exception {
+        PIPriorityScheduler scheduler = newScheduler(STARVATION_THRESHOLD_IN_MILLISECONDS);
+        try {
+            List<String> order = runBehindBlocker(scheduler, true);
+            assertEquals("background", order.get(0));
+            assertEquals("interactive", order.get(1));
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    // a single thread lane with the executor's default priority limits
+    private static PIPriorityScheduler newScheduler(long starvationThreshold) {
+        EnumMap<PIRequestExecutor.Priority, Integer> limits =
+                new EnumMap<PIRequestExecutor.Priority, Integer>(PIRequestExecutor.Priority.class);
+        limits.put(PIRequestExecutor.Priority.BACKGROUND, 1);
+        EnumMap<PIRequestExecutor.Priority, PIPriorityScheduler.WaitStats> waitStats =
+                new EnumMap<PIRequestExecutor.Priority, PIPriorityScheduler.WaitStats>(PIRequestExecutor.Priority.class);
+        for (PIRequestExecutor.Priority priority : PIRequestExecutor.Priority.values()) {
+            waitStats.put(priority, new PIPriorityScheduler.WaitStats());
+        }
+        return new PIPriorityScheduler(1, 8, Executors.defaultThreadFactory(), limits, waitStats, starvationThreshold);
+    }
+
+    // queues a background request, then an interactive one, then frees the scheduler's only thread
+    private List<String> runBehindBlocker(PIPriorityScheduler scheduler, boolean starve) throws Exception {
+        List<String> order = new ArrayList<String>();
+        CountDownLatch started = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(2);
+
+        scheduler.submit(new Blocking(started, null), PIRequestExecutor.Priority.INTERACTIVE);
+        assertTrue(started.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS));
+        long queuedAt = System.currentTimeMillis();
+        scheduler.submit(new Recording(order, "background", done), PIRequestExecutor.Priority.BACKGROUND);
+        if (starve) {
+            // any longer a wait starves it just the same
+            while (System.currentTimeMillis() - queuedAt <= STARVATION_THRESHOLD_IN_MILLISECONDS) {
+                Thread.sleep(STARVATION_THRESHOLD_IN_MILLISECONDS);
+            }
+        }
+        scheduler.submit(new Recording(order, "interactive", done), PIRequestExecutor.Priority.INTERACTIVE);
+
+        mRelease.countDown();
+        assertTrue(done.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS));
+        synchronized (order) {
+            return new ArrayList<String>(order);
+        }
+    }
+
+    private class Meeting implements Runnable {
+        private final CyclicBarrier mTogether;
+        private final CountDownLatch mStarted;
+
+        Meeting(CyclicBarrier together, CountDownLatch started) {
+            mTogether = together;
+            mStarted = started;
+        }
+
+        @Override
+        public void run() {
+            try {
+                mTogether.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+                mStarted.countDown();
+                mRelease.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+            } catch (Exception e) {
+                // a broken barrier leaves started short, which fails the test
+            }
+        }
+    }
+
+    private class Blocking implements Runnable {
+        private final CountDownLatch mStarted;
+        private final CountDownLatch mDone;
+
+        Blocking(CountDownLatch started, CountDownLatch done) {
+            mStarted = started;
+            mDone = done;
+        }
+
+        @Override
+        public void run() {
+            if (mStarted != null) {
+                mStarted.countDown();
+            }
+            try {
+                mRelease.await(TIMEOUT_IN_SECONDS, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (mDone != null) {
+                mDone.countDown();
+            }
+        }
+    }
+
+    private static class Recording implements Runnable {
+        private final List<String> mOrder;
+        private final String mName;
+        private final CountDownLatch mDone;
+
+        Recording(List<String> order, String name, CountDownLatch done) {
+            mOrder = order;
+            mName = name;
+            mDone = done;
+        }
+
+        @Override
+        public void run() {
+            synchronized (mOrder) {
+                mOrder.add(mName);
+            }
+            mDone.countDown();
+        }
+    }
+}